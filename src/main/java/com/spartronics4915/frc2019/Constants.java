@@ -3,6 +3,8 @@ package com.spartronics4915.frc2019;
 import com.spartronics4915.frc2019.subsystems.Drive;
 import com.spartronics4915.lib.geometry.Pose2d;
 import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.LibConstants;
+import com.spartronics4915.lib.lidar.icp.DistanceFieldReferenceModel;
 import com.spartronics4915.lib.lidar.icp.IReferenceModel;
 import com.spartronics4915.lib.lidar.icp.Point;
 import com.spartronics4915.lib.lidar.icp.Segment;
@@ -109,8 +111,9 @@ public class Constants
     public static final boolean kDefaultBrakeMode = true; // on
 
     // LIDAR CONSTANTS ----------------
-    public static final IReferenceModel kSegmentReferenceModel = new SegmentReferenceModel(
-            Segment.makeInRectangle(new Point(2, 2), new Point(0, 0)));
+    public static final IReferenceModel kSegmentReferenceModel = new DistanceFieldReferenceModel(
+            new SegmentReferenceModel(Segment.makeInRectangle(new Point(2, 2), new Point(0, 0))),
+            LibConstants.kLidarDistanceFieldResolution, LibConstants.kLidarDistanceFieldMargin);
 
     // Pose of the LIDAR frame w.r.t. the robot frame
     public static final double kLidarXOffset = -11;
@@ -21,9 +21,19 @@ public class Kinematics
      */
     public static Twist2d forwardKinematics(double left_wheel_delta, double right_wheel_delta)
     {
-        double delta_rotation = (right_wheel_delta - left_wheel_delta)
+        return forwardKinematics(left_wheel_delta, right_wheel_delta,
+                forwardKinematicsRotation(left_wheel_delta, right_wheel_delta));
+    }
+
+    /**
+     * The rotation (radians) of the forward kinematics above, for callers
+     * that work in primitives.  The translation is just the mean of the
+     * wheel deltas.
+     */
+    public static double forwardKinematicsRotation(double left_wheel_delta, double right_wheel_delta)
+    {
+        return (right_wheel_delta - left_wheel_delta)
                 / (Constants.kDriveWheelTrackWidthInches * Constants.kTrackScrubFactor);
-        return forwardKinematics(left_wheel_delta, right_wheel_delta, delta_rotation);
     }
 
     public static Twist2d forwardKinematics(double left_wheel_delta, double right_wheel_delta,
@@ -16,12 +16,14 @@ import com.spartronics4915.lib.util.*;
 
 import edu.wpi.first.wpilibj.AnalogInput;
 import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Filesystem;
 import edu.wpi.first.wpilibj.TimedRobot;
 import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj.PowerDistributionPanel;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
@@ -147,7 +149,8 @@ public class Robot extends TimedRobot
 
             AutoModeSelector.updateSmartDashboard();
             Logger.debug("Generating trajectories...");
-            mTrajectoryGenerator.generateTrajectories();
+            mTrajectoryGenerator.generateTrajectories(
+                    new File(Filesystem.getDeployDirectory(), TrajectoryGenerator.kCacheFileName));
         }
         catch (Throwable t)
         {
@@ -7,6 +7,7 @@ import com.spartronics4915.lib.geometry.Rotation2d;
 import com.spartronics4915.lib.geometry.Translation2d;
 import com.spartronics4915.lib.trajectory.TimedView;
 import com.spartronics4915.lib.trajectory.Trajectory;
+import com.spartronics4915.lib.trajectory.TrajectoryCache;
 import com.spartronics4915.lib.trajectory.TrajectoryIterator;
 import com.spartronics4915.lib.trajectory.TrajectoryUtil;
 import com.spartronics4915.lib.trajectory.timing.CentripetalAccelerationConstraint;
@@ -16,24 +17,52 @@ import com.spartronics4915.lib.trajectory.timing.VelocityLimitRegionConstraint;
 import com.spartronics4915.lib.util.Logger;
 import com.spartronics4915.frc2019.Constants;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates the premade paths (the TrajectorySet) and paths on demand.
+ * <p>
+ * Fitting and time-parameterizing every path is slow on the roboRIO, so
+ * the precompileTrajectories gradle task runs main() on the build
+ * machine to write them all to kCacheFileName in the deploy directory,
+ * and generateTrajectories(cacheFile) loads each from there if its
+ * inputs (waypoints, constraints, limits and drive model) haven't
+ * changed since, generating only those that have.
+ * <p>
+ * The set's paths are independent, so generateTrajectories starts one
+ * task per path on a small pool (at most kMaxGeneratorThreads, one per
+ * core) and returns; getTrajectorySet() waits for them all.
+ */
 public class TrajectoryGenerator
 {
 
+    public static final String kCacheFileName = "trajectories.bin";
+
     private static final double kMaxVelocity = 240.0; // inches/s     240
     private static final double kMaxAccel = 15.0; // inches/s     15
     private static final double kMaxCentripetalAccel = 30.0; // inches/s      30
     private static final double kMaxVoltage = 9.0; // volts
+    private static final int kMaxGeneratorThreads = 4;
     private static final List<TimingConstraint<Pose2dWithCurvature>> kHabMaxVelocityRegionConstraint =
             new ArrayList<TimingConstraint<Pose2dWithCurvature>>(
                     Arrays.asList(new VelocityLimitRegionConstraint<>(new Translation2d(0, -173), new Translation2d(120, 173), 15)));
 
     private static TrajectoryGenerator mInstance = new TrajectoryGenerator();
     private final DriveMotionPlanner mMotionPlanner;
-    private TrajectorySet mTrajectorySet = null;
+    private volatile FutureTask<TrajectorySet> mTrajectorySetTask = null;
+    private volatile TrajectoryCache mCache = TrajectoryCache.empty(); // while generating the set
+    private volatile TrajectoryCache.Builder mCacheBuilder = null; // while precompiling
+    private final AtomicInteger mGenerated = new AtomicInteger();
 
     public static TrajectoryGenerator getInstance()
     {
@@ -47,17 +76,100 @@ public class TrajectoryGenerator
 
     public void generateTrajectories()
     {
-        if (mTrajectorySet == null)
+        generateTrajectories(null);
+    }
+
+    /**
+     * Starts generating the TrajectorySet in the background; see
+     * getTrajectorySet.
+     *
+     * @param cacheFile precompiled trajectories (see main), or null to
+     *  generate them all
+     */
+    public synchronized void generateTrajectories(File cacheFile)
+    {
+        if (mTrajectorySetTask == null)
         {
             Logger.debug("Generating trajectories...");
-            mTrajectorySet = new TrajectorySet();
-            Logger.debug("Finished trajectory generation");
+            mCache = cacheFile != null ? TrajectoryCache.open(cacheFile) : TrajectoryCache.empty();
+            mGenerated.set(0);
+            final int threads = Math.max(1, Math.min(kMaxGeneratorThreads, Runtime.getRuntime().availableProcessors()));
+            final ExecutorService executor = Executors.newFixedThreadPool(threads, (r) ->
+            {
+                Thread thread = new Thread(r, "TrajectoryGenerator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final FutureTask<TrajectorySet> task = new FutureTask<>(() ->
+            {
+                final long startTime = System.nanoTime();
+                try
+                {
+                    final TrajectorySet set = new TrajectorySet(executor);
+                    Logger.debug("Finished trajectory generation (" + mGenerated.get() + " generated, the rest cached) in " +
+                            (System.nanoTime() - startTime) / 1e6 + " ms on " + threads + " threads");
+                    return set;
+                }
+                finally
+                {
+                    executor.shutdownNow();
+                    mCache = TrajectoryCache.empty();
+                }
+            });
+            Thread thread = new Thread(task, "TrajectorySet");
+            thread.setDaemon(true);
+            thread.start();
+            mTrajectorySetTask = task;
         }
     }
 
+    /**
+     * Generates the TrajectorySet and writes it to the file named by
+     * args[0], for generateTrajectories(cacheFile).  Run by the
+     * precompileTrajectories gradle task.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: TrajectoryGenerator <cache file>");
+            System.exit(1);
+        }
+        final TrajectoryGenerator generator = getInstance();
+        final TrajectoryCache.Builder builder = new TrajectoryCache.Builder();
+        generator.mCacheBuilder = builder;
+        generator.generateTrajectories(null);
+        if (generator.getTrajectorySet() == null)
+            System.exit(1);
+        generator.mCacheBuilder = null;
+        builder.write(new File(args[0]));
+        Logger.notice("Wrote " + generator.mGenerated.get() + " trajectories to " + args[0]);
+    }
+
+    /**
+     * Waits for the trajectories started by generateTrajectories.
+     *
+     * @return the set, or null if generation wasn't started or failed
+     */
     public TrajectorySet getTrajectorySet()
     {
-        return mTrajectorySet;
+        final FutureTask<TrajectorySet> task = mTrajectorySetTask;
+        if (task == null)
+            return null;
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            Logger.logThrowableCrash("ERROR Couldn't generate trajectories", e.getCause());
+            return null;
+        }
     }
 
     public Trajectory<TimedState<Pose2dWithCurvature>> generateTrajectory(
@@ -103,6 +215,51 @@ public class TrajectoryGenerator
         return mMotionPlanner.generateTrajectory(reversed, waypoints, constraints, start_vel, end_vel, max_vel, max_accel, max_voltage);
     }
 
+    /**
+     * Loads the named trajectory from the cache if it was generated from
+     * the same inputs, else generates it (and adds it to the cache being
+     * precompiled, if any).
+     */
+    private Trajectory<TimedState<Pose2dWithCurvature>> loadOrGenerateTrajectory(
+            String name,
+            boolean reversed,
+            final List<Pose2d> waypoints,
+            final List<TimingConstraint<Pose2dWithCurvature>> constraints,
+            double max_vel, // inches/s
+            double max_accel, // inches/s^2
+            double max_voltage)
+    {
+        final long hash = new TrajectoryCache.ContentHash()
+                .add(mMotionPlanner.getContentHash())
+                .add(reversed).add(waypoints).add(constraints)
+                .add(max_vel).add(max_accel).add(max_voltage)
+                .get();
+        final long startTime = System.nanoTime();
+        Trajectory<TimedState<Pose2dWithCurvature>> trajectory = mCache.get(name, hash);
+        final boolean cached = trajectory != null;
+        if (!cached)
+        {
+            trajectory = generateTrajectory(reversed, waypoints, constraints, max_vel, max_accel, max_voltage);
+            mGenerated.incrementAndGet();
+        }
+        Logger.debug("Trajectory " + name + (cached ? " loaded" : " generated") + " in " +
+                (System.nanoTime() - startTime) / 1e6 + " ms");
+        final TrajectoryCache.Builder builder = mCacheBuilder;
+        if (builder != null)
+            builder.add(name, hash, trajectory);
+        return trajectory;
+    }
+
+    private Trajectory<TimedState<Pose2dWithCurvature>> loadOrGenerateTrajectory(
+            String name,
+            boolean reversed,
+            final List<Pose2d> waypoints)
+    {
+        return loadOrGenerateTrajectory(name, reversed, waypoints,
+                Arrays.asList(new CentripetalAccelerationConstraint(kMaxCentripetalAccel)),
+                kMaxVelocity, kMaxAccel, kMaxVoltage);
+    }
+
     // CRITICAL POSES
     // Origin is the center of the robot when the robot is placed against the middle of the alliance station wall.
     // +x is towards the center of the field.
@@ -142,22 +299,51 @@ public class TrajectoryGenerator
         public final MirrorableTrajectory driveToClosestCargoBayFromMiddle;
         public final TrajectoryIterator<TimedState<Pose2dWithCurvature>> driveReverseToShootInBay;
 
-        private TrajectorySet()
+        /**
+         * Generates (and mirrors) each path as a task on executor, and
+         * waits for them all.
+         */
+        private TrajectorySet(ExecutorService executor) throws InterruptedException, ExecutionException
         {
-            straightTestForward = new MirrorableTrajectory(getStraightTestForward());
-            straightTestReverse = new MirrorableTrajectory(getStraightTestReverse());
-            curvedTest = new MirrorableTrajectory(getCurvedTest());
+            Future<MirrorableTrajectory> straightTestForwardTask =
+                    executor.submit(() -> new MirrorableTrajectory(getStraightTestForward()));
+            Future<MirrorableTrajectory> straightTestReverseTask =
+                    executor.submit(() -> new MirrorableTrajectory(getStraightTestReverse()));
+            Future<MirrorableTrajectory> curvedTestTask =
+                    executor.submit(() -> new MirrorableTrajectory(getCurvedTest()));
+
+            Future<MirrorableTrajectory> driveToParallelCargoBayFromSideTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToParallelCargoBayFromSide()));
+            Future<MirrorableTrajectory> driveToParallelCargoBayFromMiddleTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToParallelCargoBayFromMiddle()));
+
+            Future<MirrorableTrajectory> driveToClosestCargoBayFromMiddleTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToClosestCargoBayFromMiddle()));
+            Future<MirrorableTrajectory> driveToClosestCargoBayFromSideTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToClosestCargoBayFromSide()));
+
+            Future<MirrorableTrajectory> driveToMiddleCargoBayFromDepotTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToMiddleCargoBayFromDepot()));
+            Future<MirrorableTrajectory> driveToDepotFromClosestCargoBayTask =
+                    executor.submit(() -> new MirrorableTrajectory(getDriveToDepotFromClosestCargoBay()));
+
+            Future<Trajectory<TimedState<Pose2dWithCurvature>>> driveBackToShootBayTask =
+                    executor.submit(() -> getDriveBackToShootBay());
+
+            straightTestForward = straightTestForwardTask.get();
+            straightTestReverse = straightTestReverseTask.get();
+            curvedTest = curvedTestTask.get();
 
-            driveToParallelCargoBayFromSide = new MirrorableTrajectory(getDriveToParallelCargoBayFromSide());
-            driveToParallelCargoBayFromMiddle = new MirrorableTrajectory(getDriveToParallelCargoBayFromMiddle());
+            driveToParallelCargoBayFromSide = driveToParallelCargoBayFromSideTask.get();
+            driveToParallelCargoBayFromMiddle = driveToParallelCargoBayFromMiddleTask.get();
 
-            driveToClosestCargoBayFromMiddle = new MirrorableTrajectory(getDriveToClosestCargoBayFromMiddle());
-            driveToClosestCargoBayFromSide = new MirrorableTrajectory(getDriveToClosestCargoBayFromSide());
+            driveToClosestCargoBayFromMiddle = driveToClosestCargoBayFromMiddleTask.get();
+            driveToClosestCargoBayFromSide = driveToClosestCargoBayFromSideTask.get();
 
-            driveToMiddleCargoBayFromDepot = new MirrorableTrajectory(getDriveToMiddleCargoBayFromDepot());
-            driveToDepotFromClosestCargoBay = new MirrorableTrajectory(getDriveToDepotFromClosestCargoBay());
+            driveToMiddleCargoBayFromDepot = driveToMiddleCargoBayFromDepotTask.get();
+            driveToDepotFromClosestCargoBay = driveToDepotFromClosestCargoBayTask.get();
 
-            driveReverseToShootInBay = new TrajectoryIterator<>(new TimedView<>(getDriveBackToShootBay()));
+            driveReverseToShootInBay = new TrajectoryIterator<>(new TimedView<>(driveBackToShootBayTask.get()));
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getStraightTestForward()
@@ -165,7 +351,7 @@ public class TrajectoryGenerator
             List<Pose2d> waypoints = new ArrayList<>();
             waypoints.add(new Pose2d(0d, 0d, Rotation2d.identity()));
             waypoints.add(new Pose2d(120d, 0d, Rotation2d.identity()));
-            return generateTrajectory(false, waypoints);
+            return loadOrGenerateTrajectory("straightTestForward", false, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getStraightTestReverse()
@@ -173,7 +359,7 @@ public class TrajectoryGenerator
             List<Pose2d> waypoints = new ArrayList<>();
             waypoints.add(new Pose2d(0d, 0d, Rotation2d.fromDegrees(180)));
             waypoints.add(new Pose2d(120d, 0d, Rotation2d.fromDegrees(180)));
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("straightTestReverse", true, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getCurvedTest()
@@ -181,7 +367,7 @@ public class TrajectoryGenerator
             List<Pose2d> waypoints = new ArrayList<>();
             waypoints.add(new Pose2d(0d, 0d, Rotation2d.fromDegrees(180)));
             waypoints.add(new Pose2d(78d, 78d, Rotation2d.fromDegrees(90)));
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("curvedTest", true, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToParallelCargoBayFromSide()
@@ -191,7 +377,7 @@ public class TrajectoryGenerator
             waypoints.add(Constants.kRightRobotLocationOffPlatform);
             waypoints.add(Constants.ScorableLandmark.RIGHT_DRIVERSTATION_PARALLEL_CARGO_BAY.robotLengthCorrectedPose);
 
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("driveToParallelCargoBayFromSide", true, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToMiddleCargoBayFromDepot()
@@ -200,7 +386,7 @@ public class TrajectoryGenerator
             waypoints.add(kRightCargoDepotIntakePose);
             waypoints.add(new Pose2d(170, -100, Rotation2d.fromDegrees(178)));
             waypoints.add(Constants.ScorableLandmark.RIGHT_MIDDLE_CARGO_BAY.robotLengthCorrectedPose);
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("driveToMiddleCargoBayFromDepot", true, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToClosestCargoBayFromMiddle()
@@ -210,7 +396,7 @@ public class TrajectoryGenerator
             waypoints.add(Constants.kMiddleRobotLocationOffPlatformReverse);
             waypoints.add(new Pose2d(195, -90, Rotation2d.fromDegrees(144))); // Intermediate point
             waypoints.add(Constants.ScorableLandmark.RIGHT_CLOSE_CARGO_BAY.robotLengthCorrectedPose);
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("driveToClosestCargoBayFromMiddle", true, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToClosestCargoBayFromSide()
@@ -220,7 +406,7 @@ public class TrajectoryGenerator
             waypoints.add(Constants.kRightRobotLocationOffPlatform);
             waypoints.add(new Pose2d(190, -90, Rotation2d.fromDegrees(140)));
             waypoints.add(Constants.ScorableLandmark.RIGHT_CLOSE_CARGO_BAY.robotLengthCorrectedPose);
-            return generateTrajectory(true, waypoints, kHabMaxVelocityRegionConstraint, kMaxVelocity, kMaxAccel, kMaxVoltage);
+            return loadOrGenerateTrajectory("driveToClosestCargoBayFromSide", true, waypoints, kHabMaxVelocityRegionConstraint, kMaxVelocity, kMaxAccel, kMaxVoltage);
         }
 
         // Rotation is 0 because we haven't reset the pose yet
@@ -246,7 +432,7 @@ public class TrajectoryGenerator
             List<Pose2d> waypoints = new ArrayList<>();
             waypoints.add(new Pose2d(0, 0, Rotation2d.fromDegrees(0)));
             waypoints.add(new Pose2d(Constants.kShootIntoBayBackupDistance, 0, Rotation2d.fromDegrees(0)));
-            return generateTrajectory(false, waypoints);
+            return loadOrGenerateTrajectory("driveBackToShootBay", false, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToDepotFromClosestCargoBay()
@@ -255,7 +441,7 @@ public class TrajectoryGenerator
             waypoints.add(Constants.ScorableLandmark.RIGHT_CLOSE_CARGO_BAY.robotLengthCorrectedPose);
             waypoints.add(new Pose2d(170, -100, Rotation2d.fromDegrees(178)));
             waypoints.add(kRightCargoDepotIntakePose);
-            return generateTrajectory(false, waypoints);
+            return loadOrGenerateTrajectory("driveToDepotFromClosestCargoBay", false, waypoints);
         }
 
         private Trajectory<TimedState<Pose2dWithCurvature>> getDriveToParallelCargoBayFromMiddle()
@@ -264,7 +450,7 @@ public class TrajectoryGenerator
             waypoints.add(Constants.kMiddleRobotLocationOnPlatformReverse);
             waypoints.add(Constants.kMiddleRobotLocationOffPlatformReverse);
             waypoints.add(Constants.ScorableLandmark.RIGHT_DRIVERSTATION_PARALLEL_CARGO_BAY.robotLengthCorrectedPose);
-            return generateTrajectory(true, waypoints);
+            return loadOrGenerateTrajectory("driveToParallelCargoBayFromMiddle", true, waypoints);
         }
     }
 }
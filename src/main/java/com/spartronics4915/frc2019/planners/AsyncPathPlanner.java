@@ -0,0 +1,134 @@
+package com.spartronics4915.frc2019.planners;
+
+import com.spartronics4915.frc2019.paths.TrajectoryGenerator;
+import com.spartronics4915.frc2019.subsystems.Drive;
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.trajectory.TimedView;
+import com.spartronics4915.lib.trajectory.Trajectory;
+import com.spartronics4915.lib.trajectory.TrajectoryIterator;
+import com.spartronics4915.lib.trajectory.timing.TimedState;
+import com.spartronics4915.lib.util.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plans paths on the fly (eg: to a vision target) on a worker thread, so
+ * the loop that asks for one never waits for the spline optimizer and
+ * timing pass.
+ * <p>
+ * plan() queues a request and returns at once; update(), called from
+ * the loop, installs the finished trajectory into the Drive at that loop
+ * boundary.  Only the latest request matters: a new one cancels any
+ * still pending and interrupts one already running, which gives up at
+ * its next stage boundary (after the spline fit or the timing pass).
+ * A superseded trajectory that finishes anyway is dropped.  Requests
+ * run one at a time, in order.
+ */
+public class AsyncPathPlanner
+{
+    private final Drive mDrive;
+    private final TrajectoryGenerator mTrajectoryGenerator;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor((r) ->
+    {
+        Thread thread = new Thread(r, "AsyncPathPlanner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Future<Trajectory<TimedState<Pose2dWithCurvature>>> mPending = null; // guarded by this
+
+    public AsyncPathPlanner(Drive drive, TrajectoryGenerator trajectoryGenerator)
+    {
+        mDrive = drive;
+        mTrajectoryGenerator = trajectoryGenerator;
+    }
+
+    /**
+     * Starts planning a path from start to goal, superseding any pending
+     * request.
+     *
+     * @param startVelocity the robot's current velocity (inches/s,
+     *  negative backwards); the path starts at its speed in the path's
+     *  direction
+     * @return the trajectory to come.  update() installs it; callers
+     *  needn't wait on it, and a loop never should.
+     */
+    public synchronized Future<Trajectory<TimedState<Pose2dWithCurvature>>> plan(Pose2d start, Pose2d goal,
+            double startVelocity, boolean reversed)
+    {
+        cancel();
+        final double startSpeed = Math.max(0.0, reversed ? -startVelocity : startVelocity);
+        mPending = mExecutor.submit(() ->
+        {
+            final long startTime = System.nanoTime();
+            final Trajectory<TimedState<Pose2dWithCurvature>> trajectory =
+                    mTrajectoryGenerator.generateTrajectory(reversed, Arrays.asList(start, goal), startSpeed);
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("AsyncPathPlanner: superseded");
+            Logger.debug("AsyncPathPlanner: path to " + goal + " planned in " +
+                    (System.nanoTime() - startTime) / 1e6 + " ms");
+            return trajectory;
+        });
+        return mPending;
+    }
+
+    /**
+     * Installs the latest request's trajectory into the Drive if it's
+     * finished.  Never blocks; call it once per loop.
+     *
+     * @return whether a trajectory was installed
+     */
+    public synchronized boolean update()
+    {
+        if (mPending == null || !mPending.isDone())
+            return false;
+        final Future<Trajectory<TimedState<Pose2dWithCurvature>>> done = mPending;
+        mPending = null;
+        try
+        {
+            mDrive.setTrajectory(new TrajectoryIterator<>(new TimedView<>(done.get())));
+            return true;
+        }
+        catch (CancellationException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            Logger.logThrowableCrash("AsyncPathPlanner: tried to drive an invalid path!", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * @return whether a requested path hasn't been installed yet
+     */
+    public synchronized boolean isPending()
+    {
+        return mPending != null;
+    }
+
+    /**
+     * Drops the pending request, if any, so it's never installed,
+     * interrupting its generation if it has started.
+     */
+    public synchronized void cancel()
+    {
+        if (mPending != null)
+        {
+            mPending.cancel(true);
+            mPending = null;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 public class DriveMotionPlanner implements CSVWritable
 {
@@ -45,7 +46,7 @@ public class DriveMotionPlanner implements CSVWritable
         mFollowerType = type;
     }
 
-    final DifferentialDrive mModel;
+    final DifferentialDrive mModel; // immutable, so generateTrajectory is thread-safe
 
     TrajectoryIterator<TimedState<Pose2dWithCurvature>> mCurrentTrajectory;
     boolean mIsReversed = false;
@@ -85,23 +86,60 @@ public class DriveMotionPlanner implements CSVWritable
         return mModel;
     }
 
+    /**
+     * @return a hash of the inputs, besides a path's own, that shape the
+     *  trajectories generated here: the drive model's constants and the
+     *  spline sampling limits.  See TrajectoryCache.
+     */
+    public long getContentHash()
+    {
+        return new TrajectoryCache.ContentHash()
+                .add(Constants.kDriveLeftVIntercept).add(Constants.kDriveLeftKv).add(Constants.kDriveLeftKa)
+                .add(Constants.kDriveRightVIntercept).add(Constants.kDriveRightKv).add(Constants.kDriveRightKa)
+                .add(Constants.kRobotLinearInertia).add(Constants.kRobotAngularInertia)
+                .add(Constants.kRobotAngularDrag).add(Constants.kDriveWheelDiameterInches)
+                .add(Constants.kDriveWheelRadiusInches).add(Constants.kDriveWheelTrackWidthInches)
+                .add(Constants.kTrackScrubFactor)
+                .add(kMaxDx).add(kMaxDy).add(kMaxDTheta)
+                .get();
+    }
+
     public void setTrajectory(final TrajectoryIterator<TimedState<Pose2dWithCurvature>> trajectory)
     {
-        mCurrentTrajectory = trajectory;
-        mSetpoint = trajectory.getState();
+        boolean reversed = false;
         for (int i = 0; i < trajectory.trajectory().length(); ++i)
         {
             if (trajectory.trajectory().getState(i).velocity() > Util.kEpsilon)
             {
-                mIsReversed = false;
+                reversed = false;
                 break;
             }
             else if (trajectory.trajectory().getState(i).velocity() < -Util.kEpsilon)
             {
-                mIsReversed = true;
+                reversed = true;
                 break;
             }
         }
+        setTrajectory(trajectory, reversed);
+    }
+
+    /**
+     * Follows a packed trajectory through its getTimedView(), so the
+     * follower is unchanged: each sample still makes a TimedState, though
+     * the trajectory itself is held as primitive arrays rather than a
+     * list of TimedStates.
+     */
+    public void setTrajectory(final PackedTrajectory trajectory)
+    {
+        setTrajectory(new TrajectoryIterator<>(trajectory.getTimedView()), trajectory.isReversed());
+    }
+
+    private void setTrajectory(final TrajectoryIterator<TimedState<Pose2dWithCurvature>> trajectory,
+            boolean reversed)
+    {
+        mCurrentTrajectory = trajectory;
+        mSetpoint = trajectory.getState();
+        mIsReversed = reversed;
         Logger.debug("DriveMotionPlanner running trajectory; mIsReversed is " + mIsReversed);
     }
 
@@ -123,6 +161,16 @@ public class DriveMotionPlanner implements CSVWritable
         return generateTrajectory(reversed, waypoints, constraints, 0.0, 0.0, max_vel, max_accel, max_voltage);
     }
 
+    /**
+     * Fits and time-parameterizes a path through waypoints.  Safe to call
+     * from several threads at once (eg: TrajectoryGenerator's pool): it
+     * reads only the immutable drive model, never the path follower's
+     * state.
+     *
+     * @throws CancellationException if the calling thread is interrupted
+     *  (eg: AsyncPathPlanner superseding the request); checked between
+     *  the spline fit and the timing pass
+     */
     public Trajectory<TimedState<Pose2dWithCurvature>> generateTrajectory(
             boolean reversed,
             final List<Pose2d> waypoints,
@@ -170,6 +218,7 @@ public class DriveMotionPlanner implements CSVWritable
             }
             trajectory = new Trajectory<>(flipped);
         }
+        checkInterrupted();
         // Create the constraint that the robot must be able to traverse the trajectory without ever applying more
         // than the specified voltage.
         final DifferentialDriveDynamicsConstraint<Pose2dWithCurvature> drive_constraints =
@@ -186,6 +235,12 @@ public class DriveMotionPlanner implements CSVWritable
         return timed_trajectory;
     }
 
+    private static void checkInterrupted()
+    {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("DriveMotionPlanner: trajectory generation interrupted");
+    }
+
     @Override
     public String toCSV()
     {
@@ -11,7 +11,6 @@ import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 import com.spartronics4915.lib.util.ILoop;
 import com.spartronics4915.lib.geometry.Rotation2d;
-import com.spartronics4915.lib.geometry.Twist2d;
 import com.spartronics4915.lib.lidar.LidarProcessor;
 
 public class RobotStateEstimator extends Subsystem
@@ -35,6 +34,12 @@ public class RobotStateEstimator extends Subsystem
     private LidarProcessor mLidarProcessor = null;
     private double mLeftPrevDist = 0.0;
     private double mRightPrevDist = 0.0;
+    // caller-owned states, so that the loop and telemetry don't allocate
+    // in the state maps.  (Only the map calls are checked allocation-free,
+    // by RobotStateMapTest; Drive still makes Rotation2ds per gyro read.)
+    private final RobotStateMap.MutableState mLastState = new RobotStateMap.MutableState();
+    private final RobotStateMap.MutableState mNextState = new RobotStateMap.MutableState();
+    private final RobotStateMap.MutableState mTelemetryState = new RobotStateMap.MutableState();
 
     private static final Pose2d kZeroPose = Pose2d.identity();
 
@@ -95,14 +100,13 @@ public class RobotStateEstimator extends Subsystem
     @Override
     public void outputTelemetry()
     {
-        final RobotStateMap.State estate = mEncoderRobotState.getLatestState();
-        Pose2d epose = estate.pose;
+        final RobotStateMap.MutableState estate = mTelemetryState;
+        mEncoderRobotState.getLatestState(estate);
         SmartDashboard.putString("RobotState/pose",
-                epose.getTranslation().x() +
-                        " " + epose.getTranslation().y() +
-                        " " + epose.getRotation().getDegrees());
-        Twist2d pVel = estate.predictedVelocity;
-        SmartDashboard.putNumber("RobotState/velocity", pVel.dx);
+                estate.x +
+                        " " + estate.y +
+                        " " + Math.toDegrees(estate.getHeading()));
+        SmartDashboard.putNumber("RobotState/velocity", estate.predictedDx);
         // SmartDashboard.putNumber("RobotState/field_degrees", epose.getRotation().getDegrees());
 
         // final RobotStateMap.State lstate = mLidarRobotState.getLatestState();
@@ -140,8 +144,8 @@ public class RobotStateEstimator extends Subsystem
         @Override
         public synchronized void onLoop(double timestamp)
         {
-            final RobotStateMap.State last = mEncoderRobotState.getLatestState();
-            final Pose2d lastPose = last.pose;
+            final RobotStateMap.MutableState last = mLastState;
+            mEncoderRobotState.getLatestState(last);
 
             /* two ways to measure current velocity */
             /*
@@ -155,6 +159,9 @@ public class RobotStateEstimator extends Subsystem
              * inches/loopinterval. To the degree that the loop interval isn't a
              * constant the result will be noisy. OTH: we can interpret this
              * velocity as also a distance traveled since last loop.
+             * (This is Kinematics.forwardKinematics(lastHeading, leftDelta,
+             * rightDelta, heading), in primitives so that it adds no
+             * Pose2d/Twist2d per loop.)
              */
             final double leftDist = mDrive.getLeftEncoderDistance();
             final double rightDist = mDrive.getRightEncoderDistance();
@@ -163,9 +170,9 @@ public class RobotStateEstimator extends Subsystem
             final Rotation2d heading = mDrive.getHeading();
             mLeftPrevDist = leftDist;
             mRightPrevDist = rightDist;
-            final Twist2d iVal = Kinematics.forwardKinematics(
-                    lastPose.getRotation(),
-                    leftDelta, rightDelta, heading);
+            final double iDx = (leftDelta + rightDelta) / 2.0;
+            final double iDtheta = Math.atan2(last.cos * heading.sin() - last.sin * heading.cos(),
+                                              last.cos * heading.cos() + last.sin * heading.sin());
 
             /*
              * method 2, 'predictedVelocity'
@@ -179,18 +186,22 @@ public class RobotStateEstimator extends Subsystem
              * is in human-readable form. Also of note, this variant doesn't
              * include the gyro heading in its calculation.
              */
-            final Twist2d pVal = Kinematics.forwardKinematics(
-                    mDrive.getLeftLinearVelocity(),
-                    mDrive.getRightLinearVelocity());
+            final double leftVelocity = mDrive.getLeftLinearVelocity();
+            final double rightVelocity = mDrive.getRightLinearVelocity();
 
             /*
              * integrateForward: given a last state and a current velocity,
              * estimate a new state (P2 = P1 + dPdt * dt)
              */
-            final Pose2d nextP = Kinematics.integrateForwardKinematics(last.pose, iVal);
+            final RobotStateMap.MutableState next = mNextState;
+            next.integrate(last, iDx, 0.0, iDtheta);
+            next.timestamp = timestamp;
+            next.setIntegrationVelocity(iDx, 0.0, iDtheta);
+            next.setPredictedVelocity((leftVelocity + rightVelocity) / 2.0, 0.0,
+                    Kinematics.forwardKinematicsRotation(leftVelocity, rightVelocity));
 
             /* record the new state estimate */
-            mEncoderRobotState.addObservations(timestamp, nextP, iVal, pVal);
+            mEncoderRobotState.addObservations(next);
         }
 
         @Override
@@ -4,7 +4,6 @@ import com.spartronics4915.lib.util.ILooper;
 import com.spartronics4915.lib.util.Logger;
 import com.spartronics4915.lib.util.RobotStateMap;
 
-import java.util.ArrayList;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -13,12 +12,9 @@ import com.spartronics4915.frc2019.VisionUpdateManager;
 import com.spartronics4915.frc2019.VisionUpdateManager.HeadingUpdate;
 import com.spartronics4915.frc2019.VisionUpdateManager.PNPUpdate;
 import com.spartronics4915.frc2019.paths.TrajectoryGenerator;
+import com.spartronics4915.frc2019.planners.AsyncPathPlanner;
 import com.spartronics4915.lib.geometry.Pose2d;
-import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
 import com.spartronics4915.lib.geometry.Rotation2d;
-import com.spartronics4915.lib.trajectory.TimedView;
-import com.spartronics4915.lib.trajectory.TrajectoryIterator;
-import com.spartronics4915.lib.trajectory.timing.TimedState;
 import com.spartronics4915.lib.util.DriveSignal;
 import com.spartronics4915.lib.util.ILoop;
 
@@ -130,6 +126,7 @@ public class Superstructure extends Subsystem
 
     private TrajectoryGenerator mTrajectoryGenerator = TrajectoryGenerator.getInstance();
     private RobotStateMap mRobotStateMap = RobotStateEstimator.getInstance().getEncoderRobotStateMap();
+    private final AsyncPathPlanner mPathPlanner = new AsyncPathPlanner(mDrive, mTrajectoryGenerator);
 
     private static final double kPanelHandlingDuration = 0.3; // Seconds TODO: Tune me (also is this our responsibility?)
 
@@ -181,6 +178,9 @@ public class Superstructure extends Subsystem
         {
             synchronized (Superstructure.this)
             {
+                // Paths planned in the background are installed here, between loops
+                mPathPlanner.update();
+
                 SystemState newState = defaultStateTransfer();
                 switch (mSystemState)
                 {
@@ -245,7 +245,7 @@ public class Superstructure extends Subsystem
                         // VisionUpdateManager.forwardVisionManager.getLatestVisionUpdate()
                         //         .ifPresent(v -> makeAndDrivePath(v.getFieldPosition(mRobotStateMap)), false)
 
-                        if (mWantedState == WantedState.ALIGN_AND_INTAKE_CARGO && (mDrive.isDoneWithTrajectory() || mCargoChute.atTarget()))
+                        if (mWantedState == WantedState.ALIGN_AND_INTAKE_CARGO && (isDoneWithPath() || mCargoChute.atTarget()))
                         {
                             mCargoIntake.setWantedState(CargoIntake.WantedState.HOLD);
                             mCargoChute.setWantedState(CargoChute.WantedState.LOWER);
@@ -278,7 +278,7 @@ public class Superstructure extends Subsystem
                                     });
                         }
 
-                        if (mDrive.isDoneWithTrajectory() && newState == mSystemState)
+                        if (isDoneWithPath() && newState == mSystemState)
                         {
                             if (mWantedState == WantedState.ALIGN_AND_EJECT_PANEL)
                                 newState = SystemState.MOVING_CHUTE_TO_EJECT_PANEL;
@@ -340,7 +340,7 @@ public class Superstructure extends Subsystem
                         if (mStateChanged)
                             makeAndDrivePath(mRobotStateMap.getFieldToVehicle(Timer.getFPGATimestamp()).transformBy(kBackOutOffset), false);
 
-                        if (newState == mSystemState && mDrive.isDoneWithTrajectory())
+                        if (newState == mSystemState && isDoneWithPath())
                             newState = SystemState.TURNING_AROUND;
                         break;
                     case TURNING_AROUND:
@@ -382,7 +382,7 @@ public class Superstructure extends Subsystem
                             // mDrive.setHeading(Rotation2d.identity());
                             // mDrive.setTrajectory(TrajectoryGenerator.getInstance().getTrajectorySet().driveReverseToShootInBay);
                         }
-                        else if (mDrive.isDoneWithTrajectory() && mWantedState == WantedState.SHOOT_CARGO_BAY)
+                        else if (isDoneWithPath() && mWantedState == WantedState.SHOOT_CARGO_BAY)
                         {
                             mCargoChute.setWantedState(CargoChute.WantedState.SHOOT_BAY);
                             mWantedState = WantedState.DRIVER_CONTROL;
@@ -396,6 +396,8 @@ public class Superstructure extends Subsystem
 
                 if (newState != mSystemState)
                 {
+                    // A path planned for the old state is no use in the new one
+                    mPathPlanner.cancel();
                     mStateChanged = true;
                     mStateChangedTimer.reset();
                     logNotice("System state to " + newState);
@@ -415,28 +417,23 @@ public class Superstructure extends Subsystem
         }
     };
 
+    /**
+     * Starts planning a path from where we are to goalPose; the planner
+     * drives it once it's ready, without holding up this loop.
+     */
     private void makeAndDrivePath(Pose2d goalPose, boolean reversed)
     {
-        try
-        {
-            ArrayList<Pose2d> waypoints = new ArrayList<>();
-            waypoints.add(mRobotStateMap.getFieldToVehicle(Timer.getFPGATimestamp()));
-            waypoints.add(goalPose);
-
-            // logNotice(waypoints.stream().map(Object::toString).collect(Collectors.joining(", ")));
-
-            double startTime = Timer.getFPGATimestamp();
-            TrajectoryIterator<TimedState<Pose2dWithCurvature>> t =
-                    new TrajectoryIterator<>(new TimedView<>((mTrajectoryGenerator.generateTrajectory(reversed, waypoints))));
-            // TODO: Maybe plug in our current velocity as the start velocity of the path?
-            logNotice("Path generated; took " + (Timer.getFPGATimestamp() - startTime) + " seconds.");
+        RobotStateMap.State state = mRobotStateMap.getLatestState();
+        mPathPlanner.plan(state.pose, goalPose, state.predictedVelocity.dx, reversed);
+    }
 
-            mDrive.setTrajectory(t);
-        }
-        catch (Exception e)
-        {
-            logException("Tried to drive an invalid path!", e);
-        }
+    /**
+     * @return whether the drive has finished the last path we asked for,
+     *  which it hasn't if that path is still being planned
+     */
+    private boolean isDoneWithPath()
+    {
+        return !mPathPlanner.isPending() && mDrive.isDoneWithTrajectory();
     }
 
     private SystemState defaultStateTransfer()
@@ -558,6 +555,7 @@ public class Superstructure extends Subsystem
     public void stop()
     {
         // Subsystem manager stops these, we don't
+        mPathPlanner.cancel();
         mWantedState = WantedState.DRIVER_CONTROL;
         mSystemState = SystemState.DRIVER_CONTROLLING;
     }
@@ -8,15 +8,57 @@ public class LibConstants
 	/* Lidar non-game settings ----*/
 	public static final int kLidarScanSize = 400;
     public static final int kLidarNumScansToStore = 10;
+    public static final int kLidarScanPoolSize = 4; // recycled between reader and consumer
+    public static final int kLidarScanQueueSize = 2; // completed scans awaiting ICP; oldest dropped
+    public static final double kLidarStatsInterval = 1.0; // seconds between pipeline stats logs
     public static final double kLidarRestartTime = 2.5;
     public static final String kLidarDriverPath = Paths.get(
       System.getProperty("user.home"), "/chezy_lidar/").toString();
     public static final String kLidarLogDir = Paths.get(
       System.getProperty("user.home"), "/lidarlogs/").toString();
     public static final int kNumLidarLogsToKeep = 10;
+    public static final double kLidarPublishMaxRate = 10.0;     // visualization frames per second
+    public static final int kLidarPublishDecimation = 2;        // publish every nth point
+    public static final boolean kLidarPublishQuantized = true;  // 16-bit mm deltas, else float32
+    public static final int kLidarRecordingChunkRecords = 65536; // recording file growth increment
     public static final double kLidarICPTranslationEpsilon = 0.01; // convergence threshold for tx,ty
     public static final double kLidarICPAngleEpsilon = 0.01;       // convergence threshold for theta
     public static final int kLidarShutdownTimeoutMs = 3000;
     public static final int kICPTimeoutMs = 100;
+    public static final int kLidarSubmapKeyframes = 5;         // recent keyframes merged into the submap
+    public static final double kLidarSubmapVoxelSize = 2.0;    // inches, submap downsampling cell
+    public static final double kLidarKeyframeDistance = 12.0;  // inches moved before a new keyframe
+    public static final double kLidarKeyframeAngle = Math.toRadians(10); // turn before a new keyframe
+    public static final int kLidarSubmapMaxRejections = 3;     // rejected fits in a row before re-anchoring
+    public static final int kICPWorkers = 4;          // threads in the shared ICP ForkJoinPool
+    public static final int kICPMinChunkSize = 64;    // min points per parallel ICP chunk
+    public static final boolean kICPPointToLine = false; // point-to-line rather than point-to-point
+    public static final double kICPNormalRadius = 6.0; // inches, neighborhood for point cloud normals
+    public static final double kICPInlierDistance = 2.0;  // inches, points this close to the reference are inliers
+    public static final double kICPMinInlierRatio = 0.5;  // fits with fewer inliers are rejected
+    public static final double kICPMaxResidual = 2.0;     // inches, fits with larger residuals are rejected
+    public static final boolean kLidarOdometrySeed = false;   // seed relative ICP with encoder motion
+    public static final boolean kLidarDeskew = false;         // correct scans for motion mid-scan
+    public static final double kLidarVoxelSize = 3.0;        // inches, min cell when culling scans
+    public static final boolean kLidarVoxelCentroid = false; // cull to cell centroids, else first points
+    public static final int kLidarICPMaxPoints = 360;        // culled scan budget, bounds ICP time
+    public static final boolean kLidarCorrelativeSeed = false;       // seed relative ICP by correlation
+    public static final double kLidarCorrelativeResolution = 2.0;   // inches per fine lookup cell
+    public static final int kLidarCorrelativeCoarseFactor = 4;      // fine cells per coarse cell
+    public static final double kLidarCorrelativeLinearWindow = 12.0; // inches searched either way
+    public static final double kLidarCorrelativeAngularWindow = Math.toRadians(20); // either way
+    public static final int kLidarCorrelativeMaxPoints = 180;       // scan decimated to this many
+    public static final boolean kLidarLineFeatures = false;   // match scan-to-scan by lines, else ICP
+    public static final double kLidarLineMaxGap = 10.0;      // inches between neighbouring points on a line
+    public static final double kLidarLineSplitDistance = 2.0; // inches off a line's fit that splits it
+    public static final int kLidarLineMinPoints = 6;         // fewer points don't make a line
+    public static final double kLidarLineMinLength = 12.0;   // inches, shorter lines are dropped
+    public static final double kLidarLineMatchDistance = 12.0; // inches between paired lines
+    public static final double kLidarLineMatchAngle = Math.toRadians(10); // between paired lines
+    public static final int kLidarLineMinPairs = 4;          // fewer paired lines falls back to ICP
+    public static final double kLidarDistanceFieldResolution = 1.0; // inches per cell
+    public static final double kLidarDistanceFieldMargin = 24.0;    // inches beyond the field model
+    public static final String kLidarDistanceFieldCache = Paths.get(
+      System.getProperty("user.home"), "/lidarfield.dat").toString();
 
 };
@@ -2,43 +2,38 @@ package com.spartronics4915.lib.lidar;
 
 import com.spartronics4915.lib.LibConstants;
 
+import com.spartronics4915.lib.lidar.icp.CorrelativeMatcher;
 import com.spartronics4915.lib.lidar.icp.ICP;
-import com.spartronics4915.lib.lidar.icp.Point;
+import com.spartronics4915.lib.lidar.icp.ICPResult;
+import com.spartronics4915.lib.lidar.icp.ICPStats;
 
 import com.spartronics4915.lib.lidar.icp.IReferenceModel;
 import com.spartronics4915.lib.lidar.icp.RelativeICPProcessor;
+import com.spartronics4915.lib.lidar.icp.SubmapICPProcessor;
 import com.spartronics4915.lib.lidar.icp.Transform;
+import com.spartronics4915.lib.lidar.icp.VoxelFilter;
 
 import com.spartronics4915.lib.util.ILoop;
 
-import com.spartronics4915.lib.geometry.Translation2d;
 import com.spartronics4915.lib.geometry.Twist2d;
 import com.spartronics4915.lib.geometry.Pose2d;
 import com.spartronics4915.lib.util.Logger;
+import com.spartronics4915.lib.util.PoseHistoryCursor;
 import com.spartronics4915.lib.util.RobotStateMap;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.DoubleSupplier;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.net.URI;
 import java.net.URISyntaxException;
 
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
-
 /**
  * Receives LIDAR points from the {@link LidarServer}, stores a set number of
  * scans/revolutions, and provides methods for processing the data.
@@ -49,51 +44,6 @@ import org.java_websocket.handshake.ServerHandshake;
  * @see doICP()
  * @see getTowerPosition()
  */
-
-class WSClient extends WebSocketClient
-{
-    private boolean isOpen;
-    public WSClient() throws URISyntaxException
-    {
-        //super(new URI("ws://192.168.1.10:5080/webapi/_publish_"));
-        super(new URI("ws://localhost:5080/webapi/_publish_"));
-        isOpen = false;
-    }
-
-    @Override
-    public void onOpen(ServerHandshake handshakedata)
-    {
-        Logger.info("WebSocket open");
-        isOpen = true;
-    }
-
-    @Override
-    public void onClose(int code,  String reason, boolean remote)
-    {
-        Logger.info("WebSocket close");
-        isOpen = false;
-    }
-
-    @Override
-    public void onError(Exception ex)
-    {
-        Logger.exception(ex);
-    }
-
-    @Override
-    public void onMessage(String message)
-    { // Logger.info("WebSocket message "  + message);
-    }
-
-    public void send(LidarScan scan)
-    {
-        if(isOpen)
-        {
-            this.send(scan.toJsonString());
-        }
-    }
-}
-
 public class LidarProcessor implements ILoop 
 {
     public enum RunMode
@@ -104,60 +54,76 @@ public class LidarProcessor implements ILoop
 
     enum OperatingMode
     {
-        kRelative,
+        kRelative, // scan-to-scan
+        kSubmap,   // scan-to-keyframe submap, less drift than kRelative
         kAbsolute
     };
 
-    private static boolean sDebugPoints = false;
+    private static boolean sDebugPoints = false; // record samples for LidarReplay
+    private static final long kProcessingParkNs = 100000000; // recheck mProcessing at 10hz
     private final Pose2d kVehicleToLidar;
 
     private LidarServer mLidarServer;
     private double mScanTime;
     private double mLastScanTime;
-    private double mScanTimeAccum;
-    private int mScanCount;
+    private volatile double mScanTimeAccum;
+    private volatile int mScanCount;
     private ICP mICP; 
     private RelativeICPProcessor mRelativeICP; 
-    private DataOutputStream mDataLogFile;
+    private SubmapICPProcessor mSubmapICP;
+    private boolean mCorrelativeSeed, mLineFeatures; // how the above were made
+    private volatile LidarRecorder mRecorder;
     private final ReadWriteLock mRWLock; 
-    private LinkedBlockingQueue<LidarScan> mScanQueue;
+    private final ScanRing mScanRing;
+    private volatile Thread mProcessingThread;
+    private volatile boolean mProcessing = false;
+    private double mLastStatsTime = Double.NEGATIVE_INFINITY;
+
+    // scan pipeline metrics, written by the reader and processing threads
+    private volatile long mDroppedScans = 0;
+    private volatile long mScansProcessed = 0;
+    private volatile double mLastLatency = 0; // seconds, first point to pose update
+    private volatile double mLatencyAccum = 0;
+    private volatile int mLatencyCount = 0;
+    private final ICPStats mICPStats = new ICPStats();
+    private final ArrayBlockingQueue<LidarScan> mFreeScans;
+    private final LidarScan mCulledScan = new LidarScan();
+    private final VoxelFilter mVoxelFilter = new VoxelFilter(LibConstants.kLidarVoxelSize,
+        LibConstants.kLidarVoxelCentroid ? VoxelFilter.Mode.kCentroid : VoxelFilter.Mode.kFirst);
+    private double[] mCullXs = new double[0], mCullYs = new double[0];
     private LidarScan mActiveScan;
     private final OperatingMode mMode = OperatingMode.kRelative;
     private WSClient mWSClient;
+    private ScanPublisher mPublisher;
     private IReferenceModel mReferenceModel;
     private RobotStateMap mEncoderStateMap;
     private RobotStateMap mLidarStateMap;
     private DoubleSupplier mTimeSupplier;
+    private volatile boolean mOdometrySeed;
+    private Pose2d mLastOdometryPose; // field to lidar at the previous scan
+    private Transform mPendingMotion; // relative motion through rejected scans
 
     // A scan is a collection of lidar points.  The scan, itself,
-    // has a timestamp as does each point.  Currently, the timestamp
-    // of each point is the same as scan, but this needn't be the case
-    // since a full scan requires 1/(5-10hz) seconds. The robot pose
-    // is tracked by the application/main and the position of the robot
-    // time a point is acquired by interpolating known robot poses to
-    // the requested time.  Since this operation is non-trivial and since
-    // we assume that multiple LidarPoints are acquired at the "same time",
-    // we employ a local cache that maps timestamp to robot pose.
-    private final static int MAX_ENTRIES = 10;
-    private final static LinkedHashMap<Double, Pose2d> sLidarPoseCache = 
-        new LinkedHashMap<Double, Pose2d>() 
-    {
-        private static final long serialVersionUID = 1L;
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Double, Pose2d> eldest)
-        {
-            return this.size() > MAX_ENTRIES;
-        }
-    };
+    // has a timestamp (its first point's) as does each point, and a
+    // full scan takes 1/(5-10hz) seconds, during which the robot moves.
+    // Points arrive in the lidar's frame at their own time; before ICP
+    // the processing thread de-skews them using the encoder poses at
+    // each point's timestamp, read in one pass through mPoseCursor.
+    private final PoseHistoryCursor mPoseCursor = new PoseHistoryCursor();
+    private volatile boolean mDeskew;
 
     public LidarProcessor(RunMode runMode, IReferenceModel refmodel,
         RobotStateMap encoderStateMap, RobotStateMap lidarStateMap, Pose2d vehicleToLidar, DoubleSupplier timeSupplier) 
     {
         Logger.debug("LidarProcessor starting...");
         mICP = new ICP(LibConstants.kICPTimeoutMs);
-        mScanQueue = new LinkedBlockingQueue<LidarScan>();
-        mRelativeICP = new RelativeICPProcessor(mICP);
+        mICP.parallelism = LibConstants.kICPWorkers;
+        mICP.pointToLine = LibConstants.kICPPointToLine;
+        mScanRing = new ScanRing(LibConstants.kLidarScanQueueSize);
+        mFreeScans = new ArrayBlockingQueue<LidarScan>(LibConstants.kLidarScanPoolSize);
+        mCorrelativeSeed = LibConstants.kLidarCorrelativeSeed;
+        mLineFeatures = LibConstants.kLidarLineFeatures;
+        newRelativeProcessors();
         mRWLock = new ReentrantReadWriteLock();
         mLidarServer = new LidarServer(this, timeSupplier);
         mScanTime = Double.NEGATIVE_INFINITY;
@@ -170,6 +136,8 @@ public class LidarProcessor implements ILoop
         mLidarStateMap = lidarStateMap; // This could be the same object as above
         mTimeSupplier = timeSupplier;
         kVehicleToLidar = vehicleToLidar;
+        setOdometrySeed(LibConstants.kLidarOdometrySeed);
+        setDeskew(LibConstants.kLidarDeskew);
 
         try 
         {
@@ -177,17 +145,13 @@ public class LidarProcessor implements ILoop
             {
                 mWSClient = new WSClient();
                 mWSClient.connect();
-            }
-            if(sDebugPoints)
-            {
-                mDataLogFile = new DataOutputStream(newLogFile());
-                // mDataLogFile = new DataOutputStream(new GZIPOutputStream(newLogFile()));
+                mPublisher = new ScanPublisher(mWSClient, LibConstants.kLidarPublishMaxRate,
+                                LibConstants.kLidarPublishDecimation,
+                                LibConstants.kLidarPublishQuantized ?
+                                    ScanPublisher.Encoding.kInt16Delta :
+                                    ScanPublisher.Encoding.kFloat32);
             }
         } 
-        catch (IOException e) 
-        {
-            Logger.exception(e);
-        }
         catch(URISyntaxException e)
         {
             Logger.exception(e);
@@ -202,12 +166,37 @@ public class LidarProcessor implements ILoop
     @Override
     public void onStart(double timestamp) 
     {
+        synchronized (this)
+        {
+            if (mProcessing)
+                return;
+            mProcessing = true;
+            mProcessingThread = new Thread(new ProcessingThread(), "LidarProcessing");
+            mProcessingThread.start();
+            if (mPublisher != null)
+                mPublisher.start();
+            if (sDebugPoints && mRecorder == null)
+            {
+                try
+                {
+                    mRecorder = new LidarRecorder(newLogFile());
+                    Logger.notice("Recording lidar to " + mRecorder.getFile());
+                }
+                catch (IOException e)
+                {
+                    Logger.exception(e);
+                }
+            }
+        }
     }
 
     @Override
     public void onLoop(double timestamp) 
     {
-        // we're called regularly (100hz) from the looper. 
+        // we're called regularly (100hz) from the looper and must never
+        // block: scans are processed on mProcessingThread, which adds
+        // its pose estimates to mLidarStateMap.  Here we only (re)start
+        // the server and publish pipeline metrics.
         if (timestamp - getScanStart() > LibConstants.kLidarRestartTime) 
         {
             if (!mLidarServer.isEnding() && !mLidarServer.isRunning() &&
@@ -221,41 +210,224 @@ public class LidarProcessor implements ILoop
                 }
             }
         }
-        if(mLidarServer.isRunning())
+        if (mLidarServer.isRunning() && 
+            timestamp - mLastStatsTime > LibConstants.kLidarStatsInterval)
+        {
+            mLastStatsTime = timestamp;
+            double scansPerSec = mScanCount/mScanTimeAccum;
+            // we might want to log this to SmartDashboard
+            Logger.notice("scan " + mScanCount + 
+                          " scansPerSec:"+ scansPerSec +
+                          " queueDepth:" + getQueueDepth() +
+                          " dropped:" + getDroppedScans() +
+                          " latency:" + getLastLatency() +
+                          " avgLatency:" + getAverageLatency() +
+                          " icp:[" + mICPStats + "]" +
+                          " bytesRead:" + mLidarServer.getBytesRead() +
+                          " lines:" + mLidarServer.getLinesParsed() +
+                          " parseErrors:" + mLidarServer.getParseErrors() +
+                          " blockedSecs:" + mLidarServer.getBlockedNanos() / 1e9);
+        }
+    }
+
+    @Override
+    public void onStop(double timestamp)
+    {
+        if (mLidarServer.isRunning())
+            mLidarServer.stop();
+        if (mPublisher != null)
+            mPublisher.stop();
+        LidarRecorder recorder = mRecorder; // the reader thread has stopped
+        mRecorder = null;
+        if (recorder != null)
+            recorder.close();
+        Thread thread;
+        synchronized (this)
         {
+            mProcessing = false;
+            thread = mProcessingThread;
+            mProcessingThread = null;
+        }
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
             try
             {
-                LidarScan scan = mScanQueue.take(); // consumer blocks
-                double scanTime = scan.getTimestamp();
-                if(mScanCount > 0)
-                    mScanTimeAccum += scanTime - mLastScanTime;
-                if(mScanCount%10 == 1)
-                {
-                    double scansPerSec = mScanCount/mScanTimeAccum;
-                    // we might want to log this to SmartDashboard
-                    Logger.notice("scan " + mScanCount + 
-                                  " npts:" + scan.getPoints().size() +
-                                  " scansPerSec:"+ scansPerSec);
-                }
-                mScanCount++;
-                mLastScanTime = scanTime;
-                this.processLidarScan(scan);
-                if(mWSClient != null)
-                    mWSClient.send(scan);
+                thread.join(LibConstants.kLidarShutdownTimeoutMs);
             }
-            catch(InterruptedException ie)
+            catch (InterruptedException e)
             {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    @Override
-    public void onStop(double timestamp)
+    public int getQueueDepth()
+    {
+        return mScanRing.size();
+    }
+
+    public long getDroppedScans()
     {
-        mLidarServer.stop();
+        return mDroppedScans;
     }
 
-    private void processLidarScan(LidarScan scan)
+    /**
+     * @return the number of scans the processing thread has finished with
+     */
+    public long getScansProcessed()
+    {
+        return mScansProcessed;
+    }
+
+    /**
+     * @return seconds from the first point of the most recent scan
+     *  to its pose update
+     */
+    public double getLastLatency()
+    {
+        return mLastLatency;
+    }
+
+    public double getAverageLatency()
+    {
+        int count = mLatencyCount;
+        return count == 0 ? 0 : mLatencyAccum / count;
+    }
+
+    /**
+     * Fits by point-to-line rather than point-to-point ICP, which
+     * converges in fewer iterations where the scene is mostly walls.
+     * Defaults to LibConstants.kICPPointToLine.  Call before onStart.
+     */
+    public void setPointToLine(boolean enabled)
+    {
+        mICP.pointToLine = enabled;
+    }
+
+    /**
+     * Seeds each relative fit with a correlative search around its guess,
+     * which recovers turns too fast for ICP to converge from the guess
+     * alone.  Defaults to LibConstants.kLidarCorrelativeSeed.  Call
+     * before onStart: this replaces the relative and submap processors.
+     */
+    public void setCorrelativeSeed(boolean enabled)
+    {
+        mCorrelativeSeed = enabled;
+        newRelativeProcessors();
+    }
+
+    /**
+     * Matches kRelative scans by their line segments where there are
+     * enough of them, falling back to ICP.  Defaults to
+     * LibConstants.kLidarLineFeatures.  Call before onStart: this
+     * replaces the relative processor.
+     */
+    public void setLineFeatures(boolean enabled)
+    {
+        mLineFeatures = enabled;
+        newRelativeProcessors();
+    }
+
+    private void newRelativeProcessors()
+    {
+        mRelativeICP = new RelativeICPProcessor(mICP,
+                                                mCorrelativeSeed ? new CorrelativeMatcher() : null,
+                                                mLineFeatures);
+        mSubmapICP = new SubmapICPProcessor(mICP, LibConstants.kLidarSubmapKeyframes,
+                                            LibConstants.kLidarSubmapVoxelSize,
+                                            mCorrelativeSeed ? new CorrelativeMatcher() : null,
+                                            LibConstants.kLidarSubmapMaxRejections);
+    }
+
+    /**
+     * Seeds relative ICP with the lidar's motion between scans according
+     * to the encoder state map, so that ICP only has to refine the
+     * odometry's error.  Ignored unless the encoder and lidar state maps
+     * are distinct (otherwise the "odometry" would be our own output).
+     * Takes effect from the next scan.
+     */
+    public void setOdometrySeed(boolean enabled)
+    {
+        mOdometrySeed = enabled && hasOdometry();
+    }
+
+    public boolean isOdometrySeeded()
+    {
+        return mOdometrySeed;
+    }
+
+    /**
+     * De-skews scans in the relative modes: moves each point to where it
+     * would have been seen from the lidar's pose at the start of the scan,
+     * according to the encoder state map.  As for setOdometrySeed, this
+     * needs independent odometry.  kAbsolute always places each point
+     * using the pose at its own timestamp.  Takes effect from the next scan.
+     */
+    public void setDeskew(boolean enabled)
+    {
+        mDeskew = enabled && hasOdometry();
+    }
+
+    public boolean isDeskewing()
+    {
+        return mDeskew;
+    }
+
+    private boolean hasOdometry()
+    {
+        return mEncoderStateMap != null && mEncoderStateMap != mLidarStateMap;
+    }
+
+    /**
+     * @return how ICP has fared on each scan: iterations, time, fit
+     *  quality and how many fits were rejected.  Safe to read from any
+     *  thread.
+     */
+    public ICPStats getICPStats()
+    {
+        return mICPStats;
+    }
+
+    private class ProcessingThread implements Runnable
+    {
+        // Consumes completed scans from mScanRing, parking while it is
+        // empty.  The reader thread unparks us as each scan completes.
+        @Override
+        public void run()
+        {
+            while (mProcessing)
+            {
+                LidarScan scan = mScanRing.poll();
+                if (scan == null)
+                {
+                    LockSupport.parkNanos(kProcessingParkNs);
+                    continue;
+                }
+                double scanTime = scan.getTimestamp();
+                if(mScanCount > 0)
+                    mScanTimeAccum += scanTime - mLastScanTime;
+                mScanCount++;
+                mLastScanTime = scanTime;
+                if (processLidarScan(scan))
+                {
+                    double latency = mTimeSupplier.getAsDouble() - scanTime;
+                    mLastLatency = latency;
+                    mLatencyAccum += latency;
+                    mLatencyCount++;
+                }
+                if(mPublisher != null)
+                    mPublisher.publish(scan);
+                recycleScan(scan);
+                mScansProcessed++;
+            }
+        }
+    }
+
+    /**
+     * @return true if the scan produced a pose update
+     */
+    private boolean processLidarScan(LidarScan scan)
     {
         try
         {
@@ -264,9 +436,44 @@ public class LidarProcessor implements ILoop
             double dt = scan.getTimestamp() - lastState.timestamp;
             Pose2d poseEstimate;
             Twist2d velPredicted, velMeasured;
-            if(mMode == OperatingMode.kRelative) // no reliance on Encoder
+            if(mMode != OperatingMode.kAbsolute) // no reliance on Encoder, unless seeding
             {
-                Transform xform = mRelativeICP.doRelativeICP(scan.getPoints());
+                if (mDeskew)
+                    deskewScan(scan, false);
+                LidarScan culled = getCulledPoints(scan);
+                Transform guess = getOdometryGuess(scan.getTimestamp());
+                Transform xform;
+                ICPResult result;
+                if (mMode == OperatingMode.kSubmap)
+                {
+                    xform = mSubmapICP.doRelativeICP(culled.getXs(), culled.getYs(),
+                                                     culled.size(), guess);
+                    result = mSubmapICP.getLastResult();
+                }
+                else
+                {
+                    xform = mRelativeICP.doRelativeICP(culled.getXs(), culled.getYs(),
+                                                       culled.size(), guess);
+                    result = mRelativeICP.getLastResult();
+                }
+                if (result != null) // null for the first scan, which just becomes the reference
+                {
+                    boolean accepted = result.isAcceptable();
+                    mICPStats.record(result, accepted);
+                    if (!accepted)
+                    {
+                        // the processor fell back to its guess; carry that
+                        // motion over to the next good fit rather than
+                        // publish a pose we don't trust.
+                        mPendingMotion = mPendingMotion == null ? xform : xform.apply(mPendingMotion);
+                        return false;
+                    }
+                }
+                if (xform != null && mPendingMotion != null)
+                {
+                    xform = xform.apply(mPendingMotion);
+                    mPendingMotion = null;
+                }
                 if(xform != null)
                 {
                     // XXX: is xform.inverse correct?
@@ -286,16 +493,22 @@ public class LidarProcessor implements ILoop
                 else
                 {
                     Logger.warning("Relative ICP returned a null transform!");
-                    return;
+                    return false;
                 }
             } 
             else
             {
                 // XXX: this needs validation
-                // XXX: need to invoke getFieldToLidar, not getFieldToVehicle
-                Transform xform = mICP.doICP(getCulledPoints(scan), 
+                deskewScan(scan, true);
+                LidarScan culled = getCulledPoints(scan);
+                ICPResult result = mICP.match(culled.getXs(), culled.getYs(), culled.size(),
                                 new Transform(lastPose).inverse(),  // ie: LidarToField
                                 mReferenceModel); // mReferenceMode in field coords
+                boolean accepted = result.isAcceptable();
+                mICPStats.record(result, accepted);
+                if (!accepted)
+                    return false; // the next scan starts from lastPose again
+                Transform xform = result.getTransform();
                 Twist2d fwdK = Pose2d.log(xform.inverse().toPose2d());
                 poseEstimate = lastPose.transformBy(Pose2d.exp(fwdK));
                 velMeasured = fwdK;
@@ -305,14 +518,88 @@ public class LidarProcessor implements ILoop
             }
             mLidarStateMap.addObservations(scan.getTimestamp(), 
                                 poseEstimate, velMeasured, velPredicted);
+            return true;
         }
         catch(Exception e)
         {
             Logger.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the lidar's motion since the previous scan according to
+     * the encoder state map, in the sense doRelativeICP returns it, or
+     * null if we aren't seeding or have no previous scan.
+     */
+    private Transform getOdometryGuess(double timestamp)
+    {
+        if (!mOdometrySeed)
+        {
+            mLastOdometryPose = null;
+            return null;
         }
+        Pose2d lidarPose = mEncoderStateMap.getFieldToVehicle(timestamp).transformBy(kVehicleToLidar);
+        Pose2d lastPose = mLastOdometryPose;
+        mLastOdometryPose = lidarPose;
+        if (lastPose == null)
+            return null;
+        return new Transform(lastPose.inverse().transformBy(lidarPose)).inverse();
     }
 
-    private static FileOutputStream newLogFile() throws IOException 
+    /**
+     * Corrects the scan's points for the robot's motion while it was
+     * taken: each point moves from the lidar's frame at its own timestamp
+     * to the field (toField) or to the lidar's frame at the first point's
+     * timestamp.  Poses are interpolated from the encoder state map.
+     *
+     * @return false if there was no pose history, leaving the scan as is
+     */
+    private boolean deskewScan(LidarScan scan, boolean toField)
+    {
+        final int n = scan.size();
+        if (n == 0)
+            return false;
+        final double[] xs = scan.getXs(), ys = scan.getYs(), ts = scan.getTimestamps();
+        final PoseHistoryCursor cursor = mPoseCursor;
+        cursor.load(mEncoderStateMap, ts[0], ts[n - 1]);
+        if (cursor.size() == 0)
+            return false;
+        final double lx = kVehicleToLidar.getTranslation().x();
+        final double ly = kVehicleToLidar.getTranslation().y();
+        final double lcos = kVehicleToLidar.getRotation().cos();
+        final double lsin = kVehicleToLidar.getRotation().sin();
+
+        // the frame we move points into, relative to the field
+        double rx = 0, ry = 0, rcos = 1, rsin = 0;
+        if (!toField)
+        {
+            cursor.seek(ts[0]);
+            final double c = Math.cos(cursor.getTheta()), s = Math.sin(cursor.getTheta());
+            rx = cursor.getX() + c * lx - s * ly;
+            ry = cursor.getY() + s * lx + c * ly;
+            rcos = c * lcos - s * lsin;
+            rsin = s * lcos + c * lsin;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            // field to lidar at the point's time
+            cursor.seek(ts[i]);
+            final double c = Math.cos(cursor.getTheta()), s = Math.sin(cursor.getTheta());
+            final double px = cursor.getX() + c * lx - s * ly;
+            final double py = cursor.getY() + s * lx + c * ly;
+            final double pcos = c * lcos - s * lsin, psin = s * lcos + c * lsin;
+            final double fx = px + xs[i] * pcos - ys[i] * psin;
+            final double fy = py + xs[i] * psin + ys[i] * pcos;
+            // then from the field into the reference frame
+            final double dx = fx - rx, dy = fy - ry;
+            xs[i] = dx * rcos + dy * rsin;
+            ys[i] = -dx * rsin + dy * rcos;
+        }
+        return true;
+    }
+
+    private static File newLogFile() throws IOException 
     {
         // delete old files if we're over the limit
         File logDir = new File(LibConstants.kLidarLogDir);
@@ -329,75 +616,78 @@ public class LidarProcessor implements ILoop
 
         // create the new file and return
         String dateStr = new SimpleDateFormat("MM-dd-HH_mm_ss").format(new Date());
-        File newFile = new File(logDir, "lidarLog-" + dateStr + ".dat");
-        newFile.createNewFile();
-        return new FileOutputStream(newFile, false);
-    }
-
-    // logPoint is invoked from 
-    private void logPoint(double angle, double dist, double x, double y)
-    {
-        try 
-        {
-            if(mDataLogFile != null)
-            {
-                mDataLogFile.writeInt((int) (angle * 100));
-                mDataLogFile.writeInt((int) (dist * 256));
-                mDataLogFile.writeInt((int) (x * 256));
-                mDataLogFile.writeInt((int) (y * 256));
-            }
-        } 
-        catch (IOException e)
-        {
-            e.printStackTrace();
-        }
+        return new File(logDir, "lidarLog-" + dateStr + ".dat");
     }
 
-    // addPoint is invoked from LidarServer::handleLine via the ReaderThread.
-    // logging is only invoked from this thread, but scan data is accessed
-    // asynchronously from the main thread (which, for example, performs
-    // ICP matching). This accounts for the use of our read-write lock on the
-    // scan data.  Any changes to mScans or an individual scan should
-    // be guarded by this lock.
+    // addPoint is invoked from LidarServer::handleLine via the ReaderThread,
+    // the only thread that touches mActiveScan or records.  When a scan
+    // completes it's handed to mProcessingThread through mScanRing (the
+    // ring, not a lock, is what publishes it) and the reader starts
+    // filling a fresh scan from mFreeScans.  The processing thread owns a
+    // scan from the time it polls it until it returns it to mFreeScans,
+    // as the reader does with any scan the ring drops, so no per-point
+    // allocation occurs here in steady state.  mRWLock only guards
+    // mScanTime.
     public void addPoint(double ts, double angle, double dist, 
                                       boolean newScan) 
     {
-
-        // transform by the robot's pose
-        Pose2d robotLoc = null;
-        if(this.mMode == OperatingMode.kAbsolute)
-        {
-            Pose2d robotPose = null;
-            if (sLidarPoseCache.containsKey(ts)) 
-            {
-                robotPose = sLidarPoseCache.get(ts);
-            } 
-            else
-            {
-                // This is to correct for time smear
-                robotPose = mEncoderStateMap.getFieldToVehicle(ts).transformBy(kVehicleToLidar);
-                if(robotPose != null)
-                    sLidarPoseCache.put(ts, robotPose);
-            }
-            robotLoc = robotPose;
-        }
-        LidarPoint lpt = new LidarPoint(ts, angle, dist); 
-        Translation2d cartesian = lpt.toCartesian(robotLoc);
-        logPoint(lpt.angle, lpt.distance, cartesian.x(), cartesian.y());
+        LidarRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.record(ts, angle, dist, newScan);
+
+        // convert the polar coords to cartesian coords, in the lidar's
+        // frame at ts; the processing thread accounts for robot motion.
+        double range = dist * LidarPoint.MM_TO_IN;
+        double radians = Math.toRadians(angle);
+        double x = Math.cos(radians) * range;
+        double y = Math.sin(radians) * range;
         if (newScan || mActiveScan == null) 
         { 
             if(mActiveScan != null)
-                mScanQueue.add(mActiveScan); // <- send it to consumer
+            {
+                // send it to the consumer, recycling the oldest
+                // unprocessed scan if it has fallen behind
+                LidarScan dropped = mScanRing.offer(mActiveScan);
+                if (dropped != null)
+                {
+                    mDroppedScans++;
+                    recycleScan(dropped);
+                }
+                Thread consumer = mProcessingThread;
+                if (consumer != null)
+                    LockSupport.unpark(consumer);
+            }
 
-            mActiveScan  = new LidarScan();
+            mActiveScan = obtainScan();
             startNewScan(mTimeSupplier.getAsDouble());
         }
-        if (!excludePoint(cartesian.x(), cartesian.y())) 
+        if (!excludePoint(x, y)) 
         {
-            mActiveScan.addPoint(new Point(cartesian), lpt.timestamp);
+            mActiveScan.addPoint(x, y, ts, angle, range);
         }
     }
 
+    /**
+     * Returns an empty scan, recycled from the pool when possible.
+     */
+    private LidarScan obtainScan()
+    {
+        LidarScan scan = mFreeScans.poll();
+        if (scan == null)
+            return new LidarScan();
+        scan.clear();
+        return scan;
+    }
+
+    /**
+     * Returns a scan to the pool once the consumer is done with it.
+     * If the pool is full the scan is left to the garbage collector.
+     */
+    private void recycleScan(LidarScan scan)
+    {
+        mFreeScans.offer(scan);
+    }
+
     // TODO: Pass this from frc2019.Constants
     private static final double FIELD_WIDTH = 27 * 12, FIELD_HEIGHT = 54 * 12;
     private static final double RECT_RX = FIELD_WIDTH / 5, RECT_RY = FIELD_HEIGHT / 2;
@@ -411,35 +701,29 @@ public class LidarProcessor implements ILoop
         // return x < RECT_X_MIN || x > RECT_X_MAX || y < RECT_Y_MIN || y > RECT_Y_MAX;
     }
 
-    private static final double BUCKET_SIZE = 3.0; // inches
-
-    /**
-     * Cantor pairing function (to bucket & hash two doubles)
-     * converts two integers into one; used as a hash key
-     */
-    private int getBucket(double x, double y)
-    {
-        int ix = (int) (x / BUCKET_SIZE);
-        int iy = (int) (y / BUCKET_SIZE);
-        int a = ix >= 0 ? 2 * ix : -2 * ix - 1;
-        int b = iy >= 0 ? 2 * iy : -2 * iy - 1;
-        int sum = a + b;
-        return sum * (sum + 1) / 2 + a;
-    }
-
     /**
-     * Returns a list of points that have been thinned roughly uniformly.
+     * Returns the scan's points thinned to one per voxel, with voxels
+     * enlarged as needed to keep within kLidarICPMaxPoints.  The result
+     * is a reused scan, valid until the next call.
      */
-    private ArrayList<Point> getCulledPoints(LidarScan scan)
+    private LidarScan getCulledPoints(LidarScan scan)
     {
-        ArrayList<Point> list = new ArrayList<>();
-        HashSet<Integer> buckets = new HashSet<>();
-        for (Point p : scan.getPoints())
+        final int n = scan.size();
+        if (mCullXs.length < n)
+        {
+            mCullXs = new double[n];
+            mCullYs = new double[n];
+        }
+        int count = mVoxelFilter.filterToBudget(scan.getXs(), scan.getYs(), n,
+                                LibConstants.kLidarICPMaxPoints, mCullXs, mCullYs);
+        mCulledScan.clear();
+        for (int k = 0; k < count; k++)
         {
-            if (buckets.add(getBucket(p.x, p.y)))
-                list.add(p);
+            int i = mVoxelFilter.getSourceIndex(k);
+            mCulledScan.addPoint(mCullXs[k], mCullYs[k], scan.getPointTimestamp(i),
+                                 scan.getAngle(i), scan.getRange(i));
         }
-        return list;
+        return mCulledScan;
     }
 
     public void startNewScan(double time) 
@@ -0,0 +1,153 @@
+package com.spartronics4915.lib.lidar;
+
+import com.spartronics4915.lib.LibConstants;
+import com.spartronics4915.lib.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records raw lidar samples to an append-only, memory-mapped binary
+ * file which {@link LidarReplay} can feed back through a
+ * {@link LidarProcessor}.
+ * <p>
+ * Recording a sample is a handful of stores into a mapped page; the
+ * OS writes pages back asynchronously, so the reader thread never
+ * blocks on file I/O.  The file grows in chunks of
+ * kLidarRecordingChunkRecords records, each mapped as it's needed.
+ * All values are little-endian:
+ * <pre>
+ *   header (kHeaderSize bytes):
+ *     int32   kMagic
+ *     int32   kVersion
+ *     int32   kRecordSize
+ *     int32   reserved
+ *     int64   record count (updated at each scan boundary and on close)
+ *     int64   creation time (ms since the Unix epoch)
+ *   records (kRecordSize bytes each):
+ *     float64 timestamp (seconds, in the LidarProcessor's time base)
+ *     float32 angle (degrees)
+ *     float32 distance (mm)
+ *     int32   flags (bit 0: first point of a new scan)
+ * </pre>
+ * Since the count is only published at scan boundaries, a recording
+ * cut short by a crash remains readable up to its last complete scan.
+ * Not thread-safe: record() must only be called from one thread.
+ */
+public class LidarRecorder
+{
+    public static final int kMagic = 0x5244494c; // "LIDR"
+    public static final int kVersion = 1;
+    public static final int kHeaderSize = 32;
+    public static final int kRecordSize = 20;
+    public static final int kNewScanFlag = 0x1;
+    static final int kCountOffset = 16;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private final long mChunkBytes;
+    private MappedByteBuffer mChunk;
+    private int mNumChunks = 0;
+    private long mCount = 0;
+    private boolean mFailed = false;
+
+    public LidarRecorder(File file) throws IOException
+    {
+        this(file, LibConstants.kLidarRecordingChunkRecords);
+    }
+
+    public LidarRecorder(File file, int chunkRecords) throws IOException
+    {
+        mFile = file;
+        mChunkBytes = (long) chunkRecords * kRecordSize;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, kHeaderSize);
+        mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        mHeader.putInt(0, kMagic);
+        mHeader.putInt(4, kVersion);
+        mHeader.putInt(8, kRecordSize);
+        mHeader.putInt(12, 0);
+        mHeader.putLong(kCountOffset, 0);
+        mHeader.putLong(24, System.currentTimeMillis());
+        nextChunk();
+    }
+
+    private void nextChunk() throws IOException
+    {
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE,
+                    kHeaderSize + mNumChunks * mChunkBytes, mChunkBytes);
+        mChunk.order(ByteOrder.LITTLE_ENDIAN);
+        mNumChunks++;
+    }
+
+    public File getFile()
+    {
+        return mFile;
+    }
+
+    /**
+     * @return the number of samples recorded so far
+     */
+    public long getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * Appends one sample.  After an I/O error (e.g. the disk is full)
+     * the error is logged once and further samples are ignored.
+     */
+    public void record(double ts, double angle, double distance, boolean newScan)
+    {
+        if (mFailed)
+            return;
+        if (!mChunk.hasRemaining())
+        {
+            try
+            {
+                nextChunk();
+            }
+            catch (IOException e)
+            {
+                Logger.exception(e);
+                Logger.error("LidarRecorder stopped at " + mCount + " samples");
+                mFailed = true;
+                return;
+            }
+        }
+        if (newScan)
+            mHeader.putLong(kCountOffset, mCount); // everything before this scan
+        mChunk.putDouble(ts);
+        mChunk.putFloat((float) angle);
+        mChunk.putFloat((float) distance);
+        mChunk.putInt(newScan ? kNewScanFlag : 0);
+        mCount++;
+    }
+
+    /**
+     * Publishes the final count and trims the unused tail of the
+     * last chunk.
+     */
+    public void close()
+    {
+        mHeader.putLong(kCountOffset, mCount);
+        mChunk = null;
+        try
+        {
+            mHeader.force();
+            mChannel.truncate(kHeaderSize + mCount * kRecordSize);
+            mChannel.close();
+        }
+        catch (IOException e)
+        {
+            Logger.exception(e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.spartronics4915.lib.lidar;
+
+import com.spartronics4915.lib.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a {@link LidarRecorder} recording through a
+ * {@link LidarProcessor}, so that the scan pipeline can be
+ * benchmarked and regression-tested without a lidar.
+ * <p>
+ * Samples are handed to LidarProcessor.addPoint on the calling
+ * thread, standing in for the LidarServer reader thread.  The
+ * processor should be constructed with {@link #getTime} as its time
+ * supplier so that it sees the recording's clock:
+ * <ul>
+ * <li>kRealTime paces samples by their recorded timestamps.  As on the
+ * robot, scans may be dropped if processing falls behind.</li>
+ * <li>kUnthrottled waits only for the processor to finish each scan
+ * before handing over the next, so nothing is dropped and the result
+ * is deterministic.  Elapsed time is then pure processing time.</li>
+ * </ul>
+ */
+public class LidarReplay
+{
+    public enum Speed
+    {
+        kRealTime,
+        kUnthrottled
+    };
+
+    private static final long kPollNs = 20000; // lockstep wait granularity
+
+    private final ByteBuffer mRecords;
+    private final int mCount;
+    private volatile double mTime;
+    private long mScansFed, mElapsedNs;
+
+    public LidarReplay(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.limit() < LidarRecorder.kHeaderSize ||
+                buf.getInt(0) != LidarRecorder.kMagic ||
+                buf.getInt(4) != LidarRecorder.kVersion ||
+                buf.getInt(8) != LidarRecorder.kRecordSize)
+            {
+                throw new IOException(file + " is not a lidar recording");
+            }
+            long count = Math.min(buf.getLong(LidarRecorder.kCountOffset),
+                            (buf.limit() - LidarRecorder.kHeaderSize) / LidarRecorder.kRecordSize);
+            mCount = (int) count;
+            buf.position(LidarRecorder.kHeaderSize);
+            mRecords = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mTime = mCount > 0 ? getTimestamp(0) : 0;
+    }
+
+    public int size()
+    {
+        return mCount;
+    }
+
+    public double getTimestamp(int i)
+    {
+        return mRecords.getDouble(i * LidarRecorder.kRecordSize);
+    }
+
+    public double getAngle(int i)
+    {
+        return mRecords.getFloat(i * LidarRecorder.kRecordSize + 8);
+    }
+
+    public double getDistance(int i)
+    {
+        return mRecords.getFloat(i * LidarRecorder.kRecordSize + 12);
+    }
+
+    public boolean isNewScan(int i)
+    {
+        return (mRecords.getInt(i * LidarRecorder.kRecordSize + 16) & LidarRecorder.kNewScanFlag) != 0;
+    }
+
+    /**
+     * The replay clock, suitable as LidarProcessor's time supplier.
+     * In kRealTime mode this advances with the wall clock, otherwise
+     * it is the timestamp of the latest sample.
+     */
+    public double getTime()
+    {
+        return mTime;
+    }
+
+    /**
+     * @return the number of complete scans handed to the processor
+     *  by the last run
+     */
+    public long getScansFed()
+    {
+        return mScansFed;
+    }
+
+    public long getElapsedNanos()
+    {
+        return mElapsedNs;
+    }
+
+    /**
+     * Replays the whole recording into processor, starting its
+     * processing thread and stopping it once the last scan is done
+     * (or, in kRealTime mode, once the recording ends).
+     */
+    public void run(LidarProcessor processor, Speed speed)
+    {
+        long startNs = System.nanoTime();
+        double startTs = mCount > 0 ? getTimestamp(0) : 0;
+        long doneBefore = processor.getScansProcessed() + processor.getDroppedScans();
+        mTime = startTs;
+        mScansFed = 0;
+        processor.onStart(mTime);
+        for (int i = 0; i < mCount; i++)
+        {
+            double ts = getTimestamp(i);
+            boolean newScan = isNewScan(i);
+            if (speed == Speed.kRealTime)
+            {
+                long dueNs = startNs + (long) ((ts - startTs) * 1e9);
+                long waitNs;
+                while ((waitNs = dueNs - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(waitNs);
+                mTime = startTs + (System.nanoTime() - startNs) / 1e9;
+            }
+            else
+            {
+                if (newScan && i > 0)
+                    awaitScans(processor, doneBefore + mScansFed);
+                mTime = ts;
+            }
+            processor.addPoint(ts, getAngle(i), getDistance(i), newScan);
+            if (newScan && i > 0)
+                mScansFed++;
+        }
+        if (speed == Speed.kUnthrottled)
+            awaitScans(processor, doneBefore + mScansFed);
+        mElapsedNs = System.nanoTime() - startNs;
+        processor.onStop(mTime);
+        Logger.notice("LidarReplay: " + mCount + " samples, " + mScansFed + " scans in " +
+                      mElapsedNs / 1e9 + "s (" + mScansFed * 1e9 / Math.max(1, mElapsedNs) +
+                      " scans/s), dropped:" + processor.getDroppedScans());
+    }
+
+    private static void awaitScans(LidarProcessor processor, long count)
+    {
+        while (processor.getScansProcessed() + processor.getDroppedScans() < count)
+            LockSupport.parkNanos(kPollNs);
+    }
+}
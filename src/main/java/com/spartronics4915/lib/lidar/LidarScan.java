@@ -2,54 +2,134 @@ package com.spartronics4915.lib.lidar;
 
 import com.spartronics4915.lib.LibConstants;
 import com.spartronics4915.lib.lidar.icp.Point;
-import java.text.NumberFormat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Holds a single 360 degree scan from the lidar.  The timestamp
  * for the scan is that of the first point.
+ * <p>
+ * Points are stored as parallel primitive arrays (x, y, timestamp,
+ * angle, range) so that scans can be filled, consumed and recycled
+ * without allocating per point.  The arrays returned by getXs() etc.
+ * are only valid up to size().  Angles are in degrees, ranges and
+ * coordinates in inches.
  */
-public class LidarScan 
+public class LidarScan
 {
-    private ArrayList<Point> mPoints = new ArrayList<>(LibConstants.kLidarScanSize);
+    private double[] mXs, mYs, mTimestamps, mAngles, mRanges;
+    private int mSize = 0;
     private double mTimestamp = 0;
 
     public LidarScan()
     {
+        this(LibConstants.kLidarScanSize);
     }
 
-    public String toJsonString() 
+    public LidarScan(int capacity)
     {
-        String json = "{\"class\":\"lidarscan\"" + 
-                    ", \"timestamp\": " + mTimestamp + 
-                    ", \"pt2list\": [";
-        int i = 0;
-        NumberFormat fmt = NumberFormat.getInstance();
-        for (Point point : mPoints)
+        mXs = new double[capacity];
+        mYs = new double[capacity];
+        mTimestamps = new double[capacity];
+        mAngles = new double[capacity];
+        mRanges = new double[capacity];
+    }
+
+    /**
+     * Empties the scan, retaining its buffers for reuse.
+     */
+    public void clear()
+    {
+        mSize = 0;
+        mTimestamp = 0;
+    }
+
+    public String toJsonString()
+    {
+        StringBuilder json = new StringBuilder(64 + 20 * mSize);
+        json.append("{\"class\":\"lidarscan\"")
+            .append(", \"timestamp\": ").append(mTimestamp)
+            .append(", \"pt2list\": [");
+        for (int i = 0; i < mSize; i++)
         {
-            // json += "{\"x\":" + point.x + ", \"y\":" + point.y + "},";
-            if(i++ > 0)
-                json += ",";
-            json += String.format("[%.3f,%.3f]", point.x, point.y);
+            if(i > 0)
+                json.append(',');
+            json.append('[').append(Math.round(mXs[i] * 1000) / 1000.0)
+                .append(',').append(Math.round(mYs[i] * 1000) / 1000.0)
+                .append(']');
         }
-        json += "]}";
-        return json;
+        json.append("]}");
+        return json.toString();
     }
 
     public String toString()
     {
-        String s = "";
-        for (Point point : mPoints) 
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < mSize; i++)
         {
-            s += "x: " + point.x + ", y: " + point.y + "\n";
+            s.append("x: ").append(mXs[i]).append(", y: ").append(mYs[i]).append("\n");
         }
-        return s;
+        return s.toString();
     }
 
+    /**
+     * Returns a copy of this scan's points.  This allocates a Point per
+     * sample; prefer getXs()/getYs() on the hot path.
+     */
     public ArrayList<Point> getPoints()
     {
-        return mPoints;
+        ArrayList<Point> points = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++)
+        {
+            points.add(new Point(mXs[i], mYs[i]));
+        }
+        return points;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public double getX(int i)
+    {
+        return mXs[i];
+    }
+
+    public double getY(int i)
+    {
+        return mYs[i];
+    }
+
+    public double getPointTimestamp(int i)
+    {
+        return mTimestamps[i];
+    }
+
+    public double getAngle(int i)
+    {
+        return mAngles[i];
+    }
+
+    public double getRange(int i)
+    {
+        return mRanges[i];
+    }
+
+    public double[] getXs()
+    {
+        return mXs;
+    }
+
+    public double[] getYs()
+    {
+        return mYs;
+    }
+
+    public double[] getTimestamps()
+    {
+        return mTimestamps;
     }
 
     public double getTimestamp()
@@ -58,9 +138,33 @@ public class LidarScan
     }
 
     public void addPoint(Point point, double time)
+    {
+        addPoint(point.x, point.y, time,
+                 Math.toDegrees(Math.atan2(point.y, point.x)),
+                 Math.hypot(point.x, point.y));
+    }
+
+    public void addPoint(double x, double y, double time, double angle, double range)
     {
         if (mTimestamp == 0)
             mTimestamp = time;
-        mPoints.add(point);
+        if (mSize == mXs.length)
+            grow();
+        mXs[mSize] = x;
+        mYs[mSize] = y;
+        mTimestamps[mSize] = time;
+        mAngles[mSize] = angle;
+        mRanges[mSize] = range;
+        mSize++;
+    }
+
+    private void grow()
+    {
+        int capacity = Math.max(16, 2 * mXs.length);
+        mXs = Arrays.copyOf(mXs, capacity);
+        mYs = Arrays.copyOf(mYs, capacity);
+        mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        mAngles = Arrays.copyOf(mAngles, capacity);
+        mRanges = Arrays.copyOf(mRanges, capacity);
     }
 }
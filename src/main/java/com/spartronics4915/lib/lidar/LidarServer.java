@@ -7,6 +7,11 @@ import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 import java.util.function.DoubleSupplier;
 import java.io.File;
@@ -17,13 +22,46 @@ import java.io.File;
  * <p>
  * Once started, a separate thread reads the stdout of the
  * <code>chezy_lidar</code> process and parses the (angle, distance)
- * values in each line. Each resulting {@link LidarPoint} is passed
+ * values in each line. Each resulting point is passed
  * to {@link LidarProcessor.addPoint(...)}.
+ * <p>
+ * By default the process output is read through an NIO channel into a
+ * reusable ByteBuffer and parsed in place, without allocating per
+ * sample.  The output may either be the original text format
+ * (<code>timestamp,angle,distance[s]\n</code>) or, when the driver is
+ * started with {@link #kBinaryFlag}, fixed-width little-endian records:
+ * <pre>
+ *   int64   timestamp (ms since the Unix epoch)
+ *   float32 angle (degrees)
+ *   float32 distance (mm)
+ *   int32   flags (bit 0: first point of a new scan)
+ * </pre>
+ * The original BufferedReader text path remains as a fallback.
  */
 public class LidarServer 
 {
+    public enum InputFormat
+    {
+        kBufferedText, // BufferedReader.readLine, allocates per sample
+        kText,         // NIO, text format parsed in place
+        kBinary        // NIO, fixed-width binary records
+    };
+
+    public static final String kBinaryFlag = "--binary";
+    public static final int kBinaryRecordSize = 20;
+    private static final int kBinaryNewScanFlag = 0x1;
+    private static final int kReadBufferSize = 8192;
+    private static final double[] kPowersOf10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     private final LidarProcessor mLidarProcessor;
+    private final InputFormat mInputFormat;
     private static BufferedReader mBufferedReader;
+    private ReadableByteChannel mChannel;
+    private final ByteBuffer mReadBuffer;
+    private int mParseEnd; // set by parseDouble/parseLong
     private boolean mRunning = false;
     private Thread mThread;
     private Process mProcess;
@@ -31,10 +69,23 @@ public class LidarServer
     private File mDevFile;
     private DoubleSupplier mTimeSupplier = null;
 
+    // reader statistics: written only by the ReaderThread
+    private volatile long mBytesRead = 0;
+    private volatile long mLinesParsed = 0; // or binary records
+    private volatile long mParseErrors = 0;
+    private volatile long mBlockedNs = 0;
+
     public LidarServer(LidarProcessor p, DoubleSupplier timeSupplier)
+    {
+        this(p, timeSupplier, InputFormat.kText);
+    }
+
+    public LidarServer(LidarProcessor p, DoubleSupplier timeSupplier, InputFormat format)
     {
         mLidarProcessor = p;
         mTimeSupplier = timeSupplier;
+        mInputFormat = format;
+        mReadBuffer = ByteBuffer.allocate(kReadBufferSize).order(ByteOrder.LITTLE_ENDIAN);
         String os = System.getProperty("os.name").toLowerCase();
         String dev;
         if(os.indexOf("mac") >= 0)
@@ -85,15 +136,31 @@ public class LidarServer
         Logger.notice("LidarServer starting subprocess " + LibConstants.kLidarDriverPath);
         try
         {
-            mProcess = new ProcessBuilder().command(LibConstants.kLidarDriverPath).start();
+            if (mInputFormat == InputFormat.kBinary)
+                mProcess = new ProcessBuilder().command(LibConstants.kLidarDriverPath, kBinaryFlag).start();
+            else
+                mProcess = new ProcessBuilder().command(LibConstants.kLidarDriverPath).start();
             mThread = new Thread(new ReaderThread());
-            InputStreamReader reader = new InputStreamReader(mProcess.getInputStream());
-            mBufferedReader = new BufferedReader(reader);
+            if (mInputFormat == InputFormat.kBufferedText)
+            {
+                InputStreamReader reader = new InputStreamReader(mProcess.getInputStream());
+                mBufferedReader = new BufferedReader(reader);
+            }
+            else
+            {
+                mChannel = Channels.newChannel(mProcess.getInputStream());
+                mReadBuffer.clear();
+            }
             mThread.start();
         } 
         catch (Exception e)
         {
             Logger.exception(e);
+            synchronized (this)
+            {
+                mRunning = false;
+            }
+            return false;
         }
         return true;
     }
@@ -119,7 +186,11 @@ public class LidarServer
             // https://hg.openjdk.java.net/jdk/jdk11/file/1ddf9a99e4ad/src/java.base/unix/native/libjava/ProcessHandleImpl_unix.c#l313
             mProcess.destroy();
             mProcess.waitFor(LibConstants.kLidarShutdownTimeoutMs, TimeUnit.MILLISECONDS);
-            mThread.join();
+            // the process' exit closes its stdout, which ends a blocked read.
+            // Interrupting also closes the channel, in case the pipe lingers.
+            mThread.interrupt();
+            if (Thread.currentThread() != mThread)
+                mThread.join(LibConstants.kLidarShutdownTimeoutMs);
         }
         catch (Exception e) 
         {
@@ -149,6 +220,55 @@ public class LidarServer
         return mEnding;
     }
 
+    public long getBytesRead()
+    {
+        return mBytesRead;
+    }
+
+    /**
+     * @return the number of text lines (or binary records) parsed as points
+     */
+    public long getLinesParsed()
+    {
+        return mLinesParsed;
+    }
+
+    public long getParseErrors()
+    {
+        return mParseErrors;
+    }
+
+    /**
+     * @return total time the reader has spent blocked waiting for input
+     */
+    public long getBlockedNanos()
+    {
+        return mBlockedNs;
+    }
+
+    /**
+     * Invoked by the ReaderThread when the driver's output ends without
+     * a stop().  We mark ourselves not running (without joining, since
+     * we're on the thread in question) so that LidarProcessor.onLoop
+     * restarts the driver after kLidarRestartTime.
+     */
+    private void handleEOF()
+    {
+        Process process;
+        synchronized (this)
+        {
+            if (!mRunning)
+                return;
+            mRunning = false;
+            process = mProcess;
+        }
+        process.destroy();
+        if (!isLidarConnected())
+            Logger.error("Lidar sensor disconnected");
+        else
+            Logger.warning("chezy_lidar output ended, awaiting restart");
+    }
+
     private void handleLine(String line) 
     {
         // NB: this method is invoked in the ReaderThread.
@@ -162,70 +282,245 @@ public class LidarServer
         {
             try 
             {
-                // If we're running in standalone test mode (e.g. not
-                // on a RoboRIO) then we don't need to modify the "epoch"
-                // of the recieved timestamp, because the recieved timestamp
-                // and all our other internal timestamps have the same epoch
-                // (January 1, 1970, the Unix epoch). If we are running on
-                // the RoboRIO we use getFPGATimestamp, instead of currentTimeMillis.
-                // The FGPA timestamp's epoch is robot start, so we have to convert
-                // ts to this epoch if we're not in test mode.
-
-                // It is assumed that ts is in sync with our system's clock
                 long ts = Long.parseLong(parts[0]);
-                // All timestamps are stored in seconds, so we have to convert
-                double secsAgo = (System.currentTimeMillis() - ts) / 1000d;
-                double normalizedTs = mTimeSupplier.getAsDouble() - secsAgo;
-
                 double angle = Double.parseDouble(parts[1]);
                 double distance = Double.parseDouble(parts[2]);
-                if (distance != 0 || isNewScan)
-                {
-                    mLidarProcessor.addPoint(normalizedTs, angle, distance, isNewScan);
-                }
+                mLinesParsed++;
+                handlePoint(ts, angle, distance, isNewScan);
             } 
             catch (java.lang.NumberFormatException e)
             {
+                mParseErrors++;
                 Logger.exception(e);
             }
         }
         else
+        {
+            mParseErrors++;
             Logger.debug(line);
+        }
+    }
+
+    private void handlePoint(long ts, double angle, double distance, boolean isNewScan)
+    {
+        // If we're running in standalone test mode (e.g. not
+        // on a RoboRIO) then we don't need to modify the "epoch"
+        // of the recieved timestamp, because the recieved timestamp
+        // and all our other internal timestamps have the same epoch
+        // (January 1, 1970, the Unix epoch). If we are running on
+        // the RoboRIO we use getFPGATimestamp, instead of currentTimeMillis.
+        // The FGPA timestamp's epoch is robot start, so we have to convert
+        // ts to this epoch if we're not in test mode.
+
+        // It is assumed that ts is in sync with our system's clock
+        // All timestamps are stored in seconds, so we have to convert
+        double secsAgo = (System.currentTimeMillis() - ts) / 1000d;
+        double normalizedTs = mTimeSupplier.getAsDouble() - secsAgo;
+        if (distance != 0 || isNewScan)
+        {
+            mLidarProcessor.addPoint(normalizedTs, angle, distance, isNewScan);
+        }
+    }
+
+    /**
+     * Parses every complete record in buf (which is in read mode), leaving
+     * any trailing partial record for the next read.
+     */
+    void handleBuffer(ByteBuffer buf)
+    {
+        if (mInputFormat == InputFormat.kBinary)
+        {
+            while (buf.remaining() >= kBinaryRecordSize)
+            {
+                long ts = buf.getLong();
+                double angle = buf.getFloat();
+                double distance = buf.getFloat();
+                int flags = buf.getInt();
+                mLinesParsed++;
+                handlePoint(ts, angle, distance, (flags & kBinaryNewScanFlag) != 0);
+            }
+            return;
+        }
+
+        final byte[] bytes = buf.array();
+        final int end = buf.arrayOffset() + buf.limit();
+        int start = buf.arrayOffset() + buf.position();
+        for (int i = start; i < end; i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                handleTextLine(bytes, start, i);
+                start = i + 1;
+            }
+        }
+        buf.position(start - buf.arrayOffset());
+        // a "line" that fills the whole buffer can never complete: discard it
+        if (buf.position() == 0 && buf.limit() == buf.capacity())
+        {
+            mParseErrors++;
+            Logger.warning("LidarServer discarding overlong line");
+            buf.position(buf.limit());
+        }
+    }
+
+    /**
+     * Parses <code>timestamp,angle,distance[s]</code> from bytes[from, to)
+     * without allocating.
+     */
+    private void handleTextLine(byte[] bytes, int from, int to)
+    {
+        // NB: this method is invoked in the ReaderThread.
+        if (to > from && bytes[to - 1] == '\r')
+            to--;
+        if (to == from)
+            return;
+        boolean isNewScan = bytes[to - 1] == 's';
+        if (isNewScan)
+            to--;
+        long ts = parseLong(bytes, from, to);
+        int pos = mParseEnd;
+        if (pos < to && bytes[pos] == ',')
+        {
+            double angle = parseDouble(bytes, pos + 1, to);
+            pos = mParseEnd;
+            if (pos < to && bytes[pos] == ',')
+            {
+                double distance = parseDouble(bytes, pos + 1, to);
+                if (mParseEnd == to && !Double.isNaN(angle) && !Double.isNaN(distance))
+                {
+                    mLinesParsed++;
+                    handlePoint(ts, angle, distance, isNewScan);
+                    return;
+                }
+            }
+        }
+        mParseErrors++;
+        Logger.debug(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses a decimal integer starting at bytes[from], stopping at the
+     * first non-digit (whose index is left in mParseEnd).
+     */
+    long parseLong(byte[] bytes, int from, int to)
+    {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+            negative = bytes[i++] == '-';
+        long value = 0;
+        while (i < to && bytes[i] >= '0' && bytes[i] <= '9')
+            value = value * 10 + (bytes[i++] - '0');
+        mParseEnd = i;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses [-]digits[.digits][e[-]digits] starting at bytes[from],
+     * leaving the index of the first unconsumed byte in mParseEnd.
+     * Returns NaN if there are no digits.
+     */
+    double parseDouble(byte[] bytes, int from, int to)
+    {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+            negative = bytes[i++] == '-';
+        long mantissa = 0;
+        int exponent = 0, digits = 0;
+        boolean seenDigit = false;
+        for (boolean fraction = false; i < to; i++)
+        {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9')
+            {
+                seenDigit = true;
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    if (fraction)
+                        exponent--;
+                }
+                else if (!fraction)
+                    exponent++;
+            }
+            else if (b == '.' && !fraction)
+                fraction = true;
+            else
+                break;
+        }
+        if (!seenDigit)
+        {
+            mParseEnd = i;
+            return Double.NaN;
+        }
+        if (i < to && (bytes[i] == 'e' || bytes[i] == 'E'))
+        {
+            exponent += (int) parseLong(bytes, i + 1, to);
+            i = mParseEnd;
+        }
+        mParseEnd = i;
+        double value = mantissa;
+        if (exponent < 0 && exponent >= -22)
+            value /= kPowersOf10[-exponent];
+        else if (exponent > 0 && exponent <= 22)
+            value *= kPowersOf10[exponent];
+        else if (exponent != 0)
+            value *= Math.pow(10, exponent);
+        return negative ? -value : value;
     }
 
     private class ReaderThread implements Runnable
     {
-        // This method runs in its own thread and waits for for stdout
+        // This method runs in its own thread and blocks waiting for stdout
         // of the chezy_lidar process. Note that the handleLine method
-        // operates relative to LidarServer.
+        // operates relative to LidarServer.  The loop ends when stop()
+        // is called (which ends the process and interrupts us) or when
+        // the process' output ends (see handleEOF).
         @Override
         public void run() 
         {
-            while (isRunning())
+            try 
             {
-                try 
+                while (isRunning())
                 {
-                    if (mBufferedReader.ready())
+                    long t0 = System.nanoTime();
+                    if (mInputFormat != InputFormat.kBufferedText)
+                    {
+                        int nread = mChannel.read(mReadBuffer);
+                        mBlockedNs += System.nanoTime() - t0;
+                        if (nread < 0) // EOF
+                        {
+                            throw new EOFException("End of chezy-lidar process InputStream");
+                        }
+                        mBytesRead += nread;
+                        mReadBuffer.flip();
+                        handleBuffer(mReadBuffer);
+                        mReadBuffer.compact();
+                    }
+                    else
                     {
                         String line = mBufferedReader.readLine();
+                        mBlockedNs += System.nanoTime() - t0;
                         if (line == null) // EOF
                         { 
                             throw new EOFException("End of chezy-lidar process InputStream");
                         }
-                        handleLine(line);
-                    }
-                } 
-                catch (IOException e)
-                {
-                    if (!isRunning() && isEnding())
-                        return; // Supress spurious stack traces on exit
-                    e.printStackTrace();
-                    if (isLidarConnected())
-                    {
-                        System.err.println("Lidar sensor disconnected");
-                        stop();
+                        mBytesRead += line.length() + 1;
+                        if (!line.isEmpty())
+                            handleLine(line);
                     }
                 }
+            } 
+            catch (IOException e)
+            {
+                if (!isRunning() || isEnding())
+                    return; // Supress spurious stack traces on exit
+                if (!(e instanceof EOFException))
+                    Logger.exception(e);
+                handleEOF();
             }
         }
     }
@@ -0,0 +1,262 @@
+package com.spartronics4915.lib.lidar;
+
+import com.spartronics4915.lib.util.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams scans to a visualizer as compact binary frames on a thread
+ * of its own, so the scan processing thread never waits on encoding
+ * or on the socket.
+ * <p>
+ * publish() is cheap: it rate-limits to maxFrameRate, copies every
+ * decimation'th point into a pending frame and returns.  A scan is
+ * dropped (and counted) if the previous frame hasn't been sent yet or
+ * if the sink still has unsent data, so a slow client sees a lower
+ * frame rate rather than a growing backlog.
+ * <p>
+ * Frames are little-endian:
+ * <pre>
+ *   uint8   'L'
+ *   uint8   encoding (0: kFloat32, 1: kInt16Delta)
+ *   uint16  point count
+ *   float64 timestamp (seconds)
+ *   kFloat32:    float32 x, y (inches) per point
+ *   kInt16Delta: int16 x, y (mm) of the first point, then int16
+ *                dx, dy (mm) from the previous point
+ * </pre>
+ * kInt16Delta halves the frame size.  Its coordinates are clamped to
+ * +/-kMaxMillimetres so that every delta fits in 16 bits.
+ */
+public class ScanPublisher implements Runnable
+{
+    public enum Encoding
+    {
+        kFloat32,
+        kInt16Delta
+    };
+
+    /**
+     * Where frames go; WebSocketClient provides all three methods.
+     */
+    public interface Sink
+    {
+        boolean isOpen();
+
+        boolean hasBufferedData();
+
+        /**
+         * Must be done with frame (e.g. have copied it) on return.
+         */
+        void send(ByteBuffer frame);
+    }
+
+    public static final byte kFrameMagic = 'L';
+    public static final int kHeaderSize = 12;
+    public static final int kMaxMillimetres = 16383;
+    private static final double kInchesToMm = 25.4;
+    private static final long kIdleParkNs = 100000000; // recheck mRunning at 10hz
+
+    // mState handshake between publish() and the publisher thread
+    private static final int kIdle = 0, kFilling = 1, kReady = 2;
+
+    private final Sink mSink;
+    private final long mMinFrameNs;
+    private final int mDecimation;
+    private final Encoding mEncoding;
+    private final AtomicInteger mState = new AtomicInteger(kIdle);
+    private volatile boolean mRunning = false;
+    private volatile Thread mThread;
+
+    // pending frame, written by publish() while kFilling
+    private double[] mXs = new double[0], mYs = new double[0];
+    private int mSize;
+    private double mTimestamp;
+    private long mLastFrameNs;
+
+    private ByteBuffer mFrame = ByteBuffer.allocate(0);
+    private volatile long mFramesSent = 0;
+    private final AtomicLong mFramesDropped = new AtomicLong();
+
+    /**
+     * @param maxFrameRate frames per second, or 0 for no limit
+     * @param decimation publish every decimation'th point
+     */
+    public ScanPublisher(Sink sink, double maxFrameRate, int decimation, Encoding encoding)
+    {
+        mSink = sink;
+        mMinFrameNs = maxFrameRate > 0 ? (long) (1e9 / maxFrameRate) : 0;
+        mDecimation = Math.max(1, decimation);
+        mEncoding = encoding;
+        mLastFrameNs = System.nanoTime() - mMinFrameNs;
+    }
+
+    public synchronized void start()
+    {
+        if (mRunning)
+            return;
+        mRunning = true;
+        mThread = new Thread(this, "LidarPublisher");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public void stop()
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+            try
+            {
+                thread.join(1000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getFramesSent()
+    {
+        return mFramesSent;
+    }
+
+    /**
+     * @return scans not sent because the previous frame or the socket
+     *  was still busy (rate limiting isn't counted)
+     */
+    public long getFramesDropped()
+    {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Offers a scan for publishing; the scan may be recycled as soon as
+     * this returns.  Called from a single (the processing) thread.
+     *
+     * @return true if the scan was taken
+     */
+    public boolean publish(LidarScan scan)
+    {
+        long now = System.nanoTime();
+        if (!mRunning || now - mLastFrameNs < mMinFrameNs || !mSink.isOpen())
+            return false;
+        if (!mState.compareAndSet(kIdle, kFilling))
+        {
+            mFramesDropped.incrementAndGet();
+            return false;
+        }
+        mLastFrameNs = now;
+        int n = (scan.size() + mDecimation - 1) / mDecimation;
+        if (mXs.length < n)
+        {
+            mXs = new double[n];
+            mYs = new double[n];
+        }
+        final double[] xs = scan.getXs(), ys = scan.getYs();
+        for (int i = 0, j = 0; j < n; i += mDecimation, j++)
+        {
+            mXs[j] = xs[i];
+            mYs[j] = ys[i];
+        }
+        mSize = n;
+        mTimestamp = scan.getTimestamp();
+        mState.set(kReady);
+        Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        while (mRunning)
+        {
+            if (mState.get() != kReady)
+            {
+                LockSupport.parkNanos(kIdleParkNs);
+                continue;
+            }
+            boolean slow = mSink.hasBufferedData();
+            if (!slow)
+                mFrame = encode(mFrame, mTimestamp, mXs, mYs, mSize, mEncoding);
+            mState.set(kIdle); // the points have been consumed
+            if (slow)
+            {
+                mFramesDropped.incrementAndGet();
+                continue;
+            }
+            try
+            {
+                mSink.send(mFrame);
+                mFramesSent++;
+            }
+            catch (Exception e)
+            {
+                // eg: the socket closed since isOpen()
+                mFramesDropped.incrementAndGet();
+                Logger.debug("ScanPublisher send failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Encodes a frame into out (reallocated if too small), which is
+     * returned ready to read.
+     */
+    public static ByteBuffer encode(ByteBuffer out, double timestamp,
+                                    double[] xs, double[] ys, int n, Encoding encoding)
+    {
+        n = Math.min(n, 0xffff);
+        int size = kHeaderSize + n * (encoding == Encoding.kFloat32 ? 8 : 4);
+        if (out.capacity() < size)
+            out = ByteBuffer.allocate(size);
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(kFrameMagic);
+        out.put((byte) encoding.ordinal());
+        out.putShort((short) n);
+        out.putDouble(timestamp);
+        if (encoding == Encoding.kFloat32)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out.putFloat((float) xs[i]);
+                out.putFloat((float) ys[i]);
+            }
+        }
+        else
+        {
+            int lastX = 0, lastY = 0;
+            for (int i = 0; i < n; i++)
+            {
+                int x = toMillimetres(xs[i]), y = toMillimetres(ys[i]);
+                out.putShort((short) (x - lastX));
+                out.putShort((short) (y - lastY));
+                lastX = x;
+                lastY = y;
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    private static int toMillimetres(double inches)
+    {
+        long mm = Math.round(inches * kInchesToMm);
+        return (int) Math.max(-kMaxMillimetres, Math.min(kMaxMillimetres, mm));
+    }
+}
@@ -0,0 +1,83 @@
+package com.spartronics4915.lib.lidar;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring of completed scans between the lidar reader
+ * thread (the single producer) and the scan processing thread (the single
+ * consumer).  When the ring is full the producer discards the oldest
+ * scan, so a consumer that falls behind always sees the most recent
+ * scans and the backlog can't grow.
+ * <p>
+ * head and tail are monotonic counters, so a consumer racing the
+ * producer for the oldest scan simply retries (no ABA), while the
+ * producer, finding the race lost, has room and drops nothing.
+ */
+class ScanRing
+{
+    private final AtomicReferenceArray<LidarScan> mSlots;
+    private final int mCapacity;
+    private final AtomicLong mHead = new AtomicLong(); // next slot to write
+    private final AtomicLong mTail = new AtomicLong(); // next slot to read
+
+    public ScanRing(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("ScanRing capacity must be positive");
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Producer only.  Appends scan, dropping the oldest scan if the
+     * ring is full.
+     *
+     * @return the dropped scan (so that it may be recycled), or null
+     */
+    public LidarScan offer(LidarScan scan)
+    {
+        LidarScan dropped = null;
+        long head = mHead.get();
+        long tail = mTail.get();
+        if (head - tail >= mCapacity)
+        {
+            // take the oldest once: if the consumer beat us to it, the
+            // ring is no longer full (only we advance head), so nothing
+            // need be dropped
+            LidarScan oldest = mSlots.get((int) (tail % mCapacity));
+            if (mTail.compareAndSet(tail, tail + 1))
+                dropped = oldest;
+        }
+        mSlots.set((int) (head % mCapacity), scan);
+        mHead.set(head + 1);
+        return dropped;
+    }
+
+    /**
+     * Returns the oldest scan, or null if the ring is empty.
+     */
+    public LidarScan poll()
+    {
+        while (true)
+        {
+            long tail = mTail.get();
+            if (tail == mHead.get())
+                return null;
+            LidarScan scan = mSlots.get((int) (tail % mCapacity));
+            if (mTail.compareAndSet(tail, tail + 1))
+                return scan;
+        }
+    }
+
+    public int size()
+    {
+        // tail may advance between the reads, so clamp
+        return (int) Math.max(0, mHead.get() - mTail.get());
+    }
+
+    public int capacity()
+    {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,68 @@
+package com.spartronics4915.lib.lidar;
+
+import com.spartronics4915.lib.util.Logger;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+/**
+ * Publishes scans to the dashboard's websocket, for LidarProcessor's
+ * kRunAsTest mode.
+ */
+class WSClient extends WebSocketClient implements ScanPublisher.Sink
+{
+    private boolean isOpen;
+    public WSClient() throws URISyntaxException
+    {
+        //this(new URI("ws://192.168.1.10:5080/webapi/_publish_"));
+        this(new URI("ws://localhost:5080/webapi/_publish_"));
+    }
+
+    public WSClient(URI uri)
+    {
+        super(uri);
+        isOpen = false;
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshakedata)
+    {
+        Logger.info("WebSocket open");
+        isOpen = true;
+    }
+
+    @Override
+    public void onClose(int code,  String reason, boolean remote)
+    {
+        Logger.info("WebSocket close");
+        isOpen = false;
+    }
+
+    @Override
+    public void onError(Exception ex)
+    {
+        Logger.exception(ex);
+    }
+
+    @Override
+    public void onMessage(String message)
+    { // Logger.info("WebSocket message "  + message);
+    }
+
+    public void send(LidarScan scan)
+    {
+        if(isOpen)
+        {
+            this.send(scan.toJsonString());
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return isOpen && super.isOpen();
+    }
+}
@@ -0,0 +1,315 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+import java.util.Arrays;
+
+/**
+ * Finds a good initial guess for ICP by brute-force correlation of a
+ * scan against lookup grids built from the reference points.
+ * <p>
+ * The fine grid holds, for each cell, how close it is to a reference
+ * point (1 on a point, falling off over a couple of cells).  The coarse
+ * grid holds, for each cell, the maximum of the coarseFactor x
+ * coarseFactor block of fine cells starting there, so scoring a scan at
+ * one coarse offset gives an upper bound on its score at every fine
+ * offset in that block.
+ * <p>
+ * match() searches a window of rotations and translations around a
+ * guess.  For every rotation it scores each block of translations
+ * against the coarse grid, then visits the blocks best first, scoring
+ * their fine offsets, and stops as soon as a block's bound can't beat
+ * the best fine score so far.  The result is the best candidate on the
+ * fine lattice, which ICP then refines.  ICP's cost is dominated by how
+ * far its guess is from the answer; the matcher's is bounded by the
+ * window and doesn't depend on the motion, so it pays off most when the
+ * robot turns quickly between scans.
+ * <p>
+ * Grids and scratch arrays are reused between calls; not thread-safe.
+ */
+public class CorrelativeMatcher
+{
+    private static final int kKernelRadius = 2; // cells
+
+    private final double mResolution;
+    private final int mCoarseFactor;
+    private final int mLinearCells;
+    private final double mAngularWindow;
+    private final int mMaxPoints;
+    private final float[] mKernel;
+
+    // lookup grids, row-major, cell (0, 0) at (mOriginX, mOriginY)
+    private float[] mFine = new float[0], mCoarse = new float[0], mRowMax = new float[0];
+    private int mWidth, mHeight;
+    private double mOriginX, mOriginY;
+    private boolean mHasReference = false;
+
+    // search scratch
+    private double[] mXs = new double[0], mYs = new double[0];
+    private int[] mCellXs = new int[0], mCellYs = new int[0];
+    private long[] mCandidates = new long[0];
+
+    private double mLastScore;
+    private int mLastCandidates;
+
+    public CorrelativeMatcher()
+    {
+        this(LibConstants.kLidarCorrelativeResolution, LibConstants.kLidarCorrelativeCoarseFactor,
+             LibConstants.kLidarCorrelativeLinearWindow, LibConstants.kLidarCorrelativeAngularWindow,
+             LibConstants.kLidarCorrelativeMaxPoints);
+    }
+
+    /**
+     * @param resolution fine grid cell size, and the translation step
+     * @param coarseFactor fine cells per coarse cell along each axis
+     * @param linearWindow search +/- this far in x and y from the guess
+     * @param angularWindow search +/- this many radians from the guess
+     * @param maxPoints scans are decimated to at most this many points
+     */
+    public CorrelativeMatcher(double resolution, int coarseFactor, double linearWindow,
+                              double angularWindow, int maxPoints)
+    {
+        mResolution = resolution;
+        mCoarseFactor = Math.max(1, coarseFactor);
+        mLinearCells = (int) Math.ceil(linearWindow / resolution);
+        mAngularWindow = angularWindow;
+        mMaxPoints = maxPoints;
+        final int side = 2 * kKernelRadius + 1;
+        final double sigma2 = 2.0 * kKernelRadius * kKernelRadius / 4.0;
+        mKernel = new float[side * side];
+        for (int dy = -kKernelRadius; dy <= kKernelRadius; dy++)
+        {
+            for (int dx = -kKernelRadius; dx <= kKernelRadius; dx++)
+            {
+                mKernel[(dy + kKernelRadius) * side + dx + kKernelRadius] =
+                    (float) Math.exp(-(dx * dx + dy * dy) / sigma2);
+            }
+        }
+    }
+
+    /**
+     * Builds the lookup grids from the first n reference points.
+     */
+    public void setReference(double[] xs, double[] ys, int n)
+    {
+        mHasReference = n > 0;
+        if (n == 0)
+            return;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++)
+        {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        // pad by the kernel, plus a coarse block so the coarse cells
+        // along the far edges see a full block
+        final int pad = kKernelRadius + mCoarseFactor;
+        mOriginX = minX - pad * mResolution;
+        mOriginY = minY - pad * mResolution;
+        mWidth = (int) Math.ceil((maxX - mOriginX) / mResolution) + pad + 1;
+        mHeight = (int) Math.ceil((maxY - mOriginY) / mResolution) + pad + 1;
+        final int cells = mWidth * mHeight;
+        if (mFine.length < cells)
+        {
+            mFine = new float[cells];
+            mCoarse = new float[cells];
+            mRowMax = new float[cells];
+        }
+        else
+        {
+            Arrays.fill(mFine, 0, cells, 0f);
+        }
+
+        final int side = 2 * kKernelRadius + 1;
+        for (int i = 0; i < n; i++)
+        {
+            final int cx = (int) Math.floor((xs[i] - mOriginX) / mResolution);
+            final int cy = (int) Math.floor((ys[i] - mOriginY) / mResolution);
+            for (int dy = -kKernelRadius; dy <= kKernelRadius; dy++)
+            {
+                final int row = (cy + dy) * mWidth + cx;
+                final int krow = (dy + kKernelRadius) * side + kKernelRadius;
+                for (int dx = -kKernelRadius; dx <= kKernelRadius; dx++)
+                {
+                    final float v = mKernel[krow + dx];
+                    if (mFine[row + dx] < v)
+                        mFine[row + dx] = v;
+                }
+            }
+        }
+
+        // coarse[x, y] = max of fine[x .. x+k-1, y .. y+k-1], separably
+        final int k = mCoarseFactor;
+        for (int y = 0; y < mHeight; y++)
+        {
+            final int row = y * mWidth;
+            for (int x = 0; x < mWidth; x++)
+            {
+                float m = 0;
+                for (int j = x, end = Math.min(x + k, mWidth); j < end; j++)
+                    m = Math.max(m, mFine[row + j]);
+                mRowMax[row + x] = m;
+            }
+        }
+        for (int y = 0; y < mHeight; y++)
+        {
+            for (int x = 0; x < mWidth; x++)
+            {
+                float m = 0;
+                for (int j = y, end = Math.min(y + k, mHeight); j < end; j++)
+                    m = Math.max(m, mRowMax[j * mWidth + x]);
+                mCoarse[y * mWidth + x] = m;
+            }
+        }
+    }
+
+    /**
+     * Searches the window around guess for the pose that best overlays
+     * the first n scan points on the reference.
+     *
+     * @param guess reference -> scan, as passed to and returned by ICP
+     * @return the best candidate, in the same sense as guess; guess
+     *  itself if there's no reference yet
+     */
+    public Transform match(double[] xs, double[] ys, int n, Transform guess)
+    {
+        mLastScore = 0;
+        mLastCandidates = 0;
+        if (!mHasReference || n == 0)
+            return guess;
+
+        // decimate the scan
+        final int stride = Math.max(1, (n + mMaxPoints - 1) / mMaxPoints);
+        final int m = (n + stride - 1) / stride;
+        if (mXs.length < m)
+        {
+            mXs = new double[m];
+            mYs = new double[m];
+            mCellXs = new int[m];
+            mCellYs = new int[m];
+        }
+        double maxRange2 = 0;
+        for (int i = 0, j = 0; j < m; i += stride, j++)
+        {
+            mXs[j] = xs[i];
+            mYs[j] = ys[i];
+            maxRange2 = Math.max(maxRange2, xs[i] * xs[i] + ys[i] * ys[i]);
+        }
+
+        // the scan -> reference transform we search around, and an
+        // angular step that moves the farthest point by about one cell
+        final Transform center = guess.inverse();
+        final double maxRange = Math.max(Math.sqrt(maxRange2), mResolution);
+        final double step = Math.acos(1 - mResolution * mResolution / (2 * maxRange * maxRange));
+        final int numSteps = (int) Math.ceil(mAngularWindow / step);
+        final int numAngles = 2 * numSteps + 1;
+        final int w = mLinearCells, k = mCoarseFactor;
+        final int blocks = (2 * w + k) / k; // blocks of k offsets covering -w..w
+        final int numCandidates = numAngles * blocks * blocks;
+        if (mCandidates.length < numCandidates)
+            mCandidates = new long[numCandidates];
+
+        // coarse pass: an upper bound for every (angle, block)
+        for (int a = 0; a < numAngles; a++)
+        {
+            rotate(center, (a - numSteps) * step, m);
+            for (int by = 0; by < blocks; by++)
+            {
+                for (int bx = 0; bx < blocks; bx++)
+                {
+                    final float bound = score(mCoarse, m, bx * k - w, by * k - w);
+                    final int index = (a * blocks + by) * blocks + bx;
+                    mCandidates[index] = ((long) Float.floatToIntBits(bound) << 32) | index;
+                }
+            }
+        }
+        // non-negative floats order like their bits
+        Arrays.sort(mCandidates, 0, numCandidates);
+
+        // fine pass: best bounds first, until no block can do better
+        float best = -1;
+        int bestA = numSteps, bestX = 0, bestY = 0;
+        int evaluated = 0;
+        for (int c = numCandidates - 1; c >= 0; c--)
+        {
+            final float bound = Float.intBitsToFloat((int) (mCandidates[c] >>> 32));
+            if (bound <= best)
+                break;
+            final int index = (int) mCandidates[c];
+            final int a = index / (blocks * blocks);
+            final int by = (index / blocks) % blocks, bx = index % blocks;
+            rotate(center, (a - numSteps) * step, m);
+            for (int oy = by * k - w, yend = Math.min(oy + k, w + 1); oy < yend; oy++)
+            {
+                for (int ox = bx * k - w, xend = Math.min(ox + k, w + 1); ox < xend; ox++)
+                {
+                    final float s = score(mFine, m, ox, oy);
+                    evaluated++;
+                    // prefer the guess on ties, so a featureless scan doesn't wander
+                    if (s > best || (s == best && ox == 0 && oy == 0 && a == numSteps))
+                    {
+                        best = s;
+                        bestA = a;
+                        bestX = ox;
+                        bestY = oy;
+                    }
+                }
+            }
+        }
+        mLastScore = best / m;
+        mLastCandidates = evaluated;
+
+        final double theta = center.theta + (bestA - numSteps) * step;
+        return new Transform(theta, center.tx + bestX * mResolution,
+                             center.ty + bestY * mResolution).inverse();
+    }
+
+    /**
+     * @return the last match's score: the mean fine grid value under the
+     *  scan's points, from 0 (no overlap) to 1.
+     */
+    public double getLastScore()
+    {
+        return mLastScore;
+    }
+
+    /**
+     * @return the number of fine offsets the last match scored.
+     */
+    public int getLastCandidates()
+    {
+        return mLastCandidates;
+    }
+
+    /**
+     * Rotates the decimated scan by center.theta + dTheta, translates it
+     * by center's translation and stores the grid cells it lands in.
+     */
+    private void rotate(Transform center, double dTheta, int m)
+    {
+        final double theta = center.theta + dTheta;
+        final double sin = Math.sin(theta), cos = Math.cos(theta);
+        final double inv = 1 / mResolution;
+        final double tx = center.tx - mOriginX, ty = center.ty - mOriginY;
+        for (int i = 0; i < m; i++)
+        {
+            mCellXs[i] = (int) Math.floor((mXs[i] * cos - mYs[i] * sin + tx) * inv);
+            mCellYs[i] = (int) Math.floor((mXs[i] * sin + mYs[i] * cos + ty) * inv);
+        }
+    }
+
+    private float score(float[] grid, int m, int ox, int oy)
+    {
+        final int width = mWidth, height = mHeight;
+        float sum = 0;
+        for (int i = 0; i < m; i++)
+        {
+            final int x = mCellXs[i] + ox, y = mCellYs[i] + oy;
+            if (x >= 0 && x < width && y >= 0 && y < height)
+                sum += grid[y * width + x];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,336 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A rasterized version of a {@link SegmentReferenceModel}. At construction
+ * we compute, for every cell of a grid covering the segments' bounding
+ * rectangle, the index of the closest segment to the cell's center. This
+ * is a Euclidean distance transform (two-pass 8SSEDT label propagation,
+ * with exact point-to-segment distances).
+ * <p>
+ * Afterwards {@link #getClosestPoint} is O(1): one grid lookup followed by
+ * a projection onto a single segment. Points outside the grid fall back
+ * to the linear scan over segments.
+ * <p>
+ * Since the field model never changes, the grid can be saved to disk and
+ * reloaded at boot, see {@link #loadOrBuild}.
+ */
+public class DistanceFieldReferenceModel implements IReferenceModel
+{
+    private static final int kFileMagic = 0x4C444631; // "LDF1"
+    private static final short kNoSegment = -1;
+
+    private final Segment[] mSegments;
+    private final double mResolution, mMargin;
+    private double mOriginX, mOriginY;
+    private int mWidth, mHeight;
+    private short[] mClosestSegment; // row-major, mWidth * mHeight
+
+    /**
+     * @param model the field model to rasterize (copied, not modified)
+     * @param resolution grid cell size, in the model's units
+     * @param margin extent of the grid beyond the segments' bounding box
+     */
+    public DistanceFieldReferenceModel(SegmentReferenceModel model,
+                                        double resolution, double margin)
+    {
+        this(model.segments.clone(), resolution, margin, true);
+    }
+
+    private DistanceFieldReferenceModel(Segment[] segments, double resolution,
+                                        double margin, boolean build)
+    {
+        if (segments.length == 0)
+            throw new IllegalArgumentException("zero Segments passed to DistanceFieldReferenceModel");
+        if (segments.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("too many Segments for DistanceFieldReferenceModel");
+        if (resolution <= 0)
+            throw new IllegalArgumentException("DistanceFieldReferenceModel resolution must be positive");
+        mSegments = segments;
+        mResolution = resolution;
+        mMargin = margin;
+        if (build)
+            build();
+    }
+
+    /**
+     * Returns the distance field for the given model, loading it from
+     * cacheFile when that file was produced from the same segments,
+     * resolution and margin.  Otherwise the field is rebuilt and the
+     * cache file is (re)written.
+     */
+    public static DistanceFieldReferenceModel loadOrBuild(File cacheFile,
+                        SegmentReferenceModel model, double resolution, double margin)
+    {
+        Segment[] segments = model.segments.clone();
+        DistanceFieldReferenceModel field =
+            new DistanceFieldReferenceModel(segments, resolution, margin, false);
+        try
+        {
+            if (cacheFile.exists() && field.read(cacheFile))
+            {
+                Logger.debug("Loaded lidar distance field from " + cacheFile);
+                return field;
+            }
+        }
+        catch (IOException e)
+        {
+            Logger.exception(e);
+        }
+        field.build();
+        try
+        {
+            field.write(cacheFile);
+        }
+        catch (IOException e)
+        {
+            Logger.exception(e);
+        }
+        return field;
+    }
+
+    private void build()
+    {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Segment s : mSegments)
+        {
+            minX = Math.min(minX, Math.min(s.pMin.x, s.pMax.x));
+            minY = Math.min(minY, Math.min(s.pMin.y, s.pMax.y));
+            maxX = Math.max(maxX, Math.max(s.pMin.x, s.pMax.x));
+            maxY = Math.max(maxY, Math.max(s.pMin.y, s.pMax.y));
+        }
+        mOriginX = minX - mMargin;
+        mOriginY = minY - mMargin;
+        mWidth = (int) Math.ceil((maxX + mMargin - mOriginX) / mResolution) + 1;
+        mHeight = (int) Math.ceil((maxY + mMargin - mOriginY) / mResolution) + 1;
+        mClosestSegment = new short[mWidth * mHeight];
+
+        float[] distSq = new float[mWidth * mHeight];
+        Arrays.fill(mClosestSegment, kNoSegment);
+        Arrays.fill(distSq, Float.MAX_VALUE);
+
+        // seed the cells that each segment passes through
+        for (short si = 0; si < mSegments.length; si++)
+        {
+            Segment s = mSegments[si];
+            double len = s.pMin.getDistance(s.pMax);
+            int steps = (int) Math.ceil(2 * len / mResolution) + 1;
+            for (int k = 0; k <= steps; k++)
+            {
+                double f = (double) k / steps;
+                int i = getColumn(s.pMin.x + f * (s.pMax.x - s.pMin.x));
+                int j = getRow(s.pMin.y + f * (s.pMax.y - s.pMin.y));
+                if (i < 0 || j < 0 || i >= mWidth || j >= mHeight)
+                    continue;
+                relax(i, j, si, distSq);
+            }
+        }
+
+        // forward pass
+        for (int j = 0; j < mHeight; j++)
+        {
+            for (int i = 0; i < mWidth; i++)
+            {
+                propagate(i, j, i - 1, j, distSq);
+                propagate(i, j, i - 1, j - 1, distSq);
+                propagate(i, j, i, j - 1, distSq);
+                propagate(i, j, i + 1, j - 1, distSq);
+            }
+            for (int i = mWidth - 1; i >= 0; i--)
+                propagate(i, j, i + 1, j, distSq);
+        }
+
+        // backward pass
+        for (int j = mHeight - 1; j >= 0; j--)
+        {
+            for (int i = mWidth - 1; i >= 0; i--)
+            {
+                propagate(i, j, i + 1, j, distSq);
+                propagate(i, j, i + 1, j + 1, distSq);
+                propagate(i, j, i, j + 1, distSq);
+                propagate(i, j, i - 1, j + 1, distSq);
+            }
+            for (int i = 0; i < mWidth; i++)
+                propagate(i, j, i - 1, j, distSq);
+        }
+    }
+
+    private void propagate(int i, int j, int ni, int nj, float[] distSq)
+    {
+        if (ni < 0 || nj < 0 || ni >= mWidth || nj >= mHeight)
+            return;
+        short si = mClosestSegment[nj * mWidth + ni];
+        if (si != kNoSegment)
+            relax(i, j, si, distSq);
+    }
+
+    private void relax(int i, int j, short si, float[] distSq)
+    {
+        int cell = j * mWidth + i;
+        if (mClosestSegment[cell] == si)
+            return;
+        double x = mOriginX + (i + .5) * mResolution;
+        double y = mOriginY + (j + .5) * mResolution;
+        float d = (float) mSegments[si].getDistanceSq(x, y);
+        if (d < distSq[cell])
+        {
+            distSq[cell] = d;
+            mClosestSegment[cell] = si;
+        }
+    }
+
+    private int getColumn(double x)
+    {
+        return (int) Math.floor((x - mOriginX) / mResolution);
+    }
+
+    private int getRow(double y)
+    {
+        return (int) Math.floor((y - mOriginY) / mResolution);
+    }
+
+    /**
+     * Returns the segment closest to (x, y): from the grid when (x, y)
+     * lies within it, otherwise by a linear scan.
+     */
+    public Segment getClosestSegment(double x, double y)
+    {
+        int i = getColumn(x), j = getRow(y);
+        if (i >= 0 && j >= 0 && i < mWidth && j < mHeight)
+            return mSegments[mClosestSegment[j * mWidth + i]];
+
+        double minDist = Double.MAX_VALUE;
+        Segment minSeg = null;
+        for (Segment s : mSegments)
+        {
+            double dist = s.getDistanceSq(x, y);
+            if (dist < minDist)
+            {
+                minDist = dist;
+                minSeg = s;
+            }
+        }
+        return minSeg;
+    }
+
+    public double getDistance(double x, double y)
+    {
+        return Math.sqrt(getClosestSegment(x, y).getDistanceSq(x, y));
+    }
+
+    @Override
+    public Point getClosestPoint(Point p)
+    {
+        return getClosestSegment(p.x, p.y).getClosestPoint(p);
+    }
+
+    @Override
+    public void getClosestPoint(double x, double y, double[] out)
+    {
+        getClosestSegment(x, y).getClosestPoint(x, y, out);
+    }
+
+    @Override
+    public void getClosestPointAndNormal(double x, double y, double[] out)
+    {
+        getClosestSegment(x, y).getClosestPointAndNormal(x, y, out);
+    }
+
+    @Override
+    public void transformBy(Transform t)
+    {
+        for (int i = 0; i < mSegments.length; i++)
+        {
+            mSegments[i] = t.apply(mSegments[i]);
+        }
+        build();
+    }
+
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    /**
+     * Identifies the inputs to the distance transform so that stale
+     * cache files can be detected.
+     */
+    private long getContentHash()
+    {
+        long h = 1125899906842597L;
+        h = 31 * h + Double.doubleToLongBits(mResolution);
+        h = 31 * h + Double.doubleToLongBits(mMargin);
+        for (Segment s : mSegments)
+        {
+            h = 31 * h + Double.doubleToLongBits(s.pMin.x);
+            h = 31 * h + Double.doubleToLongBits(s.pMin.y);
+            h = 31 * h + Double.doubleToLongBits(s.pMax.x);
+            h = 31 * h + Double.doubleToLongBits(s.pMax.y);
+        }
+        return h;
+    }
+
+    public void write(File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            out.writeInt(kFileMagic);
+            out.writeLong(getContentHash());
+            out.writeDouble(mOriginX);
+            out.writeDouble(mOriginY);
+            out.writeInt(mWidth);
+            out.writeInt(mHeight);
+            for (short s : mClosestSegment)
+                out.writeShort(s);
+        }
+    }
+
+    /**
+     * @return false if the file doesn't match our segments/parameters
+     */
+    private boolean read(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != kFileMagic || in.readLong() != getContentHash())
+                return false;
+            double originX = in.readDouble();
+            double originY = in.readDouble();
+            int width = in.readInt();
+            int height = in.readInt();
+            short[] closest = new short[width * height];
+            for (int i = 0; i < closest.length; i++)
+            {
+                closest[i] = in.readShort();
+                if (closest[i] < 0 || closest[i] >= mSegments.length)
+                    return false;
+            }
+            mOriginX = originX;
+            mOriginY = originY;
+            mWidth = width;
+            mHeight = height;
+            mClosestSegment = closest;
+            return true;
+        }
+    }
+
+}
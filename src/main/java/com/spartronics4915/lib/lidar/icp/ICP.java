@@ -2,7 +2,9 @@ package com.spartronics4915.lib.lidar.icp;
 
 import com.spartronics4915.lib.LibConstants;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class ICP
 {
@@ -11,6 +13,37 @@ public class ICP
 
     public long timeoutNs = 0; // used during normal operation, usually nonzero
     public long maxIterations = 0; // used by test, usually 0
+    public int parallelism = 1; // max concurrent chunks for the primitive doICP
+    public int minChunkSize = LibConstants.kICPMinChunkSize; // points per chunk
+    public boolean pointToLine = false; // primitive doICP minimizes point-to-line distance
+    public double inlierDistance = LibConstants.kICPInlierDistance; // for ICPResult's inlier ratio
+
+    // indices into the (partial) sums accumulated by the primitive doICP:
+    // a prefix common to both modes, then each mode's own block
+    private static final int kSumDists = 0, kN = 1, kInliers = 2;
+    // point-to-point
+    private static final int kSumXa = 3, kSumYa = 4, kSumXb = 5, kSumYb = 6,
+        kSxx = 7, kSxy = 8, kSyx = 9, kSyy = 10, kNumPointSums = 11;
+    // point-to-line: the normal equations A'A x = A'b, for x = (dtheta, dx, dy);
+    // also used by SegmentMatcher
+    static final int kA00 = 3, kA01 = 4, kA02 = 5, kA11 = 6, kA12 = 7, kA22 = 8,
+        kB0 = 9, kB1 = 10, kB2 = 11, kNumLineSums = 12;
+    private static final int kNumSums = Math.max(kNumPointSums, kNumLineSums);
+
+    private static ForkJoinPool sPool; // shared by all ICP instances
+
+    // scratch buffers for the primitive doICP, reused between calls
+    private final double[] mSums = new double[kNumSums];
+    private double[][] mPartials = new double[1][kNumSums];
+    private double[][] mClosest = new double[1][4];
+
+    // state of the current primitive doICP iteration, read by accumulate
+    private double[] mXs, mYs;
+    private int mN, mChunks;
+    private IReferenceModel mReference;
+    private double mInvCos, mInvSin, mInvTx, mInvTy, mThreshold, mInlierDistance;
+    private boolean mPointToLine;
+    private final ICPResult mResult = new ICPResult();
 
     public ICP(long timeoutMs)
     {
@@ -113,6 +146,453 @@ public class ICP
         return guessTrans;
     }
 
+    /**
+     * A variant of {@link #doICP(Iterable, Transform, IReferenceModel)} that
+     * operates on the first n entries of primitive coordinate arrays.
+     * Points are transformed into scratch buffers and correspondences
+     * are written to buffers that are reused between calls, so the
+     * iteration loop allocates nothing (provided the reference model
+     * overrides {@link IReferenceModel#getClosestPoint(double, double, double[])}).
+     * Results match the Iterable variant.
+     * <p>
+     * When parallelism is greater than 1 the correspondence search and
+     * accumulation are split into chunks (of at least minChunkSize points)
+     * whose partial sums are computed on a shared ForkJoinPool and then
+     * reduced in chunk order, so results are deterministic.  The reference
+     * model must then support concurrent queries.
+     * <p>
+     * When pointToLine is set, each iteration instead minimizes the
+     * distance of each point to the line through its correspondence
+     * along the reference's surface normal (see
+     * {@link IReferenceModel#getClosestPointAndNormal}), linearized about
+     * the current guess.  Unlike point-to-point matching this doesn't
+     * crawl when sliding along a wall, so it typically converges in a
+     * few iterations.  Points without a normal contribute their
+     * point-to-point residual.
+     * <p>
+     * Not reentrant: each thread needs its own ICP instance.
+     * <p>
+     * Unlike the Iterable variant this doesn't throw when no points match
+     * (eg: an empty scan or reference); it returns the guess.  Use
+     * {@link #match} to find out how the result was reached.
+     */
+    public Transform doICP(double[] xs, double[] ys, int n, Transform guessTrans,
+                            IReferenceModel reference)
+    {
+        return match(xs, ys, n, guessTrans, reference).getTransform();
+    }
+
+    /**
+     * As {@link #doICP(double[], double[], int, Transform, IReferenceModel)},
+     * returning the transform along with the iterations and time spent,
+     * and the inlier ratio and residual that say how well it fits.
+     * <p>
+     * When the loop times out rather than converging, the transform is
+     * the latest estimate, unless the residual had started to grow, in
+     * which case it's the best (lowest residual) estimate evaluated.
+     *
+     * @return this ICP's result, valid until its next match
+     */
+    public ICPResult match(double[] xs, double[] ys, int n, Transform guessTrans,
+                           IReferenceModel reference)
+    {
+        long startTime = System.nanoTime();
+        long iteration = 0;
+        double lastMeanDist = Double.POSITIVE_INFINITY;
+        double lastInliers = 0;
+        ICPResult.Status status = ICPResult.Status.kTimedOut;
+        final int nchunks = Math.max(1, Math.min(parallelism, n / Math.max(1, minChunkSize)));
+        ensureChunks(nchunks);
+        mXs = xs;
+        mYs = ys;
+        mN = n;
+        mChunks = nchunks;
+        mReference = reference;
+        mPointToLine = pointToLine;
+        mInlierDistance = inlierDistance;
+        final double[] sums = mSums;
+
+        double theta = 0, tx = 0, ty = 0, sin = 0, cos = 1;
+        if (guessTrans != null)
+        {
+            theta = guessTrans.theta;
+            tx = guessTrans.tx;
+            ty = guessTrans.ty;
+            sin = guessTrans.sin;
+            cos = guessTrans.cos;
+        }
+        // the lowest-residual estimate evaluated so far
+        double bestTheta = theta, bestTx = tx, bestTy = ty, bestSin = sin, bestCos = cos;
+        double bestResidual = Double.POSITIVE_INFINITY, bestInliers = 0;
+        try
+        {
+            while ((maxIterations > 0 && iteration < maxIterations) ||
+                   ((System.nanoTime()-startTime) < timeoutNs) )
+            {
+                iteration++; // counted on the timeout path too
+                // inverse of the current guess (cf. Transform.inverse)
+                mInvTx = -tx * cos - ty * sin;
+                mInvTy = tx * sin - ty * cos;
+                mInvSin = -sin;
+                mInvCos = cos;
+                mThreshold = lastMeanDist * OUTLIER_THRESH;
+
+                if (nchunks == 1)
+                {
+                    accumulate(0, n, sums, mClosest[0]);
+                }
+                else
+                {
+                    getPool().invoke(new ChunkTask(0, nchunks));
+                    Arrays.fill(sums, 0);
+                    for (double[] partial : mPartials)
+                    {
+                        for (int k = 0; k < kNumSums; k++)
+                            sums[k] += partial[k];
+                    }
+                }
+
+                final int N = (int) sums[kN];
+                if (N == 0)
+                {
+                    status = ICPResult.Status.kNoMatch;
+                    break;
+                }
+                lastMeanDist = sums[kSumDists] / N;
+                lastInliers = sums[kInliers] / n;
+                if (lastMeanDist <= bestResidual)
+                {
+                    bestTheta = theta;
+                    bestTx = tx;
+                    bestTy = ty;
+                    bestSin = sin;
+                    bestCos = cos;
+                    bestResidual = lastMeanDist;
+                    bestInliers = lastInliers;
+                }
+
+                if (mPointToLine)
+                {
+                    // solve for the increment to the inverse guess, then
+                    // compose: inv' = delta * inv, guess = inv'^-1
+                    final double dTheta = solveLines(sums);
+                    final double dx = sums[kB1], dy = sums[kB2];
+                    final double dsin = Math.sin(dTheta), dcos = Math.cos(dTheta);
+                    final double itx = mInvTx * dcos - mInvTy * dsin + dx;
+                    final double ity = mInvTx * dsin + mInvTy * dcos + dy;
+                    final double newTheta = theta - dTheta;
+                    final double ccos = Math.cos(newTheta), csin = Math.sin(newTheta);
+                    final double newTx = -itx * ccos + ity * csin;
+                    final double newTy = -itx * csin - ity * ccos;
+                    final boolean done = isConverged(theta, tx, ty, newTheta, newTx, newTy);
+                    theta = newTheta;
+                    tx = newTx;
+                    ty = newTy;
+                    sin = csin;
+                    cos = ccos;
+                    if (done)
+                    {
+                        status = ICPResult.Status.kConverged;
+                        break;
+                    }
+                    continue;
+                }
+
+                final double SumXa = sums[kSumXa], SumYa = sums[kSumYa];
+                final double SumXb = sums[kSumXb], SumYb = sums[kSumYb];
+                final double Sxx = sums[kSxx], Sxy = sums[kSxy];
+                final double Syx = sums[kSyx], Syy = sums[kSyy];
+
+                final double N_inv = 1.0 / N;
+                final double mean_x_a = SumXa * N_inv;
+                final double mean_y_a = SumYa * N_inv;
+                final double mean_x_b = SumXb * N_inv;
+                final double mean_y_b = SumYb * N_inv;
+
+                final double Ax = N * (Sxx + Syy) - SumXa * SumXb - SumYa * SumYb;
+                final double Ay = SumXa * SumYb + N * (Syx - Sxy) - SumXb * SumYa;
+
+                final double newTheta = (Ax == 0 && Ay == 0) ? 0.0 : Math.atan2(Ay, Ax);
+                final double ccos = Math.cos(newTheta);
+                final double csin = Math.sin(newTheta);
+                final double newTx = mean_x_a - mean_x_b * ccos + mean_y_b * csin;
+                final double newTy = mean_y_a - mean_x_b * csin - mean_y_b * ccos;
+
+                final boolean done = isConverged(theta, tx, ty, newTheta, newTx, newTy);
+                theta = newTheta;
+                tx = newTx;
+                ty = newTy;
+                sin = csin;
+                cos = ccos;
+                if (done)
+                {
+                    status = ICPResult.Status.kConverged;
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            mXs = mYs = null; // don't hold onto the caller's buffers
+            mReference = null;
+        }
+        if (status == ICPResult.Status.kNoMatch)
+        {
+            lastMeanDist = Double.POSITIVE_INFINITY;
+            lastInliers = 0;
+        }
+        else if (status == ICPResult.Status.kTimedOut && lastMeanDist > bestResidual)
+        {
+            // diverging: fall back to the best estimate
+            theta = bestTheta;
+            tx = bestTx;
+            ty = bestTy;
+            sin = bestSin;
+            cos = bestCos;
+            lastMeanDist = bestResidual;
+            lastInliers = bestInliers;
+        }
+        mResult.set(new Transform(theta, tx, ty, sin, cos), status, iteration,
+                    System.nanoTime() - startTime, lastInliers, lastMeanDist);
+        return mResult;
+    }
+
+    /**
+     * @return the result of the last {@link #match} (or primitive doICP),
+     *  valid until the next
+     */
+    public ICPResult getLastResult()
+    {
+        return mResult;
+    }
+
+    /**
+     * Solves the 3x3 point-to-line normal equations in sums (by Cramer's
+     * rule), returning dtheta and leaving dx, dy in sums[kB1], sums[kB2].
+     * A degenerate system (e.g. a single wall) yields no motion along
+     * the unconstrained direction, by way of a tiny regularizer.
+     */
+    static double solveLines(double[] sums)
+    {
+        final double eps = 1e-9 * (sums[kA00] + sums[kA11] + sums[kA22]);
+        final double a = sums[kA00] + eps, b = sums[kA01], c = sums[kA02];
+        final double d = sums[kA11] + eps, e = sums[kA12], f = sums[kA22] + eps;
+        final double b0 = sums[kB0], b1 = sums[kB1], b2 = sums[kB2];
+        // symmetric [[a b c] [b d e] [c e f]]
+        final double m00 = d * f - e * e, m01 = c * e - b * f, m02 = b * e - c * d;
+        final double det = a * m00 + b * m01 + c * m02;
+        if (det == 0)
+        {
+            sums[kB1] = sums[kB2] = 0;
+            return 0;
+        }
+        final double m11 = a * f - c * c, m12 = b * c - a * e, m22 = a * d - b * b;
+        final double x0 = (m00 * b0 + m01 * b1 + m02 * b2) / det;
+        final double x1 = (m01 * b0 + m11 * b1 + m12 * b2) / det;
+        final double x2 = (m02 * b0 + m12 * b1 + m22 * b2) / det;
+        sums[kB1] = x1;
+        sums[kB2] = x2;
+        return x0;
+    }
+
+    /**
+     * Transforms points [from, to) by the current inverse guess, finds
+     * their correspondences and accumulates the registration sums.
+     */
+    private void accumulate(int from, int to, double[] sums, double[] closest)
+    {
+        if (mPointToLine)
+        {
+            accumulateLines(from, to, sums, closest);
+            return;
+        }
+        final double[] xs = mXs, ys = mYs;
+        final double invCos = mInvCos, invSin = mInvSin;
+        final double invTx = mInvTx, invTy = mInvTy;
+        final double threshold = mThreshold, inlierDistance = mInlierDistance;
+        final IReferenceModel reference = mReference;
+
+        double sumDists = 0;
+        double SumXa = 0, SumXb = 0, SumYa = 0, SumYb = 0;
+        double Sxx = 0, Sxy = 0, Syx = 0, Syy = 0;
+        int N = 0, inliers = 0;
+        for (int i = from; i < to; i++)
+        {
+            final double px = xs[i], py = ys[i];
+            final double qx = px * invCos - py * invSin + invTx;
+            final double qy = px * invSin + py * invCos + invTy;
+
+            // get pairs of corresponding points
+            reference.getClosestPoint(qx, qy, closest);
+            final double rx = closest[0], ry = closest[1];
+            final double dx = qx - rx, dy = qy - ry;
+            final double dist = Math.sqrt(dx * dx + dy * dy);
+            if (dist <= inlierDistance)
+                inliers++;
+            if (!(dist <= threshold)) // NaN where the reference is empty
+                continue;
+            sumDists += dist;
+            N++;
+
+            SumXa += px;
+            SumYa += py;
+
+            SumXb += rx;
+            SumYb += ry;
+
+            Sxx += px * rx;
+            Sxy += px * ry;
+            Syx += py * rx;
+            Syy += py * ry;
+        }
+        sums[kSumXa] = SumXa;
+        sums[kSumYa] = SumYa;
+        sums[kSumXb] = SumXb;
+        sums[kSumYb] = SumYb;
+        sums[kSxx] = Sxx;
+        sums[kSxy] = Sxy;
+        sums[kSyx] = Syx;
+        sums[kSyy] = Syy;
+        sums[kSumDists] = sumDists;
+        sums[kN] = N;
+        sums[kInliers] = inliers;
+    }
+
+    /**
+     * As accumulate, for point-to-line: each inlier contributes rows
+     * a = d(residual)/d(dtheta, dx, dy) and right hand sides -residual to
+     * the normal equations.
+     */
+    private void accumulateLines(int from, int to, double[] sums, double[] closest)
+    {
+        final double[] xs = mXs, ys = mYs;
+        final double invCos = mInvCos, invSin = mInvSin;
+        final double invTx = mInvTx, invTy = mInvTy;
+        final double threshold = mThreshold, inlierDistance = mInlierDistance;
+        final IReferenceModel reference = mReference;
+
+        double sumDists = 0;
+        double a00 = 0, a01 = 0, a02 = 0, a11 = 0, a12 = 0, a22 = 0;
+        double b0 = 0, b1 = 0, b2 = 0;
+        int N = 0, inliers = 0;
+        for (int i = from; i < to; i++)
+        {
+            final double px = xs[i], py = ys[i];
+            final double qx = px * invCos - py * invSin + invTx;
+            final double qy = px * invSin + py * invCos + invTy;
+
+            reference.getClosestPointAndNormal(qx, qy, closest);
+            final double rx = closest[0], ry = closest[1];
+            final double nx = closest[2], ny = closest[3];
+            final double dx = qx - rx, dy = qy - ry;
+            final boolean noNormal = Double.isNaN(nx);
+            // gate on the residual being minimized: sliding along a wall
+            // costs nothing, so those points shouldn't look like outliers
+            final double dist = noNormal ? Math.sqrt(dx * dx + dy * dy) : Math.abs(dx * nx + dy * ny);
+            if (dist <= inlierDistance)
+                inliers++;
+            if (!(dist <= threshold)) // NaN where the reference is empty
+                continue;
+            sumDists += dist;
+            N++;
+
+            if (noNormal)
+            {
+                // point-to-point: rows (-qy, 1, 0) and (qx, 0, 1)
+                a00 += qy * qy + qx * qx;
+                a01 += -qy;
+                a02 += qx;
+                a11 += 1;
+                a22 += 1;
+                b0 -= -qy * dx + qx * dy;
+                b1 -= dx;
+                b2 -= dy;
+            }
+            else
+            {
+                final double j0 = qx * ny - qy * nx;
+                final double r = dx * nx + dy * ny;
+                a00 += j0 * j0;
+                a01 += j0 * nx;
+                a02 += j0 * ny;
+                a11 += nx * nx;
+                a12 += nx * ny;
+                a22 += ny * ny;
+                b0 -= j0 * r;
+                b1 -= nx * r;
+                b2 -= ny * r;
+            }
+        }
+        sums[kA00] = a00;
+        sums[kA01] = a01;
+        sums[kA02] = a02;
+        sums[kA11] = a11;
+        sums[kA12] = a12;
+        sums[kA22] = a22;
+        sums[kB0] = b0;
+        sums[kB1] = b1;
+        sums[kB2] = b2;
+        sums[kSumDists] = sumDists;
+        sums[kN] = N;
+        sums[kInliers] = inliers;
+    }
+
+    /**
+     * Splits chunk indices [lo, hi) in half until a single chunk remains,
+     * which is accumulated into its own partial sums.
+     */
+    private class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final int mLo, mHi;
+
+        ChunkTask(int lo, int hi)
+        {
+            mLo = lo;
+            mHi = hi;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (mHi - mLo == 1)
+            {
+                int from = (int) ((long) mN * mLo / mChunks);
+                int to = (int) ((long) mN * (mLo + 1) / mChunks);
+                accumulate(from, to, mPartials[mLo], mClosest[mLo]);
+            }
+            else
+            {
+                int mid = (mLo + mHi) >>> 1;
+                invokeAll(new ChunkTask(mLo, mid), new ChunkTask(mid, mHi));
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool()
+    {
+        if (sPool == null)
+            sPool = new ForkJoinPool(LibConstants.kICPWorkers);
+        return sPool;
+    }
+
+    private void ensureChunks(int nchunks)
+    {
+        if (mPartials.length != nchunks)
+        {
+            mPartials = new double[nchunks][kNumSums];
+            mClosest = new double[nchunks][4];
+        }
+    }
+
+    private boolean isConverged(double prevTheta, double prevTx, double prevTy,
+                                double theta, double tx, double ty)
+    {
+        return Math.abs(prevTheta - theta) < LibConstants.kLidarICPAngleEpsilon &&
+                Math.abs(prevTx - tx) < LibConstants.kLidarICPTranslationEpsilon &&
+                Math.abs(prevTy - ty) < LibConstants.kLidarICPTranslationEpsilon;
+    }
+
     private boolean isConverged(Transform prev, Transform cur)
     {
         return Math.abs(prev.theta - cur.theta) < LibConstants.kLidarICPAngleEpsilon &&
@@ -130,27 +610,21 @@ public class ICP
             return points;
 
         ArrayList<Point> list = new ArrayList<>();
-        HashSet<Integer> buckets = new HashSet<>();
         for (Point p : points)
+            list.add(p);
+        final int n = list.size();
+        double[] xs = new double[n], ys = new double[n];
+        for (int i = 0; i < n; i++)
         {
-            if (buckets.add(getBucket(p.x, p.y, bucketSize)))
-                list.add(p);
+            xs[i] = list.get(i).x;
+            ys[i] = list.get(i).y;
         }
-        return list;
-    }
-
-    /**
-     * Cantor pairing function (to bucket & hash two doubles)
-     * converts two integers into one; used as a hash key
-     */
-    private int getBucket(double x, double y, double bucketSize)
-    {
-        int ix = (int) (x / bucketSize);
-        int iy = (int) (y / bucketSize);
-        int a = ix >= 0 ? 2 * ix : -2 * ix - 1;
-        int b = iy >= 0 ? 2 * iy : -2 * iy - 1;
-        int sum = a + b;
-        return sum * (sum + 1) / 2 + a;
+        VoxelFilter filter = new VoxelFilter(bucketSize, VoxelFilter.Mode.kFirst);
+        int count = filter.filter(xs, ys, n, xs, ys);
+        ArrayList<Point> culled = new ArrayList<>(count);
+        for (int k = 0; k < count; k++)
+            culled.add(list.get(filter.getSourceIndex(k)));
+        return culled;
     }
 
 }
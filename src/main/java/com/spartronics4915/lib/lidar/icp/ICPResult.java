@@ -0,0 +1,109 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+
+/**
+ * The outcome of a primitive {@link ICP#match}: the transform, how it
+ * was reached, and how well it fits.  Each ICP reuses one instance, so
+ * a result is only valid until its ICP's next match.
+ */
+public class ICPResult
+{
+    public enum Status
+    {
+        kConverged, // successive transforms agreed to within the epsilons
+        kTimedOut,  // ran out of time (or maxIterations); the best so far
+        kNoMatch    // every point was an outlier; the guess, unrefined
+    };
+
+    private Transform mTransform;
+    private Status mStatus;
+    private long mIterations;
+    private long mElapsedNs;
+    private double mInlierRatio;
+    private double mResidual;
+
+    void set(Transform transform, Status status, long iterations, long elapsedNs,
+             double inlierRatio, double residual)
+    {
+        mTransform = transform;
+        mStatus = status;
+        mIterations = iterations;
+        mElapsedNs = elapsedNs;
+        mInlierRatio = inlierRatio;
+        mResidual = residual;
+    }
+
+    /**
+     * @return reference -> scan, as returned by doICP
+     */
+    public Transform getTransform()
+    {
+        return mTransform;
+    }
+
+    public Status getStatus()
+    {
+        return mStatus;
+    }
+
+    public boolean isConverged()
+    {
+        return mStatus == Status.kConverged;
+    }
+
+    public long getIterations()
+    {
+        return mIterations;
+    }
+
+    public long getElapsedNs()
+    {
+        return mElapsedNs;
+    }
+
+    /**
+     * @return the fraction of the scan's points within inlierDistance
+     *  (kICPInlierDistance) of the reference at the final iteration
+     */
+    public double getInlierRatio()
+    {
+        return mInlierRatio;
+    }
+
+    /**
+     * @return the mean distance (inches) from the inlier points to the
+     *  reference (to its surface, for pointToLine) at the final iteration
+     */
+    public double getResidual()
+    {
+        return mResidual;
+    }
+
+    /**
+     * @return whether the fit is good enough to use: there was a match,
+     *  with enough inliers lying close enough to the reference.  A fit
+     *  that timed out may still be acceptable.
+     */
+    public boolean isAcceptable(double minInlierRatio, double maxResidual)
+    {
+        return mStatus != Status.kNoMatch && mInlierRatio >= minInlierRatio &&
+               mResidual <= maxResidual;
+    }
+
+    /**
+     * As {@link #isAcceptable(double, double)}, with kICPMinInlierRatio
+     * and kICPMaxResidual.
+     */
+    public boolean isAcceptable()
+    {
+        return isAcceptable(LibConstants.kICPMinInlierRatio, LibConstants.kICPMaxResidual);
+    }
+
+    public String toString()
+    {
+        return mStatus + " " + mTransform + " iterations:" + mIterations +
+               " ms:" + mElapsedNs / 1e6 + " inliers:" + mInlierRatio +
+               " residual:" + mResidual;
+    }
+}
@@ -0,0 +1,206 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running statistics over ICP results, for monitoring and for tuning
+ * kICPTimeoutMs and the acceptance thresholds.
+ * <p>
+ * Written by a single thread (eg: lidar processing) through record(),
+ * and readable from any thread without locking: every field is volatile
+ * or atomic.  Each value read is current, though consecutive reads may
+ * straddle a record() and so come from different matches.
+ * <p>
+ * Elapsed times are also kept in a histogram of 1ms buckets (the last
+ * catching everything longer), from which getElapsedPercentileMs
+ * reads off, eg: how long the slowest 5% of matches take.
+ */
+public class ICPStats
+{
+    private static final int kNumBuckets = 256;
+    private static final long kBucketNs = 1000000;
+
+    private volatile long mMatches = 0;
+    private volatile long mConverged = 0;
+    private volatile long mTimedOut = 0;
+    private volatile long mNoMatch = 0;
+    private volatile long mRejected = 0;
+    private volatile long mIterationsAccum = 0;
+    private volatile long mElapsedNsAccum = 0;
+    private volatile double mResidualAccum = 0; // over matches that found any
+    private volatile double mInlierRatioAccum = 0;
+    private final AtomicLongArray mElapsedHistogram = new AtomicLongArray(kNumBuckets);
+
+    private volatile long mLastIterations = 0;
+    private volatile long mLastElapsedNs = 0;
+    private volatile double mLastInlierRatio = 0;
+    private volatile double mLastResidual = 0;
+    private volatile boolean mLastConverged = false;
+    private volatile boolean mLastAccepted = false;
+
+    /**
+     * Records a match; single writer only.
+     *
+     * @param accepted whether the caller went on to use the result
+     */
+    public void record(ICPResult result, boolean accepted)
+    {
+        mLastIterations = result.getIterations();
+        mLastElapsedNs = result.getElapsedNs();
+        mLastInlierRatio = result.getInlierRatio();
+        mLastResidual = result.getResidual();
+        mLastConverged = result.isConverged();
+        mLastAccepted = accepted;
+
+        mIterationsAccum += result.getIterations();
+        mElapsedNsAccum += result.getElapsedNs();
+        switch (result.getStatus())
+        {
+        case kConverged:
+            mConverged++;
+            break;
+        case kTimedOut:
+            mTimedOut++;
+            break;
+        case kNoMatch:
+            mNoMatch++;
+            break;
+        }
+        if (result.getStatus() != ICPResult.Status.kNoMatch)
+        {
+            mResidualAccum += result.getResidual();
+            mInlierRatioAccum += result.getInlierRatio();
+        }
+        if (!accepted)
+            mRejected++;
+        int bucket = (int) Math.min(kNumBuckets - 1, result.getElapsedNs() / kBucketNs);
+        mElapsedHistogram.incrementAndGet(bucket);
+        mMatches++; // last, so that averages never divide by a count ahead of their sums
+    }
+
+    public long getMatches()
+    {
+        return mMatches;
+    }
+
+    public long getConverged()
+    {
+        return mConverged;
+    }
+
+    public long getTimedOut()
+    {
+        return mTimedOut;
+    }
+
+    public long getNoMatch()
+    {
+        return mNoMatch;
+    }
+
+    /**
+     * @return the number of results the caller didn't use
+     */
+    public long getRejected()
+    {
+        return mRejected;
+    }
+
+    public double getAverageIterations()
+    {
+        long count = mMatches;
+        return count == 0 ? 0 : mIterationsAccum / (double) count;
+    }
+
+    public double getAverageElapsedMs()
+    {
+        long count = mMatches;
+        return count == 0 ? 0 : mElapsedNsAccum / 1e6 / count;
+    }
+
+    /**
+     * @return the mean residual (inches) over matches that found any
+     *  inliers
+     */
+    public double getAverageResidual()
+    {
+        long count = mMatches - mNoMatch;
+        return count <= 0 ? 0 : mResidualAccum / count;
+    }
+
+    public double getAverageInlierRatio()
+    {
+        long count = mMatches - mNoMatch;
+        return count <= 0 ? 0 : mInlierRatioAccum / count;
+    }
+
+    /**
+     * @param fraction eg: .95
+     * @return the time (ms, to the histogram's resolution) within which
+     *  that fraction of matches finished, or 0 before any
+     */
+    public double getElapsedPercentileMs(double fraction)
+    {
+        long total = 0;
+        for (int i = 0; i < kNumBuckets; i++)
+            total += mElapsedHistogram.get(i);
+        if (total == 0)
+            return 0;
+        long sum = 0;
+        for (int i = 0; i < kNumBuckets; i++)
+        {
+            sum += mElapsedHistogram.get(i);
+            if (sum >= fraction * total)
+                return (i + 1) * kBucketNs / 1e6;
+        }
+        return kNumBuckets * kBucketNs / 1e6;
+    }
+
+    public long getLastIterations()
+    {
+        return mLastIterations;
+    }
+
+    public double getLastElapsedMs()
+    {
+        return mLastElapsedNs / 1e6;
+    }
+
+    public double getLastInlierRatio()
+    {
+        return mLastInlierRatio;
+    }
+
+    /**
+     * @return the most recent match's mean distance (inches) from its
+     *  inlier points to the reference, once registered
+     */
+    public double getLastResidual()
+    {
+        return mLastResidual;
+    }
+
+    public boolean getLastConverged()
+    {
+        return mLastConverged;
+    }
+
+    public boolean getLastAccepted()
+    {
+        return mLastAccepted;
+    }
+
+    public String toString()
+    {
+        return "matches:" + getMatches() +
+               " converged:" + getConverged() +
+               " timedOut:" + getTimedOut() +
+               " noMatch:" + getNoMatch() +
+               " rejected:" + getRejected() +
+               " iterations:" + getAverageIterations() +
+               " ms:" + getAverageElapsedMs() +
+               " p95ms:" + getElapsedPercentileMs(.95) +
+               " inliers:" + getAverageInlierRatio() +
+               " residual:" + getAverageResidual();
+    }
+}
@@ -5,5 +5,31 @@ public interface IReferenceModel
 
     public Point getClosestPoint(Point p);
 
+    /**
+     * Writes the coordinates of the model point closest to (x, y) into
+     * out[0] and out[1]. The default implementation allocates; models
+     * used on the ICP hot path override it.  Parallel ICP calls this
+     * concurrently, so implementations must not keep per-query state
+     * outside of out.
+     */
+    public default void getClosestPoint(double x, double y, double[] out)
+    {
+        Point p = getClosestPoint(new Point(x, y));
+        out[0] = p.x;
+        out[1] = p.y;
+    }
+
+    /**
+     * As {@link #getClosestPoint(double, double, double[])}, and also
+     * writes the unit normal of the model's surface at the closest point
+     * into out[2] and out[3] (used by point-to-line ICP).  Models that
+     * can't estimate a normal there write NaNs, which is the default.
+     */
+    public default void getClosestPointAndNormal(double x, double y, double[] out)
+    {
+        getClosestPoint(x, y, out);
+        out[2] = out[3] = Double.NaN;
+    }
+
     public void transformBy(Transform t);
 }
@@ -0,0 +1,319 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+import java.util.Arrays;
+
+/**
+ * A point cloud reference model backed by a 2D k-d tree. The tree is
+ * stored implicitly in flat arrays: the median of each index range
+ * [lo, hi) is the node, [lo, mid) is its left subtree and [mid+1, hi)
+ * its right subtree.  Even depths split on x, odd depths split on y.
+ * <p>
+ * The tree is built once per point cloud (O(N log N)) after which
+ * {@link #getClosestPoint} runs in O(log N) on average, versus the
+ * O(N) linear scan of {@link PointCloudReferenceModel}.  A model can
+ * be refilled with {@link #setPoints} to reuse its buffers.
+ * <p>
+ * Surface normals for point-to-line ICP are estimated on first use,
+ * by principal component analysis of the points within
+ * kICPNormalRadius of each point.
+ */
+public class KDTreeReferenceModel implements IReferenceModel
+{
+
+    // a normal is only trusted if the neighborhood is this close to a line
+    private static final double kMaxEigenRatio = 0.25;
+
+    private double[] mXs = new double[0], mYs = new double[0];
+    private double[] mNxs = new double[0], mNys = new double[0];
+    private volatile boolean mNormalsValid = false;
+    private int mSize = 0;
+
+    public KDTreeReferenceModel()
+    {
+    }
+
+    public KDTreeReferenceModel(Iterable<Point> pointCloud)
+    {
+        int n = 0;
+        for (Point p : pointCloud)
+        {
+            if (n == mXs.length)
+                ensureCapacity(Math.max(16, 2 * n));
+            mXs[n] = p.x;
+            mYs[n] = p.y;
+            n++;
+        }
+        mSize = n;
+        buildRange(0, mSize, 0);
+        mNormalsValid = false;
+    }
+
+    /**
+     * Replaces the model's points with a copy of the first n entries
+     * of xs and ys, and rebuilds the tree.
+     */
+    public void setPoints(double[] xs, double[] ys, int n)
+    {
+        ensureCapacity(n);
+        System.arraycopy(xs, 0, mXs, 0, n);
+        System.arraycopy(ys, 0, mYs, 0, n);
+        mSize = n;
+        buildRange(0, mSize, 0);
+        mNormalsValid = false;
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (mXs.length < n)
+        {
+            mXs = Arrays.copyOf(mXs, n);
+            mYs = Arrays.copyOf(mYs, n);
+        }
+    }
+
+    private void buildRange(int lo, int hi, int depth)
+    {
+        if (hi - lo < 2)
+            return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, (depth & 1) == 0 ? mXs : mYs);
+        buildRange(lo, mid, depth + 1);
+        buildRange(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Quickselect: partially orders [lo, hi] so that index k holds the
+     * element that would be there if the range were sorted by keys.
+     */
+    private void select(int lo, int hi, int k, double[] keys)
+    {
+        while (hi > lo)
+        {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j)
+            {
+                while (keys[i] < pivot)
+                    i++;
+                while (keys[j] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        double t = mXs[i];
+        mXs[i] = mXs[j];
+        mXs[j] = t;
+        t = mYs[i];
+        mYs[i] = mYs[j];
+        mYs[j] = t;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public double getX(int i)
+    {
+        return mXs[i];
+    }
+
+    public double getY(int i)
+    {
+        return mYs[i];
+    }
+
+    @Override
+    public Point getClosestPoint(Point refPnt)
+    {
+        int i = getClosestIndex(refPnt.x, refPnt.y, new double[2]);
+        return i < 0 ? null : new Point(mXs[i], mYs[i]);
+    }
+
+    /**
+     * Safe to call concurrently (e.g. from parallel ICP), since the
+     * search state lives in the caller's out array.  Writes NaNs if the
+     * model is empty, where the Point overload returns null.
+     */
+    @Override
+    public void getClosestPoint(double x, double y, double[] out)
+    {
+        int i = getClosestIndex(x, y, out);
+        if (i < 0)
+        {
+            out[0] = out[1] = Double.NaN;
+            return;
+        }
+        out[0] = mXs[i];
+        out[1] = mYs[i];
+    }
+
+    /**
+     * The normal is NaN where fewer than three points lie within
+     * kICPNormalRadius or they don't form a line (e.g. at corners), and
+     * everything is NaN if the model is empty.
+     */
+    @Override
+    public void getClosestPointAndNormal(double x, double y, double[] out)
+    {
+        if (!mNormalsValid)
+            computeNormals();
+        int i = getClosestIndex(x, y, out);
+        if (i < 0)
+        {
+            out[0] = out[1] = out[2] = out[3] = Double.NaN;
+            return;
+        }
+        out[0] = mXs[i];
+        out[1] = mYs[i];
+        out[2] = mNxs[i];
+        out[3] = mNys[i];
+    }
+
+    private synchronized void computeNormals()
+    {
+        if (mNormalsValid)
+            return; // another ICP worker beat us to it
+        if (mNxs.length < mSize)
+        {
+            mNxs = new double[mXs.length];
+            mNys = new double[mXs.length];
+        }
+        final double r = LibConstants.kICPNormalRadius;
+        final double[] acc = new double[6];
+        for (int i = 0; i < mSize; i++)
+        {
+            Arrays.fill(acc, 0);
+            gather(0, mSize, 0, mXs[i], mYs[i], r * r, acc);
+            double n = acc[0];
+            double mx = acc[1] / n, my = acc[2] / n;
+            double cxx = acc[3] / n - mx * mx;
+            double cxy = acc[4] / n - mx * my;
+            double cyy = acc[5] / n - my * my;
+            double half = (cxx + cyy) / 2;
+            double root = Math.hypot((cxx - cyy) / 2, cxy);
+            if (n < 3 || half - root > kMaxEigenRatio * (half + root))
+            {
+                mNxs[i] = mNys[i] = Double.NaN;
+                continue;
+            }
+            double phi = Math.atan2(2 * cxy, cxx - cyy) / 2; // principal axis
+            mNxs[i] = -Math.sin(phi);
+            mNys[i] = Math.cos(phi);
+        }
+        mNormalsValid = true;
+    }
+
+    /**
+     * Accumulates count, sum and second moments of the offsets to
+     * (qx, qy) of points within sqrt(rSq) of it.
+     */
+    private void gather(int lo, int hi, int depth, double qx, double qy, double rSq, double[] acc)
+    {
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            double dx = mXs[mid] - qx, dy = mYs[mid] - qy;
+            if (dx * dx + dy * dy <= rSq)
+            {
+                acc[0]++;
+                acc[1] += dx;
+                acc[2] += dy;
+                acc[3] += dx * dx;
+                acc[4] += dx * dy;
+                acc[5] += dy * dy;
+            }
+            double delta = (depth & 1) == 0 ? -dx : -dy;
+            depth++;
+            if (delta < 0)
+            {
+                gather(lo, mid, depth, qx, qy, rSq, acc);
+                if (delta * delta > rSq)
+                    return;
+                lo = mid + 1;
+            }
+            else
+            {
+                gather(mid + 1, hi, depth, qx, qy, rSq, acc);
+                if (delta * delta > rSq)
+                    return;
+                hi = mid;
+            }
+        }
+    }
+
+    /**
+     * Returns the index (in tree order) of the point closest to (x, y),
+     * or -1 if the model is empty.
+     *
+     * @param best scratch for the search: best distance squared, best index
+     */
+    private int getClosestIndex(double x, double y, double[] best)
+    {
+        best[0] = Double.MAX_VALUE;
+        best[1] = -1;
+        search(0, mSize, 0, x, y, best);
+        return (int) best[1];
+    }
+
+    private void search(int lo, int hi, int depth, double qx, double qy, double[] best)
+    {
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            double dx = qx - mXs[mid];
+            double dy = qy - mYs[mid];
+            double distSq = dx * dx + dy * dy;
+            if (distSq < best[0])
+            {
+                best[0] = distSq;
+                best[1] = mid;
+            }
+            double delta = (depth & 1) == 0 ? dx : dy;
+            depth++;
+            // descend into the near side first, then visit the far side
+            // only if the splitting plane is closer than the best so far.
+            if (delta < 0)
+            {
+                search(lo, mid, depth, qx, qy, best);
+                if (delta * delta >= best[0])
+                    return;
+                lo = mid + 1;
+            }
+            else
+            {
+                search(mid + 1, hi, depth, qx, qy, best);
+                if (delta * delta >= best[0])
+                    return;
+                hi = mid;
+            }
+        }
+    }
+
+    @Override
+    public void transformBy(Transform t)
+    {
+        // a rotation invalidates the splitting planes, so rebuild.
+        for (int i = 0; i < mSize; i++)
+        {
+            double x = mXs[i], y = mYs[i];
+            mXs[i] = x * t.cos - y * t.sin + t.tx;
+            mYs[i] = x * t.sin + y * t.cos + t.ty;
+        }
+        buildRange(0, mSize, 0);
+        mNormalsValid = false;
+    }
+
+}
@@ -0,0 +1,358 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+import java.util.ArrayList;
+
+/**
+ * Extracts straight line segments (eg: field walls) from a scan whose
+ * points are in angle order, as they arrive from the lidar.
+ * <p>
+ * Extraction is incremental and split-and-merge: walking the scan,
+ * each point joins the current line if it lies within maxDistance of
+ * the line's fit and within maxGap of the previous point, otherwise it
+ * splits off a new line.  Fits are total least squares over running
+ * sums, so a point costs O(1).  Points that a line picked up past a
+ * corner are then handed to the next line if they fit it better, and
+ * neighbouring lines that turn out to be collinear (eg: split by a
+ * noisy early fit) are merged, including across the seam at the end
+ * of a full revolution.  Lines with fewer than minPoints points or
+ * shorter than minLength are dropped.
+ * <p>
+ * Each segment runs between the projections of its first and last
+ * points onto its fit.  They're kept in primitive arrays for
+ * SegmentMatcher; getSegments() makes Segment objects of them.
+ * <p>
+ * Reused between calls; not thread-safe.
+ */
+public class LineExtractor
+{
+    private final double mMaxGap;
+    private final double mMaxDistance;
+    private final int mMinPoints;
+    private final double mMinLength;
+
+    // running lines: index range and sums of x, y, xx, xy, yy
+    private int[] mFirsts = new int[0], mLasts = new int[0], mCounts = new int[0];
+    private double[] mSx = new double[0], mSy = new double[0];
+    private double[] mSxx = new double[0], mSxy = new double[0], mSyy = new double[0];
+    private int mRuns;
+
+    // fit scratch, written by fit()
+    private double mFitMx, mFitMy, mFitUx, mFitUy, mFitMeanSq;
+
+    // the extracted segments
+    private double[] mX0s = new double[0], mY0s = new double[0];
+    private double[] mX1s = new double[0], mY1s = new double[0];
+    private int[] mPoints = new int[0];
+    private int mSize;
+
+    public LineExtractor()
+    {
+        this(LibConstants.kLidarLineMaxGap, LibConstants.kLidarLineSplitDistance,
+             LibConstants.kLidarLineMinPoints, LibConstants.kLidarLineMinLength);
+    }
+
+    /**
+     * @param maxGap max distance between neighbouring points on a line
+     * @param maxDistance max distance of a point from its line's fit
+     * @param minPoints lines with fewer points are dropped
+     * @param minLength shorter lines are dropped
+     */
+    public LineExtractor(double maxGap, double maxDistance, int minPoints, double minLength)
+    {
+        mMaxGap = maxGap;
+        mMaxDistance = maxDistance;
+        mMinPoints = minPoints;
+        mMinLength = minLength;
+    }
+
+    /**
+     * Extracts segments from the first n points of xs, ys.
+     *
+     * @return the number of segments
+     */
+    public int extract(double[] xs, double[] ys, int n)
+    {
+        ensureCapacity(n);
+        mRuns = 0;
+        mSize = 0;
+        if (n == 0)
+            return 0;
+
+        // split
+        startRun(xs, ys, 0);
+        for (int i = 1; i < n; i++)
+        {
+            final int r = mRuns - 1;
+            final double gx = xs[i] - xs[i - 1], gy = ys[i] - ys[i - 1];
+            boolean split = gx * gx + gy * gy > mMaxGap * mMaxGap;
+            if (!split && mCounts[r] >= 3)
+            {
+                fit(r, r);
+                split = distance(xs[i], ys[i]) > mMaxDistance;
+            }
+            if (split)
+                startRun(xs, ys, i);
+            else
+                addPoint(r, xs[i], ys[i], i);
+        }
+
+        // a line grows past a corner until points leave it by more than
+        // maxDistance; hand those back to the next line
+        for (int r = 0; r + 1 < mRuns; r++)
+        {
+            final int b = r + 1;
+            final double gx = xs[mFirsts[b]] - xs[mLasts[r]];
+            final double gy = ys[mFirsts[b]] - ys[mLasts[r]];
+            if (gx * gx + gy * gy > mMaxGap * mMaxGap)
+                continue;
+            while (mCounts[r] > 3 && mCounts[b] >= 3)
+            {
+                final int i = mLasts[r];
+                fit(r, r);
+                final double da = distance(xs[i], ys[i]);
+                fit(b, b);
+                if (distance(xs[i], ys[i]) >= da)
+                    break;
+                removeLast(r, xs[i], ys[i]);
+                addFirst(b, xs[i], ys[i], i);
+            }
+        }
+
+        // merge neighbours, then the last run with the first
+        int m = 0;
+        for (int r = 1; r < mRuns; r++)
+        {
+            if (isMergeable(xs, ys, m, r))
+                mergeInto(m, r);
+            else
+                copyRun(r, ++m);
+        }
+        mRuns = m + 1;
+        if (mRuns > 1 && isMergeable(xs, ys, mRuns - 1, 0))
+        {
+            mergeInto(mRuns - 1, 0);
+            copyRun(mRuns - 1, 0);
+            mRuns--;
+        }
+
+        for (int r = 0; r < mRuns; r++)
+        {
+            if (mCounts[r] < mMinPoints)
+                continue;
+            fit(r, r);
+            final double t0 = project(xs[mFirsts[r]], ys[mFirsts[r]]);
+            final double t1 = project(xs[mLasts[r]], ys[mLasts[r]]);
+            if (Math.abs(t1 - t0) < mMinLength)
+                continue;
+            mX0s[mSize] = mFitMx + t0 * mFitUx;
+            mY0s[mSize] = mFitMy + t0 * mFitUy;
+            mX1s[mSize] = mFitMx + t1 * mFitUx;
+            mY1s[mSize] = mFitMy + t1 * mFitUy;
+            mPoints[mSize] = mCounts[r];
+            mSize++;
+        }
+        return mSize;
+    }
+
+    /**
+     * @return the number of segments found by the last extract
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * @return the start of segment k, nearest its first point in scan order
+     */
+    public double getX0(int k)
+    {
+        return mX0s[k];
+    }
+
+    public double getY0(int k)
+    {
+        return mY0s[k];
+    }
+
+    /**
+     * @return the end of segment k, nearest its last point in scan order
+     */
+    public double getX1(int k)
+    {
+        return mX1s[k];
+    }
+
+    public double getY1(int k)
+    {
+        return mY1s[k];
+    }
+
+    /**
+     * @return the number of scan points that make up segment k
+     */
+    public int getPointCount(int k)
+    {
+        return mPoints[k];
+    }
+
+    /**
+     * @return the last extract's segments, as new Segment objects
+     */
+    public ArrayList<Segment> getSegments()
+    {
+        ArrayList<Segment> segments = new ArrayList<>(mSize);
+        for (int k = 0; k < mSize; k++)
+        {
+            segments.add(new Segment(new Point(mX0s[k], mY0s[k]),
+                                     new Point(mX1s[k], mY1s[k])));
+        }
+        return segments;
+    }
+
+    private void startRun(double[] xs, double[] ys, int i)
+    {
+        final int r = mRuns++;
+        mFirsts[r] = i;
+        mCounts[r] = 0;
+        mSx[r] = mSy[r] = mSxx[r] = mSxy[r] = mSyy[r] = 0;
+        addPoint(r, xs[i], ys[i], i);
+    }
+
+    private void addPoint(int r, double x, double y, int i)
+    {
+        mLasts[r] = i;
+        mCounts[r]++;
+        mSx[r] += x;
+        mSy[r] += y;
+        mSxx[r] += x * x;
+        mSxy[r] += x * y;
+        mSyy[r] += y * y;
+    }
+
+    private void removeLast(int r, double x, double y)
+    {
+        mLasts[r]--;
+        mCounts[r]--;
+        mSx[r] -= x;
+        mSy[r] -= y;
+        mSxx[r] -= x * x;
+        mSxy[r] -= x * y;
+        mSyy[r] -= y * y;
+    }
+
+    private void addFirst(int r, double x, double y, int i)
+    {
+        final int last = mLasts[r];
+        addPoint(r, x, y, i);
+        mFirsts[r] = i;
+        mLasts[r] = last;
+    }
+
+    /**
+     * Whether run b, which follows run a in the scan, continues a's line:
+     * the gap between them is small, and the line fit to both passes
+     * within maxDistance of their ends, with an RMS distance within half
+     * that.
+     */
+    private boolean isMergeable(double[] xs, double[] ys, int a, int b)
+    {
+        final double gx = xs[mFirsts[b]] - xs[mLasts[a]];
+        final double gy = ys[mFirsts[b]] - ys[mLasts[a]];
+        if (gx * gx + gy * gy > mMaxGap * mMaxGap)
+            return false;
+        fit(a, b);
+        final double half = mMaxDistance / 2;
+        return mFitMeanSq <= half * half &&
+               distance(xs[mFirsts[a]], ys[mFirsts[a]]) <= mMaxDistance &&
+               distance(xs[mLasts[a]], ys[mLasts[a]]) <= mMaxDistance &&
+               distance(xs[mFirsts[b]], ys[mFirsts[b]]) <= mMaxDistance &&
+               distance(xs[mLasts[b]], ys[mLasts[b]]) <= mMaxDistance;
+    }
+
+    private void mergeInto(int a, int b)
+    {
+        mLasts[a] = mLasts[b];
+        mCounts[a] += mCounts[b];
+        mSx[a] += mSx[b];
+        mSy[a] += mSy[b];
+        mSxx[a] += mSxx[b];
+        mSxy[a] += mSxy[b];
+        mSyy[a] += mSyy[b];
+    }
+
+    private void copyRun(int from, int to)
+    {
+        if (from == to)
+            return;
+        mFirsts[to] = mFirsts[from];
+        mLasts[to] = mLasts[from];
+        mCounts[to] = mCounts[from];
+        mSx[to] = mSx[from];
+        mSy[to] = mSy[from];
+        mSxx[to] = mSxx[from];
+        mSxy[to] = mSxy[from];
+        mSyy[to] = mSyy[from];
+    }
+
+    /**
+     * Fits a line to the points of runs a and b (which may be the same
+     * run), leaving its centroid, unit direction and mean squared
+     * distance of the points from it in mFit*.
+     */
+    private void fit(int a, int b)
+    {
+        double n = mCounts[a], sx = mSx[a], sy = mSy[a];
+        double sxx = mSxx[a], sxy = mSxy[a], syy = mSyy[a];
+        if (b != a)
+        {
+            n += mCounts[b];
+            sx += mSx[b];
+            sy += mSy[b];
+            sxx += mSxx[b];
+            sxy += mSxy[b];
+            syy += mSyy[b];
+        }
+        mFitMx = sx / n;
+        mFitMy = sy / n;
+        final double cxx = sxx / n - mFitMx * mFitMx;
+        final double cxy = sxy / n - mFitMx * mFitMy;
+        final double cyy = syy / n - mFitMy * mFitMy;
+        final double angle = .5 * Math.atan2(2 * cxy, cxx - cyy);
+        mFitUx = Math.cos(angle);
+        mFitUy = Math.sin(angle);
+        // the smaller eigenvalue of the covariance
+        final double half = (cxx - cyy) / 2;
+        mFitMeanSq = Math.max(0, (cxx + cyy) / 2 - Math.sqrt(half * half + cxy * cxy));
+    }
+
+    private double distance(double x, double y)
+    {
+        return Math.abs((y - mFitMy) * mFitUx - (x - mFitMx) * mFitUy);
+    }
+
+    private double project(double x, double y)
+    {
+        return (x - mFitMx) * mFitUx + (y - mFitMy) * mFitUy;
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (mFirsts.length >= n)
+            return;
+        mFirsts = new int[n];
+        mLasts = new int[n];
+        mCounts = new int[n];
+        mSx = new double[n];
+        mSy = new double[n];
+        mSxx = new double[n];
+        mSxy = new double[n];
+        mSyy = new double[n];
+        mX0s = new double[n];
+        mY0s = new double[n];
+        mX1s = new double[n];
+        mY1s = new double[n];
+        mPoints = new int[n];
+    }
+}
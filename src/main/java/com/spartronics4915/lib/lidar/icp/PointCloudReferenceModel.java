@@ -29,6 +29,23 @@ public class PointCloudReferenceModel implements IReferenceModel
         return minPnt;
     }
 
+    @Override
+    public void getClosestPoint(double x, double y, double[] out)
+    {
+        double minDist = Double.MAX_VALUE;
+        for (Point testPnt : mPointCloud)
+        {
+            double dx = x - testPnt.x, dy = y - testPnt.y;
+            double dist = dx * dx + dy * dy;
+            if (dist < minDist)
+            {
+                out[0] = testPnt.x;
+                out[1] = testPnt.y;
+                minDist = dist;
+            }
+        }
+    }
+
     @Override
     public void transformBy(Transform t)
     {
@@ -1,15 +1,25 @@
 package com.spartronics4915.lib.lidar.icp;
 
+import com.spartronics4915.lib.LibConstants;
+import java.util.Arrays;
+
 public class RelativeICPProcessor
 {
     private final ICP mICP;
+    private final CorrelativeMatcher mMatcher;
+    private final LineExtractor mLines;
+    private final SegmentMatcher mSegmentMatcher;
     private final Transform mZero;
-    private IReferenceModel mLastReferenceModel;
+    private KDTreeReferenceModel mLastReferenceModel;
+    private KDTreeReferenceModel mNextReferenceModel;
+    private double[] mXs = new double[0], mYs = new double[0];
+    private ICPResult mLastResult;
+    private boolean mLastByLines;
 
     /**
      * Instantiate a RelativeICPProcessor and have it make its own ICP object. You
      * must specify the convergence timeout for the ICP object that will be made.
-     * 
+     *
      * @param icpTimeoutMs Convergence timeout for ICP
      */
     public RelativeICPProcessor(long icpTimeoutMs)
@@ -20,33 +30,158 @@ public class RelativeICPProcessor
     /**
      * Instantiate a RelativeICPProcessor with a caller-supplied ICP object (e.g.
      * you alread have one made, and don't want to instantiate a whole new one)
-     * 
+     *
      * @param icp Premade ICP object
      */
     public RelativeICPProcessor(ICP icp)
+    {
+        this(icp, LibConstants.kLidarCorrelativeSeed ? new CorrelativeMatcher() : null);
+    }
+
+    /**
+     * @param icp Premade ICP object
+     * @param matcher seeds ICP with its best candidate near the identity,
+     *  or null to seed with the identity itself
+     */
+    public RelativeICPProcessor(ICP icp, CorrelativeMatcher matcher)
+    {
+        this(icp, matcher, LibConstants.kLidarLineFeatures);
+    }
+
+    /**
+     * @param icp Premade ICP object
+     * @param matcher seeds ICP with its best candidate near the identity,
+     *  or null to seed with the identity itself
+     * @param lineFeatures match scans by their line segments where
+     *  there are enough of them, falling back to ICP
+     */
+    public RelativeICPProcessor(ICP icp, CorrelativeMatcher matcher, boolean lineFeatures)
     {
         mICP = icp;
+        mMatcher = matcher;
+        mLines = lineFeatures ? new LineExtractor() : null;
+        mSegmentMatcher = lineFeatures ? new SegmentMatcher() : null;
         mZero = new Transform();
+        mNextReferenceModel = new KDTreeReferenceModel();
     }
 
     /**
      * Applies ICP point registration, using the last provided point cloud as a
      * reference. Returns a Transform that can be used to register the old
      * point cloud to the new one. This is a representation of the relative
-     * motion of the robot. Since we never convert to field coordinates, we 
-     * don't care about absolute robot pose or even vehicleToLidar
-     * 
+     * motion of the robot. Since we never convert to field coordinates, we
+     * don't care about absolute robot pose or even vehicleToLidar.
+     * The reference model is indexed by a k-d tree, built once per scan,
+     * so each correspondence lookup is O(log N).
+     *
      * @param pointCloud
      * @return The relative transform to transform first pointcloud to second.
      */
     public Transform doRelativeICP(Iterable<Point> pointCloud)
     {
-        Transform result;
-        if(mLastReferenceModel != null)
-            result = mICP.doICP(pointCloud, mZero, mLastReferenceModel);
-        else
-            result = new Transform(); // ie no-tranform
-        mLastReferenceModel = new PointCloudReferenceModel(pointCloud); 
+        int n = 0;
+        for (Point p : pointCloud)
+        {
+            if (n == mXs.length)
+            {
+                mXs = Arrays.copyOf(mXs, Math.max(16, 2 * n));
+                mYs = Arrays.copyOf(mYs, mXs.length);
+            }
+            mXs[n] = p.x;
+            mYs[n] = p.y;
+            n++;
+        }
+        return doRelativeICP(mXs, mYs, n);
+    }
+
+    /**
+     * As {@link #doRelativeICP(Iterable)}, for the first n entries of
+     * primitive coordinate arrays.  The two k-d trees (previous scan and
+     * the one being replaced) are recycled, so steady-state operation
+     * doesn't allocate.  If there's a CorrelativeMatcher, ICP starts
+     * from its best match rather than from no motion at all.
+     */
+    public Transform doRelativeICP(double[] xs, double[] ys, int n)
+    {
+        return doRelativeICP(xs, ys, n, null);
+    }
+
+    /**
+     * As {@link #doRelativeICP(double[], double[], int)}, starting from
+     * motionGuess (eg: from odometry) rather than from no motion.
+     * If ICP's fit isn't {@link ICPResult#isAcceptable acceptable}, the
+     * (matched) guess is returned instead.
+     * <p>
+     * With line features, the points must be in scan (angle) order.
+     * Both scans' line segments are matched first, starting from
+     * motionGuess; only if that fails (too few lines, or a poor fit) do
+     * the CorrelativeMatcher and point ICP run.
+     *
+     * @param motionGuess expected result, or null if unknown
+     */
+    public Transform doRelativeICP(double[] xs, double[] ys, int n, Transform motionGuess)
+    {
+        Transform result = mZero; // ie no-tranform
+        if (mLines != null)
+            mLines.extract(xs, ys, n);
+        mLastResult = null;
+        mLastByLines = false;
+        try
+        {
+            if(mLastReferenceModel != null)
+            {
+                Transform guess = motionGuess != null ? motionGuess : mZero;
+                if (mLines != null && mSegmentMatcher.hasReference())
+                {
+                    ICPResult lineResult = mSegmentMatcher.match(mLines, guess);
+                    if (lineResult.isAcceptable())
+                    {
+                        mLastResult = lineResult;
+                        mLastByLines = true;
+                    }
+                }
+                if (mLastResult == null)
+                {
+                    if (mMatcher != null)
+                        guess = mMatcher.match(xs, ys, n, guess);
+                    mLastResult = mICP.match(xs, ys, n, guess, mLastReferenceModel);
+                }
+                result = mLastResult.isAcceptable() ? mLastResult.getTransform() : guess;
+            }
+        }
+        finally
+        {
+            // this scan is the next one's reference however its own match
+            // went, so one bad scan can't wedge the processor
+            KDTreeReferenceModel model = mNextReferenceModel;
+            model.setPoints(xs, ys, n);
+            if (mMatcher != null)
+                mMatcher.setReference(xs, ys, n);
+            if (mLines != null)
+                mSegmentMatcher.setReference(mLines);
+            mNextReferenceModel = mLastReferenceModel != null ?
+                                    mLastReferenceModel : new KDTreeReferenceModel();
+            mLastReferenceModel = model;
+        }
         return result;
     }
+
+    /**
+     * @return the ICP result behind the last doRelativeICP, or null if it
+     *  had no previous scan to match against.  Valid until the ICP's
+     *  next match.
+     */
+    public ICPResult getLastResult()
+    {
+        return mLastResult;
+    }
+
+    /**
+     * @return whether the last doRelativeICP's result came from matching
+     *  line segments rather than from ICP
+     */
+    public boolean isLastByLines()
+    {
+        return mLastByLines;
+    }
 }
@@ -53,6 +53,28 @@ public class Segment
         return d * d;
     }
 
+    public double getDistanceSq(double x, double y)
+    {
+        double t = line.getT(x, y);
+        double dx, dy;
+        if (t <= tMin)
+        {
+            dx = x - pMin.x;
+            dy = y - pMin.y;
+        }
+        else if (t >= tMax)
+        {
+            dx = x - pMax.x;
+            dy = y - pMax.y;
+        }
+        else
+        {
+            double d = line.vy * x - line.vx * y - line.r;
+            return d * d;
+        }
+        return dx * dx + dy * dy;
+    }
+
     public Point getClosestPoint(Point p)
     {
         double t = line.getT(p);
@@ -63,6 +85,38 @@ public class Segment
         return line.getPoint(t);
     }
 
+    public void getClosestPoint(double x, double y, double[] out)
+    {
+        double t = line.getT(x, y);
+        if (t <= tMin)
+        {
+            out[0] = pMin.x;
+            out[1] = pMin.y;
+        }
+        else if (t >= tMax)
+        {
+            out[0] = pMax.x;
+            out[1] = pMax.y;
+        }
+        else
+        {
+            out[0] = line.x0 + line.vx * t;
+            out[1] = line.y0 + line.vy * t;
+        }
+    }
+
+    /**
+     * As getClosestPoint, also writing the unit normal of the
+     * segment into out[2], out[3].
+     */
+    public void getClosestPointAndNormal(double x, double y, double[] out)
+    {
+        getClosestPoint(x, y, out);
+        double m = Math.hypot(line.vx, line.vy);
+        out[2] = -line.vy / m;
+        out[3] = line.vx / m;
+    }
+
     public Point getMidpoint()
     {
         return line.getPoint((tMin + tMax) / 2);
@@ -0,0 +1,275 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+
+/**
+ * Estimates the motion between two scans from their line segments (see
+ * {@link LineExtractor}), rather than from their points.
+ * <p>
+ * Each iteration moves the scan's segments into the reference frame by
+ * the current estimate, pairs each with the reference segment that is
+ * nearly parallel (within maxAngle), close (its midpoint within
+ * maxDistance of the reference line) and overlapping, and then solves
+ * the same point-to-line normal equations as ICP, for the distances of
+ * each paired segment's endpoints from its partner's line, weighted by
+ * the segment's point count.  A scan of a field has a few dozen
+ * segments against a few hundred points, so an iteration is cheap, and
+ * each pairing constrains a whole wall at once.
+ * <p>
+ * Segments constrain motion only across themselves, so too few
+ * pairings, or pairings that are all nearly parallel (eg: a corridor),
+ * yield a kNoMatch result, and the caller should fall back to ICP.
+ * The result's inlier ratio is the fraction of the scan's segment points
+ * on segments paired within inlierDistance, and its residual the mean
+ * endpoint distance over the pairings.
+ * <p>
+ * Reused between calls; not thread-safe.
+ */
+public class SegmentMatcher
+{
+    private static final int kMaxIterations = 10;
+    private static final double kMinConditioning = .05; // weakest/strongest translation constraint
+
+    private final double mMaxDistance;
+    private final double mMaxAngle;
+    private final int mMinPairs;
+    public double inlierDistance = LibConstants.kICPInlierDistance;
+
+    // reference segments: endpoints, unit direction, length
+    private double[] mRefX0s = new double[0], mRefY0s = new double[0];
+    private double[] mRefUxs = new double[0], mRefUys = new double[0], mRefLengths = new double[0];
+    private int mRefSize = 0;
+    private boolean mHasReference = false;
+
+    private final double[] mSums = new double[ICP.kNumLineSums];
+    private final ICPResult mResult = new ICPResult();
+
+    public SegmentMatcher()
+    {
+        this(LibConstants.kLidarLineMatchDistance, LibConstants.kLidarLineMatchAngle,
+             LibConstants.kLidarLineMinPairs);
+    }
+
+    /**
+     * @param maxDistance max distance between paired segments
+     * @param maxAngle max angle (radians) between paired segments
+     * @param minPairs fewer pairings are no match
+     */
+    public SegmentMatcher(double maxDistance, double maxAngle, int minPairs)
+    {
+        mMaxDistance = maxDistance;
+        mMaxAngle = maxAngle;
+        mMinPairs = minPairs;
+    }
+
+    /**
+     * Copies the segments last extracted by lines, which can then be
+     * reused for the next scan.
+     */
+    public void setReference(LineExtractor lines)
+    {
+        final int n = lines.size();
+        if (mRefX0s.length < n)
+        {
+            mRefX0s = new double[n];
+            mRefY0s = new double[n];
+            mRefUxs = new double[n];
+            mRefUys = new double[n];
+            mRefLengths = new double[n];
+        }
+        for (int j = 0; j < n; j++)
+        {
+            final double dx = lines.getX1(j) - lines.getX0(j);
+            final double dy = lines.getY1(j) - lines.getY0(j);
+            final double length = Math.hypot(dx, dy);
+            mRefX0s[j] = lines.getX0(j);
+            mRefY0s[j] = lines.getY0(j);
+            mRefUxs[j] = dx / length;
+            mRefUys[j] = dy / length;
+            mRefLengths[j] = length;
+        }
+        mRefSize = n;
+        mHasReference = true;
+    }
+
+    public boolean hasReference()
+    {
+        return mHasReference;
+    }
+
+    /**
+     * @return the number of reference segments
+     */
+    public int getReferenceSize()
+    {
+        return mRefSize;
+    }
+
+    /**
+     * Registers the segments last extracted by lines against the
+     * reference.
+     *
+     * @param guess reference -> scan, as passed to ICP; null for the identity
+     * @return this matcher's result, in the same sense as ICP's, valid
+     *  until its next match
+     */
+    public ICPResult match(LineExtractor lines, Transform guess)
+    {
+        final long startTime = System.nanoTime();
+        double theta = 0, tx = 0, ty = 0, sin = 0, cos = 1;
+        if (guess != null)
+        {
+            theta = guess.theta;
+            tx = guess.tx;
+            ty = guess.ty;
+            sin = guess.sin;
+            cos = guess.cos;
+        }
+        final double[] sums = mSums;
+        final int n = lines.size();
+        int totalPoints = 0;
+        for (int i = 0; i < n; i++)
+            totalPoints += lines.getPointCount(i);
+
+        ICPResult.Status status = ICPResult.Status.kTimedOut;
+        double residual = Double.POSITIVE_INFINITY, inliers = 0;
+        int iteration = 0;
+        while (iteration < kMaxIterations)
+        {
+            iteration++;
+            // inverse of the current estimate (cf. Transform.inverse): scan -> reference
+            final double invTx = -tx * cos - ty * sin, invTy = tx * sin - ty * cos;
+            final double invSin = -sin, invCos = cos;
+            for (int k = 0; k < ICP.kNumLineSums; k++)
+                sums[k] = 0;
+            int pairs = 0;
+            double weights = 0, sumDists = 0;
+            int inlierPoints = 0;
+            for (int i = 0; i < n; i++)
+            {
+                final double ax = lines.getX0(i) * invCos - lines.getY0(i) * invSin + invTx;
+                final double ay = lines.getX0(i) * invSin + lines.getY0(i) * invCos + invTy;
+                final double bx = lines.getX1(i) * invCos - lines.getY1(i) * invSin + invTx;
+                final double by = lines.getX1(i) * invSin + lines.getY1(i) * invCos + invTy;
+                final int j = findPair(ax, ay, bx, by);
+                if (j < 0)
+                    continue;
+                // the reference line's unit normal, and the endpoints' distances from it
+                final double nx = -mRefUys[j], ny = mRefUxs[j];
+                final double ra = (ax - mRefX0s[j]) * nx + (ay - mRefY0s[j]) * ny;
+                final double rb = (bx - mRefX0s[j]) * nx + (by - mRefY0s[j]) * ny;
+                final double w = lines.getPointCount(i) / 2.0;
+                accumulate(sums, ax, ay, nx, ny, ra, w);
+                accumulate(sums, bx, by, nx, ny, rb, w);
+                pairs++;
+                weights += 2 * w;
+                sumDists += w * (Math.abs(ra) + Math.abs(rb));
+                if (Math.abs(ra) <= inlierDistance && Math.abs(rb) <= inlierDistance)
+                    inlierPoints += lines.getPointCount(i);
+            }
+            if (pairs < mMinPairs || !isConstrained(sums))
+            {
+                status = ICPResult.Status.kNoMatch;
+                break;
+            }
+            residual = sumDists / weights;
+            inliers = (double) inlierPoints / totalPoints;
+
+            // as ICP: solve for the increment to the inverse, then compose
+            final double dTheta = ICP.solveLines(sums);
+            final double dx = sums[ICP.kB1], dy = sums[ICP.kB2];
+            final double dsin = Math.sin(dTheta), dcos = Math.cos(dTheta);
+            final double itx = invTx * dcos - invTy * dsin + dx;
+            final double ity = invTx * dsin + invTy * dcos + dy;
+            final double newTheta = theta - dTheta;
+            final double ccos = Math.cos(newTheta), csin = Math.sin(newTheta);
+            final double newTx = -itx * ccos + ity * csin;
+            final double newTy = -itx * csin - ity * ccos;
+            final boolean done = Math.abs(newTheta - theta) < LibConstants.kLidarICPAngleEpsilon &&
+                Math.abs(newTx - tx) < LibConstants.kLidarICPTranslationEpsilon &&
+                Math.abs(newTy - ty) < LibConstants.kLidarICPTranslationEpsilon;
+            theta = newTheta;
+            tx = newTx;
+            ty = newTy;
+            sin = csin;
+            cos = ccos;
+            if (done)
+            {
+                status = ICPResult.Status.kConverged;
+                break;
+            }
+        }
+        if (status == ICPResult.Status.kNoMatch)
+        {
+            residual = Double.POSITIVE_INFINITY;
+            inliers = 0;
+        }
+        mResult.set(new Transform(theta, tx, ty, sin, cos), status, iteration,
+                    System.nanoTime() - startTime, inliers, residual);
+        return mResult;
+    }
+
+    /**
+     * @return the index of the reference segment best paired with the
+     *  segment a-b (in the reference frame), or -1 if none qualifies
+     */
+    private int findPair(double ax, double ay, double bx, double by)
+    {
+        final double length = Math.hypot(bx - ax, by - ay);
+        final double ux = (bx - ax) / length, uy = (by - ay) / length;
+        final double mx = (ax + bx) / 2, my = (ay + by) / 2;
+        final double minCos = Math.cos(mMaxAngle);
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < mRefSize; j++)
+        {
+            // lines are undirected
+            if (Math.abs(ux * mRefUxs[j] + uy * mRefUys[j]) < minCos)
+                continue;
+            final double nx = -mRefUys[j], ny = mRefUxs[j];
+            final double dist = Math.abs((mx - mRefX0s[j]) * nx + (my - mRefY0s[j]) * ny);
+            if (dist > mMaxDistance || dist >= bestCost)
+                continue;
+            // overlap along the reference, allowing for motion
+            final double ta = (ax - mRefX0s[j]) * mRefUxs[j] + (ay - mRefY0s[j]) * mRefUys[j];
+            final double tb = (bx - mRefX0s[j]) * mRefUxs[j] + (by - mRefY0s[j]) * mRefUys[j];
+            if (Math.max(ta, tb) < -mMaxDistance || Math.min(ta, tb) > mRefLengths[j] + mMaxDistance)
+                continue;
+            best = j;
+            bestCost = dist;
+        }
+        return best;
+    }
+
+    /**
+     * Adds the weighted row for point (qx, qy) at distance r along the
+     * normal (nx, ny) of its line, as in ICP's point-to-line accumulation.
+     */
+    private static void accumulate(double[] sums, double qx, double qy, double nx, double ny,
+                                   double r, double w)
+    {
+        final double j0 = qx * ny - qy * nx;
+        sums[ICP.kA00] += w * j0 * j0;
+        sums[ICP.kA01] += w * j0 * nx;
+        sums[ICP.kA02] += w * j0 * ny;
+        sums[ICP.kA11] += w * nx * nx;
+        sums[ICP.kA12] += w * nx * ny;
+        sums[ICP.kA22] += w * ny * ny;
+        sums[ICP.kB0] -= w * j0 * r;
+        sums[ICP.kB1] -= w * nx * r;
+        sums[ICP.kB2] -= w * ny * r;
+    }
+
+    /**
+     * @return whether the pairings constrain translation in every
+     *  direction: the eigenvalues of the translation block of the normal
+     *  equations aren't too different
+     */
+    private static boolean isConstrained(double[] sums)
+    {
+        final double a = sums[ICP.kA11], b = sums[ICP.kA12], d = sums[ICP.kA22];
+        final double mean = (a + d) / 2;
+        final double spread = Math.sqrt((a - d) * (a - d) / 4 + b * b);
+        return mean > 0 && mean - spread >= kMinConditioning * (mean + spread);
+    }
+}
@@ -39,6 +39,34 @@ public class SegmentReferenceModel implements IReferenceModel
         return minSeg.getClosestPoint(p);
     }
 
+    @Override
+    public void getClosestPoint(double x, double y, double[] out)
+    {
+        getClosestSegment(x, y).getClosestPoint(x, y, out);
+    }
+
+    @Override
+    public void getClosestPointAndNormal(double x, double y, double[] out)
+    {
+        getClosestSegment(x, y).getClosestPointAndNormal(x, y, out);
+    }
+
+    private Segment getClosestSegment(double x, double y)
+    {
+        double minDist = Double.MAX_VALUE;
+        Segment minSeg = null;
+        for (Segment s : segments)
+        {
+            double dist = s.getDistanceSq(x, y);
+            if (dist < minDist)
+            {
+                minDist = dist;
+                minSeg = s;
+            }
+        }
+        return minSeg;
+    }
+
     public void transformBy(Transform t)
     {
         for (int i = 0; i < segments.length; i++)
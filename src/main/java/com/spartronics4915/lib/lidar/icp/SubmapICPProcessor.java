@@ -0,0 +1,260 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.LibConstants;
+
+/**
+ * Relative lidar odometry against a local map built from recent
+ * keyframes, rather than against the previous scan alone.
+ * <p>
+ * Keyframe points are stored in the map frame (the frame of the first
+ * scan).  Each scan is registered against the voxel-downsampled union
+ * of the last kLidarSubmapKeyframes keyframes, indexed by a k-d tree,
+ * so a query costs O(log N) however large the submap.  A scan becomes
+ * a new keyframe only once the sensor has moved kLidarKeyframeDistance
+ * or turned kLidarKeyframeAngle since the last one; in between, the
+ * submap and its index are left alone.  Since every scan is matched
+ * against the same keyframes, small per-scan errors don't accumulate
+ * the way they do when chaining scan-to-scan matches.
+ * <p>
+ * doRelativeICP has the same contract as
+ * {@link RelativeICPProcessor#doRelativeICP(double[], double[], int)}:
+ * it returns the motion from the previous scan to this one.  A scan
+ * whose fit isn't {@link ICPResult#isAcceptable acceptable} is placed
+ * at the guess and never becomes a keyframe, so it can't corrupt the
+ * submap.  If the submap loses track (eg: the robot is bumped, the view
+ * is blocked, or it drives past the keyframes), every fit is rejected;
+ * after kLidarSubmapMaxRejections of them in a row, the old keyframes
+ * are dropped and the scan starts a new submap, anchored at the guess.
+ */
+public class SubmapICPProcessor
+{
+    private final ICP mICP;
+    private final CorrelativeMatcher mMatcher;
+    private final Transform mZero = new Transform();
+    private final KDTreeReferenceModel mSubmap = new KDTreeReferenceModel();
+    private final VoxelFilter mVoxelFilter;
+    private final int mMaxKeyframes;
+    private final int mMaxRejections;
+
+    // keyframe ring, in map coordinates
+    private final double[][] mKeyXs, mKeyYs;
+    private final int[] mKeySizes;
+    private int mKeyHead = 0, mNumKeys = 0;
+
+    // submap assembly scratch
+    private double[] mMapXs = new double[0], mMapYs = new double[0];
+
+    private Transform mPose; // map -> current scan, as returned by ICP
+    private Transform mKeyPose; // map -> last keyframe
+    private Transform mVelocity = new Transform(); // last relative motion
+    private int mNumKeyframesAdded = 0;
+    private int mRejections = 0; // consecutive unacceptable fits
+    private int mNumReanchors = 0;
+    private ICPResult mLastResult;
+
+    public SubmapICPProcessor(ICP icp)
+    {
+        this(icp, LibConstants.kLidarSubmapKeyframes, LibConstants.kLidarSubmapVoxelSize,
+             LibConstants.kLidarCorrelativeSeed ? new CorrelativeMatcher() : null,
+             LibConstants.kLidarSubmapMaxRejections);
+    }
+
+    /**
+     * @param icp Premade ICP object
+     * @param maxKeyframes number of recent keyframes that make up the submap
+     * @param voxelSize submap downsampling cell size
+     * @param matcher refines the constant velocity guess before ICP, or
+     *  null to use it as is
+     * @param maxRejections rejected fits in a row before the submap is
+     *  restarted at the guess
+     */
+    public SubmapICPProcessor(ICP icp, int maxKeyframes, double voxelSize,
+                              CorrelativeMatcher matcher, int maxRejections)
+    {
+        mICP = icp;
+        mMatcher = matcher;
+        mMaxKeyframes = maxKeyframes;
+        mMaxRejections = maxRejections;
+        mVoxelFilter = new VoxelFilter(voxelSize, VoxelFilter.Mode.kFirst);
+        mKeyXs = new double[maxKeyframes][];
+        mKeyYs = new double[maxKeyframes][];
+        mKeySizes = new int[maxKeyframes];
+        for (int i = 0; i < maxKeyframes; i++)
+        {
+            mKeyXs[i] = new double[0];
+            mKeyYs[i] = new double[0];
+        }
+    }
+
+    /**
+     * Discards the submap; the next scan starts a new one.
+     */
+    public void reset()
+    {
+        mNumKeys = 0;
+        mKeyHead = 0;
+        mPose = null;
+        mKeyPose = null;
+        mVelocity = mZero;
+        mLastResult = null;
+        mRejections = 0;
+    }
+
+    /**
+     * Registers the first n points of xs, ys against the submap.
+     *
+     * @return The relative transform to transform the previous scan to this one.
+     */
+    public Transform doRelativeICP(double[] xs, double[] ys, int n)
+    {
+        return doRelativeICP(xs, ys, n, null);
+    }
+
+    /**
+     * As {@link #doRelativeICP(double[], double[], int)}, guessing that
+     * the motion since the previous scan is motionGuess (eg: from
+     * odometry) rather than the same as last time.
+     *
+     * @param motionGuess expected result, or null if unknown
+     */
+    public Transform doRelativeICP(double[] xs, double[] ys, int n, Transform motionGuess)
+    {
+        if (mPose == null)
+        {
+            mPose = mZero;
+            mLastResult = null;
+            addKeyframe(xs, ys, n);
+            return mZero; // ie no-tranform
+        }
+
+        // constant velocity guess: the submap is larger than a scan, so
+        // a poor guess costs more iterations than it does scan-to-scan.
+        Transform guess = (motionGuess != null ? motionGuess : mVelocity).apply(mPose);
+        if (mMatcher != null)
+            guess = mMatcher.match(xs, ys, n, guess);
+        mLastResult = mICP.match(xs, ys, n, guess, mSubmap);
+        boolean acceptable = mLastResult.isAcceptable();
+        Transform pose = acceptable ? mLastResult.getTransform() : guess;
+        Transform result = pose.apply(mPose.inverse());
+        mVelocity = result;
+        mPose = pose;
+        if (!acceptable)
+        {
+            if (++mRejections >= mMaxRejections)
+            {
+                // lost: re-anchor on this scan, keeping the pose continuous
+                mNumKeys = 0;
+                mKeyHead = 0;
+                mRejections = 0;
+                mNumReanchors++;
+                addKeyframe(xs, ys, n);
+            }
+            return result;
+        }
+        mRejections = 0;
+
+        Transform sinceKey = mPose.apply(mKeyPose.inverse());
+        if (Math.abs(sinceKey.theta) > LibConstants.kLidarKeyframeAngle ||
+            Math.hypot(sinceKey.tx, sinceKey.ty) > LibConstants.kLidarKeyframeDistance)
+        {
+            addKeyframe(xs, ys, n);
+        }
+        return result;
+    }
+
+    /**
+     * @return the ICP result behind the last doRelativeICP, or null if it
+     *  started the submap.  Valid until the ICP's next match.
+     */
+    public ICPResult getLastResult()
+    {
+        return mLastResult;
+    }
+
+    /**
+     * @return the current sensor pose, as map -> scan, or null before
+     * the first scan.
+     */
+    public Transform getPose()
+    {
+        return mPose;
+    }
+
+    /**
+     * @return the number of points in the (downsampled) submap.
+     */
+    public int getSubmapSize()
+    {
+        return mSubmap.size();
+    }
+
+    /**
+     * @return the number of keyframes inserted since construction.
+     */
+    public int getNumKeyframesAdded()
+    {
+        return mNumKeyframesAdded;
+    }
+
+    /**
+     * @return the number of times the submap was restarted after losing
+     *  track.
+     */
+    public int getNumReanchors()
+    {
+        return mNumReanchors;
+    }
+
+    private void addKeyframe(double[] xs, double[] ys, int n)
+    {
+        // transform the scan into the map frame and store it in the
+        // oldest keyframe slot, reusing its arrays.
+        int slot = mKeyHead;
+        if (mKeyXs[slot].length < n)
+        {
+            mKeyXs[slot] = new double[n];
+            mKeyYs[slot] = new double[n];
+        }
+        Transform toMap = mPose.inverse();
+        double[] kx = mKeyXs[slot], ky = mKeyYs[slot];
+        for (int i = 0; i < n; i++)
+        {
+            kx[i] = xs[i] * toMap.cos - ys[i] * toMap.sin + toMap.tx;
+            ky[i] = xs[i] * toMap.sin + ys[i] * toMap.cos + toMap.ty;
+        }
+        mKeySizes[slot] = n;
+        mKeyHead = (mKeyHead + 1) % mMaxKeyframes;
+        mNumKeys = Math.min(mNumKeys + 1, mMaxKeyframes);
+        mKeyPose = mPose;
+        mNumKeyframesAdded++;
+        rebuildSubmap();
+    }
+
+    /**
+     * Merges the keyframes, newest first, keeping the first point that
+     * lands in each voxel, then rebuilds the k-d tree.
+     */
+    private void rebuildSubmap()
+    {
+        int total = 0;
+        for (int k = 0; k < mNumKeys; k++)
+            total += mKeySizes[k];
+        if (mMapXs.length < total)
+        {
+            mMapXs = new double[total];
+            mMapYs = new double[total];
+        }
+        int m = 0;
+        for (int j = 1; j <= mNumKeys; j++)
+        {
+            int k = (mKeyHead - j + mMaxKeyframes) % mMaxKeyframes;
+            System.arraycopy(mKeyXs[k], 0, mMapXs, m, mKeySizes[k]);
+            System.arraycopy(mKeyYs[k], 0, mMapYs, m, mKeySizes[k]);
+            m += mKeySizes[k];
+        }
+        m = mVoxelFilter.filter(mMapXs, mMapYs, m, mMapXs, mMapYs);
+        mSubmap.setPoints(mMapXs, mMapYs, m);
+        if (mMatcher != null)
+            mMatcher.setReference(mMapXs, mMapYs, m);
+    }
+}
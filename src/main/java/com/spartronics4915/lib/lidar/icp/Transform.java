@@ -68,6 +68,20 @@ public class Transform
         return new Segment(apply(s.line), s.tMin, s.tMax);
     }
 
+    /**
+     * Returns the composition this * t, ie: the Transform that applies
+     * t and then this.
+     */
+    public Transform apply(Transform t)
+    {
+        double sin = this.sin * t.cos + this.cos * t.sin;
+        double cos = this.cos * t.cos - this.sin * t.sin;
+        return new Transform(Math.atan2(sin, cos),
+                t.tx * this.cos - t.ty * this.sin + tx,
+                t.tx * this.sin + t.ty * this.cos + ty,
+                sin, cos);
+    }
+
     public Transform inverse()
     {
         return new Transform(-theta,
@@ -0,0 +1,190 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.Arrays;
+
+/**
+ * Thins a point cloud to (at most) one point per square cell.
+ * <p>
+ * Cells are found through an open-addressing table of primitive cell
+ * keys, so filtering doesn't box or allocate once the table has grown
+ * to fit.  Slots are stamped with a generation number, so clearing the
+ * table between scans is O(1).
+ * <p>
+ * In kFirst mode each cell keeps the first point that lands in it; in
+ * kCentroid mode, the mean of its points.  Either way,
+ * getSourceIndex(k) is the first input point of the k'th output cell,
+ * so that callers can carry along per-point attributes.
+ * <p>
+ * filterToBudget() adapts the cell size, never below the configured
+ * one, so that the output has at most maxPoints points, eg: to bound
+ * ICP's time per scan.  The size it settles on carries over to the next
+ * call, since consecutive scans tend to need about the same.
+ * <p>
+ * Reused between calls; not thread-safe.
+ */
+public class VoxelFilter
+{
+    public enum Mode
+    {
+        kFirst,
+        kCentroid
+    };
+
+    private static final double kGrowth = 1.1; // margin when adapting the cell size
+    private static final int kMaxAdaptPasses = 5;
+
+    private final Mode mMode;
+    private final double mMinCellSize;
+    private double mCellSize;
+
+    // open-addressing table: slot is live iff mStamps[slot] == mGeneration
+    private long[] mKeys = new long[0];
+    private int[] mSlots = new int[0]; // output index of each live slot
+    private int[] mStamps = new int[0];
+    private int mGeneration = 0;
+
+    // per output cell
+    private int[] mSources = new int[0];
+    private double[] mSumXs = new double[0], mSumYs = new double[0];
+    private int[] mCounts = new int[0];
+
+    public VoxelFilter(double cellSize, Mode mode)
+    {
+        mMinCellSize = cellSize;
+        mCellSize = cellSize;
+        mMode = mode;
+    }
+
+    public double getCellSize()
+    {
+        return mCellSize;
+    }
+
+    /**
+     * Filters the first n points of xs, ys into outXs, outYs, which may
+     * be xs, ys themselves and must have room for n points.
+     *
+     * @return the number of points (cells) written
+     */
+    public int filter(double[] xs, double[] ys, int n, double[] outXs, double[] outYs)
+    {
+        return filter(xs, ys, n, outXs, outYs, mCellSize);
+    }
+
+    /**
+     * As {@link #filter(double[], double[], int, double[], double[])},
+     * enlarging the cell size as needed to write at most maxPoints
+     * points.  When there's room to spare, the next call starts with
+     * smaller cells (never below the configured size).  Here outXs,
+     * outYs must not be xs, ys.
+     */
+    public int filterToBudget(double[] xs, double[] ys, int n, int maxPoints,
+                              double[] outXs, double[] outYs)
+    {
+        // points lie along walls, so the count goes roughly as 1/size
+        int count = filter(xs, ys, n, outXs, outYs, mCellSize);
+        for (int pass = 0; count > maxPoints && pass < kMaxAdaptPasses; pass++)
+        {
+            mCellSize *= kGrowth * count / maxPoints;
+            count = filter(xs, ys, n, outXs, outYs, mCellSize);
+        }
+        if (count < maxPoints / 2 && mCellSize > mMinCellSize)
+            mCellSize = Math.max(mMinCellSize, mCellSize * count * kGrowth / maxPoints);
+        return count;
+    }
+
+    /**
+     * @return the index, in the last filter's input, of the first point
+     *  in output cell k
+     */
+    public int getSourceIndex(int k)
+    {
+        return mSources[k];
+    }
+
+    private int filter(double[] xs, double[] ys, int n, double[] outXs, double[] outYs,
+                       double cellSize)
+    {
+        ensureCapacity(n);
+        if (++mGeneration == 0)
+        {
+            // stamps wrapped: really clear, once every 2^32 calls
+            Arrays.fill(mStamps, 0);
+            mGeneration = 1;
+        }
+        final int mask = mKeys.length - 1;
+        final double inv = 1 / cellSize;
+        final boolean centroid = mMode == Mode.kCentroid;
+        int count = 0;
+        for (int i = 0; i < n; i++)
+        {
+            final long cx = (long) Math.floor(xs[i] * inv);
+            final long cy = (long) Math.floor(ys[i] * inv);
+            final long key = (cx << 32) ^ (cy & 0xffffffffL);
+            final int h = (int) (key ^ (key >>> 29)) * 0x9e3779b9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (mStamps[slot] == mGeneration && mKeys[slot] != key)
+                slot = (slot + 1) & mask;
+            if (mStamps[slot] == mGeneration)
+            {
+                if (centroid)
+                {
+                    final int k = mSlots[slot];
+                    mSumXs[k] += xs[i];
+                    mSumYs[k] += ys[i];
+                    mCounts[k]++;
+                }
+                continue;
+            }
+            mStamps[slot] = mGeneration;
+            mKeys[slot] = key;
+            mSlots[slot] = count;
+            mSources[count] = i;
+            if (centroid)
+            {
+                mSumXs[count] = xs[i];
+                mSumYs[count] = ys[i];
+                mCounts[count] = 1;
+            }
+            else
+            {
+                // count <= i, so this never overwrites an unread input
+                outXs[count] = xs[i];
+                outYs[count] = ys[i];
+            }
+            count++;
+        }
+        if (centroid)
+        {
+            for (int k = 0; k < count; k++)
+            {
+                outXs[k] = mSumXs[k] / mCounts[k];
+                outYs[k] = mSumYs[k] / mCounts[k];
+            }
+        }
+        return count;
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (mSources.length < n)
+        {
+            mSources = new int[n];
+            if (mMode == Mode.kCentroid)
+            {
+                mSumXs = new double[n];
+                mSumYs = new double[n];
+                mCounts = new int[n];
+            }
+        }
+        // at most half full
+        int tableSize = Integer.highestOneBit(Math.max(n, 8) * 2) << 1;
+        if (mKeys.length < tableSize)
+        {
+            mKeys = new long[tableSize];
+            mSlots = new int[tableSize];
+            mStamps = new int[tableSize];
+            mGeneration = 0;
+        }
+    }
+}
@@ -22,29 +22,26 @@ public class DistanceView<S extends State<S>> implements TrajectoryView<S>
 
     @Override
     public TrajectorySamplePoint<S> sample(double distance)
+    {
+        return sample(distance, -1);
+    }
+
+    @Override
+    public TrajectorySamplePoint<S> sample(double distance, int hint)
     {
         if (distance >= last_interpolant())
             return new TrajectorySamplePoint<S>(trajectory_.getPoint(trajectory_.length() - 1));
         if (distance <= 0.0)
             return new TrajectorySamplePoint<S>(trajectory_.getPoint(0));
-        for (int i = 1; i < distances_.length; ++i)
+        final int i = SegmentSearch.ceilIndex(distances_, distance, hint);
+        final TrajectoryPoint<S> s = trajectory_.getPoint(i);
+        if (Util.epsilonEquals(distances_[i], distances_[i - 1]))
         {
-            final TrajectoryPoint<S> s = trajectory_.getPoint(i);
-            if (distances_[i] >= distance)
-            {
-                final TrajectoryPoint<S> prev_s = trajectory_.getPoint(i - 1);
-                if (Util.epsilonEquals(distances_[i], distances_[i - 1]))
-                {
-                    return new TrajectorySamplePoint<S>(s);
-                }
-                else
-                {
-                    return new TrajectorySamplePoint<S>(prev_s.state().interpolate(s.state(),
-                            (distance - distances_[i - 1]) / (distances_[i] - distances_[i - 1])), i - 1, i);
-                }
-            }
+            return new TrajectorySamplePoint<S>(s);
         }
-        throw new RuntimeException();
+        final TrajectoryPoint<S> prev_s = trajectory_.getPoint(i - 1);
+        return new TrajectorySamplePoint<S>(prev_s.state().interpolate(s.state(),
+                (distance - distances_[i - 1]) / (distances_[i] - distances_[i - 1])), i - 1, i);
     }
 
     @Override
@@ -0,0 +1,335 @@
+package com.spartronics4915.lib.trajectory;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.geometry.Twist2d;
+import com.spartronics4915.lib.trajectory.timing.TimedState;
+import com.spartronics4915.lib.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timed trajectory of poses with curvature, kept as one primitive array
+ * per field rather than as a list of TimedState<Pose2dWithCurvature>
+ * objects, each four objects deep.  Following it walks a few contiguous
+ * arrays, and sample() interpolates into a caller's MutableState without
+ * allocating.  The twist between each pair of neighbouring states is
+ * precomputed, so a sample needs no Pose2d.log either.
+ * <p>
+ * Samples match TimedView's: the pose moves along the constant curvature
+ * arc between its neighbours by the distance the timed state covers.
+ * getTimedView() adapts this to a TrajectoryView, so a TrajectoryIterator
+ * (eg: DriveMotionPlanner's) can follow either representation.
+ * <p>
+ * Immutable, so it can be shared between threads.
+ */
+public class PackedTrajectory
+{
+    /**
+     * A reusable holder for a state of a PackedTrajectory.
+     */
+    static public class MutableState
+    {
+        public double t;
+        public double x, y;
+        public double cos = 1, sin; // heading
+        public double curvature, dcurvatureDs;
+        public double velocity, acceleration;
+
+        /**
+         * @return heading in radians
+         */
+        public double getHeading()
+        {
+            return Math.atan2(sin, cos);
+        }
+
+        /**
+         * @return this as a new TimedState
+         */
+        public TimedState<Pose2dWithCurvature> toTimedState()
+        {
+            return new TimedState<>(
+                new Pose2dWithCurvature(new Pose2d(x, y, new Rotation2d(cos, sin, false)),
+                                        curvature, dcurvatureDs),
+                t, velocity, acceleration);
+        }
+    }
+
+    private final int mLength;
+    private final double[] mTs;
+    private final double[] mXs, mYs, mCoses, mSins;
+    private final double[] mCurvatures, mDCurvatureDss;
+    private final double[] mVelocities, mAccelerations;
+    // the twist from state i to i + 1, and its length
+    private final double[] mTwistDxs, mTwistDys, mTwistDthetas, mDistances;
+    private final boolean mIsReversed;
+
+    private volatile Trajectory<TimedState<Pose2dWithCurvature>> mTrajectory;
+
+    /**
+     * Packs trajectory, which must not be empty.  No reference to it is
+     * kept.
+     */
+    public PackedTrajectory(Trajectory<TimedState<Pose2dWithCurvature>> trajectory)
+    {
+        final int length = trajectory.length();
+        if (length < 1)
+            throw new IllegalArgumentException("empty trajectory");
+        mLength = length;
+        mTs = new double[length];
+        mXs = new double[length];
+        mYs = new double[length];
+        mCoses = new double[length];
+        mSins = new double[length];
+        mCurvatures = new double[length];
+        mDCurvatureDss = new double[length];
+        mVelocities = new double[length];
+        mAccelerations = new double[length];
+        mTwistDxs = new double[length];
+        mTwistDys = new double[length];
+        mTwistDthetas = new double[length];
+        mDistances = new double[length];
+        for (int i = 0; i < length; i++)
+        {
+            final TimedState<Pose2dWithCurvature> state = trajectory.getState(i);
+            final Pose2d pose = state.state().getPose();
+            mTs[i] = state.t();
+            mXs[i] = pose.getTranslation().x();
+            mYs[i] = pose.getTranslation().y();
+            mCoses[i] = pose.getRotation().cos();
+            mSins[i] = pose.getRotation().sin();
+            mCurvatures[i] = state.state().getCurvature();
+            mDCurvatureDss[i] = state.state().getDCurvatureDs();
+            mVelocities[i] = state.velocity();
+            mAccelerations[i] = state.acceleration();
+        }
+        mIsReversed = isReversed(mVelocities);
+        for (int i = 0; i + 1 < length; i++)
+        {
+            final Pose2d from = trajectory.getState(i).state().getPose();
+            final Twist2d twist = Pose2d.log(from.inverse().transformBy(trajectory.getState(i + 1).state().getPose()));
+            mTwistDxs[i] = twist.dx;
+            mTwistDys[i] = twist.dy;
+            mTwistDthetas[i] = twist.dtheta;
+            mDistances[i] = twist.norm();
+        }
+    }
+
+    // the sign of the first non-zero velocity
+    private static boolean isReversed(double[] velocities)
+    {
+        for (double velocity : velocities)
+        {
+            if (velocity > Util.kEpsilon)
+                return false;
+            else if (velocity < -Util.kEpsilon)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether this is driven backwards
+     */
+    public boolean isReversed()
+    {
+        return mIsReversed;
+    }
+
+    public int length()
+    {
+        return mLength;
+    }
+
+    public double getStartTime()
+    {
+        return mTs[0];
+    }
+
+    public double getEndTime()
+    {
+        return mTs[mLength - 1];
+    }
+
+    /**
+     * Copies state i into out.
+     */
+    public void get(int i, MutableState out)
+    {
+        out.t = mTs[i];
+        out.x = mXs[i];
+        out.y = mYs[i];
+        out.cos = mCoses[i];
+        out.sin = mSins[i];
+        out.curvature = mCurvatures[i];
+        out.dcurvatureDs = mDCurvatureDss[i];
+        out.velocity = mVelocities[i];
+        out.acceleration = mAccelerations[i];
+    }
+
+    /**
+     * Interpolates the state at time t into out.
+     *
+     * @param hint the index returned by an earlier sample at or before t
+     *  (eg: the last one, when following), or -1.  See
+     *  TrajectoryView.sample(interpolant, hint).
+     * @return the index of the state at or before t, ie: the sample's
+     *  index_floor
+     */
+    public int sample(double t, int hint, MutableState out)
+    {
+        if (t >= mTs[mLength - 1])
+        {
+            get(mLength - 1, out);
+            return mLength - 1;
+        }
+        if (t <= mTs[0])
+        {
+            get(0, out);
+            return 0;
+        }
+        final int i = SegmentSearch.ceilIndex(mTs, t, hint);
+        if (Util.epsilonEquals(mTs[i], mTs[i - 1]))
+        {
+            get(i, out);
+            return i;
+        }
+        interpolate(i - 1, (t - mTs[i - 1]) / (mTs[i] - mTs[i - 1]), out);
+        return i - 1;
+    }
+
+    /**
+     * As TimedState.interpolate from state a toward a + 1.
+     */
+    private void interpolate(int a, double x, MutableState out)
+    {
+        final int b = a + 1;
+        final double t = Util.interpolate(mTs[a], mTs[b], x);
+        final double dt = t - mTs[a];
+        final double v = mVelocities[a], accel = mAccelerations[a];
+        final boolean reversing = v < 0.0 || (Util.epsilonEquals(v, 0.0) && accel < 0.0);
+        final double s = (reversing ? -1.0 : 1.0) * (v * dt + .5 * accel * dt * dt);
+        final double fraction = s / mDistances[a];
+
+        // as Pose2d.interpolate
+        if (fraction <= 0)
+        {
+            out.x = mXs[a];
+            out.y = mYs[a];
+            out.cos = mCoses[a];
+            out.sin = mSins[a];
+        }
+        else if (fraction >= 1)
+        {
+            out.x = mXs[b];
+            out.y = mYs[b];
+            out.cos = mCoses[b];
+            out.sin = mSins[b];
+        }
+        else
+        {
+            integrate(a, mTwistDxs[a] * fraction, mTwistDys[a] * fraction, mTwistDthetas[a] * fraction, out);
+        }
+        out.curvature = Util.interpolate(mCurvatures[a], mCurvatures[b], fraction);
+        out.dcurvatureDs = Util.interpolate(mDCurvatureDss[a], mDCurvatureDss[b], fraction);
+        out.t = t;
+        out.velocity = v + accel * dt;
+        out.acceleration = accel;
+    }
+
+    /**
+     * Sets out's pose to state a's moved along the twist (dx, dy, dtheta),
+     * as Pose2d.transformBy(Pose2d.exp(twist)).
+     */
+    private void integrate(int a, double dx, double dy, double dtheta, MutableState out)
+    {
+        final double sinTheta = Math.sin(dtheta), cosTheta = Math.cos(dtheta);
+        double s, c;
+        if (Math.abs(dtheta) < 1E-9)
+        {
+            // small angle approximation
+            s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+            c = .5 * dtheta;
+        }
+        else
+        {
+            s = sinTheta / dtheta;
+            c = (1.0 - cosTheta) / dtheta;
+        }
+        final double ex = dx * s - dy * c, ey = dx * c + dy * s;
+        final double cos0 = mCoses[a], sin0 = mSins[a];
+        final double rc = cos0 * cosTheta - sin0 * sinTheta;
+        final double rs = cos0 * sinTheta + sin0 * cosTheta;
+        final double magnitude = Math.hypot(rc, rs);
+        out.x = mXs[a] + cos0 * ex - sin0 * ey;
+        out.y = mYs[a] + sin0 * ex + cos0 * ey;
+        out.cos = rc / magnitude;
+        out.sin = rs / magnitude;
+    }
+
+    /**
+     * @return this as a Trajectory, built from its states on the first call
+     */
+    public Trajectory<TimedState<Pose2dWithCurvature>> toTrajectory()
+    {
+        Trajectory<TimedState<Pose2dWithCurvature>> trajectory = mTrajectory;
+        if (trajectory == null)
+        {
+            final List<TimedState<Pose2dWithCurvature>> states = new ArrayList<>(mLength);
+            final MutableState state = new MutableState();
+            for (int i = 0; i < mLength; i++)
+            {
+                get(i, state);
+                states.add(state.toTimedState());
+            }
+            mTrajectory = trajectory = new Trajectory<>(states);
+        }
+        return trajectory;
+    }
+
+    /**
+     * @return a view of this by time, eg: for a TrajectoryIterator.  Its
+     *  samples are new objects, like TimedView's.
+     */
+    public TrajectoryView<TimedState<Pose2dWithCurvature>> getTimedView()
+    {
+        return new TrajectoryView<TimedState<Pose2dWithCurvature>>()
+        {
+            @Override
+            public TrajectorySamplePoint<TimedState<Pose2dWithCurvature>> sample(double t)
+            {
+                return sample(t, -1);
+            }
+
+            @Override
+            public TrajectorySamplePoint<TimedState<Pose2dWithCurvature>> sample(double t, int hint)
+            {
+                final MutableState state = new MutableState();
+                final int floor = PackedTrajectory.this.sample(t, hint, state);
+                final boolean between = t > mTs[floor] && floor + 1 < mLength;
+                return new TrajectorySamplePoint<>(state.toTimedState(), floor, between ? floor + 1 : floor);
+            }
+
+            @Override
+            public double first_interpolant()
+            {
+                return getStartTime();
+            }
+
+            @Override
+            public double last_interpolant()
+            {
+                return getEndTime();
+            }
+
+            @Override
+            public Trajectory<TimedState<Pose2dWithCurvature>> trajectory()
+            {
+                return toTrajectory();
+            }
+        };
+    }
+}
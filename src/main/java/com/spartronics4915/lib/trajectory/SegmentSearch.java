@@ -0,0 +1,47 @@
+package com.spartronics4915.lib.trajectory;
+
+/**
+ * Finds the segment of a trajectory that an interpolant falls in, given
+ * the interpolant (eg: distance, time) at each of its states.
+ */
+final class SegmentSearch
+{
+    private SegmentSearch()
+    {
+    }
+
+    /**
+     * @param values the interpolant at each state, non-decreasing
+     * @param x strictly between the first and last values
+     * @param hint a segment (ie: index_floor) at or before x's, eg: the
+     *  last sample's, or -1.  We gallop forward from it, so samples that
+     *  step forward take amortized constant time; a bad hint costs a
+     *  binary search of the whole trajectory.
+     * @return the first index i > 0 with values[i] >= x
+     */
+    static int ceilIndex(double[] values, double x, int hint)
+    {
+        final int last = values.length - 1;
+        // values[lo] < x <= values[hi]
+        int lo = 0, hi = last;
+        if (hint >= 0 && hint < last && values[hint] < x)
+        {
+            lo = hint;
+            hi = hint + 1;
+            for (int step = 1; hi < last && values[hi] < x; step *= 2)
+            {
+                lo = hi;
+                hi = Math.min(last, lo + step);
+            }
+        }
+        while (hi - lo > 1)
+        {
+            final int mid = (lo + hi) >>> 1;
+            if (values[mid] >= x)
+                hi = mid;
+            else
+                lo = mid;
+        }
+        return hi;
+    }
+}
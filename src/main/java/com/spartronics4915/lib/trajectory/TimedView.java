@@ -10,12 +10,18 @@ public class TimedView<S extends State<S>> implements TrajectoryView<TimedState<
     protected final Trajectory<TimedState<S>> trajectory_;
     protected final double start_t_;
     protected final double end_t_;
+    protected final double[] times_;
 
     public TimedView(Trajectory<TimedState<S>> trajectory)
     {
         trajectory_ = trajectory;
         start_t_ = trajectory_.getState(0).t();
         end_t_ = trajectory_.getState(trajectory_.length() - 1).t();
+        times_ = new double[trajectory_.length()];
+        for (int i = 0; i < trajectory_.length(); ++i)
+        {
+            times_[i] = trajectory_.getState(i).t();
+        }
     }
 
     @Override
@@ -32,6 +38,12 @@ public class TimedView<S extends State<S>> implements TrajectoryView<TimedState<
 
     @Override
     public TrajectorySamplePoint<TimedState<S>> sample(double t)
+    {
+        return sample(t, -1);
+    }
+
+    @Override
+    public TrajectorySamplePoint<TimedState<S>> sample(double t, int hint)
     {
         if (t >= end_t_)
         {
@@ -41,21 +53,15 @@ public class TimedView<S extends State<S>> implements TrajectoryView<TimedState<
         {
             return new TrajectorySamplePoint<>(trajectory_.getPoint(0));
         }
-        for (int i = 1; i < trajectory_.length(); ++i)
+        final int i = SegmentSearch.ceilIndex(times_, t, hint);
+        final TrajectoryPoint<TimedState<S>> s = trajectory_.getPoint(i);
+        if (Util.epsilonEquals(times_[i], times_[i - 1]))
         {
-            final TrajectoryPoint<TimedState<S>> s = trajectory_.getPoint(i);
-            if (s.state().t() >= t)
-            {
-                final TrajectoryPoint<TimedState<S>> prev_s = trajectory_.getPoint(i - 1);
-                if (Util.epsilonEquals(s.state().t(), prev_s.state().t()))
-                {
-                    return new TrajectorySamplePoint<>(s);
-                }
-                return new TrajectorySamplePoint<>(prev_s.state().interpolate(s.state(),
-                        (t - prev_s.state().t()) / (s.state().t() - prev_s.state().t())), i - 1, i);
-            }
+            return new TrajectorySamplePoint<>(s);
         }
-        throw new RuntimeException();
+        final TrajectoryPoint<TimedState<S>> prev_s = trajectory_.getPoint(i - 1);
+        return new TrajectorySamplePoint<>(prev_s.state().interpolate(s.state(),
+                (t - times_[i - 1]) / (times_[i] - times_[i - 1])), i - 1, i);
     }
 
     @Override
@@ -0,0 +1,324 @@
+package com.spartronics4915.lib.trajectory;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.trajectory.timing.TimedState;
+import com.spartronics4915.lib.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timed trajectories precomputed (eg: on the build machine) and stored in
+ * a compact binary file, so the robot can load them instead of fitting
+ * splines and time-parameterizing them at boot.
+ * <p>
+ * Each trajectory is stored under a name with a {@link ContentHash} of
+ * everything it was generated from (waypoints, constraints, drive
+ * model...).  get() returns it only if the caller's hash of the current
+ * inputs matches, so a stale entry is ignored and the caller regenerates
+ * that trajectory rather than driving an outdated one.
+ * <p>
+ * The file is memory-mapped, and open() only indexes it; a trajectory's
+ * states are read from the mapping when it's asked for.  Layout (big
+ * endian): magic, version, entry count, then per entry its name (length
+ * and UTF-8 bytes), hash, state count and, per state, x, y, cos, sin,
+ * curvature, dcurvature/ds, t, velocity and acceleration as doubles.
+ */
+public class TrajectoryCache
+{
+    private static final int kMagic = 0x54524a43; // "TRJC"
+    private static final int kVersion = 1;
+    private static final int kDoublesPerState = 9;
+
+    private final ByteBuffer mBuffer;
+    private final Map<String, Integer> mOffsets = new HashMap<>(); // of an entry's state count
+    private final Map<String, Long> mHashes = new HashMap<>();
+
+    private TrajectoryCache(ByteBuffer buffer)
+    {
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return a cache with no trajectories
+     */
+    public static TrajectoryCache empty()
+    {
+        return new TrajectoryCache(ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Maps and indexes file.  A missing or malformed file yields an
+     * empty cache (and a warning), never an exception: the trajectories
+     * can always be regenerated.
+     */
+    public static TrajectoryCache open(File file)
+    {
+        if (!file.isFile())
+        {
+            Logger.warning("TrajectoryCache: " + file + " not found");
+            return empty();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            // the mapping outlives the channel
+            TrajectoryCache cache = new TrajectoryCache(
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            cache.index();
+            return cache;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Logger.warning("TrajectoryCache: can't read " + file + ": " + e);
+            return empty();
+        }
+    }
+
+    private void index()
+    {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        if (buffer.getInt() != kMagic)
+            throw new IllegalStateException("not a trajectory cache");
+        final int version = buffer.getInt();
+        if (version != kVersion)
+            throw new IllegalStateException("version " + version + ", expected " + kVersion);
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            final byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            final long hash = buffer.getLong();
+            final int offset = buffer.position();
+            final int states = buffer.getInt();
+            if (states < 0)
+                throw new IllegalStateException("bad entry");
+            // throws if the file is truncated
+            buffer.position(offset + Integer.BYTES + states * kDoublesPerState * Double.BYTES);
+            final String key = new String(name, StandardCharsets.UTF_8);
+            mOffsets.put(key, offset);
+            mHashes.put(key, hash);
+        }
+    }
+
+    /**
+     * @return the number of trajectories in the cache
+     */
+    public int size()
+    {
+        return mOffsets.size();
+    }
+
+    /**
+     * @param hash of the inputs the trajectory would be generated from now
+     * @return the named trajectory, or null if it isn't cached or was
+     *  cached with a different hash
+     */
+    public Trajectory<TimedState<Pose2dWithCurvature>> get(String name, long hash)
+    {
+        final Integer offset = mOffsets.get(name);
+        if (offset == null)
+            return null;
+        if (mHashes.get(name) != hash)
+        {
+            Logger.notice("TrajectoryCache: " + name + " is stale");
+            return null;
+        }
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        final int n = buffer.getInt();
+        final List<TimedState<Pose2dWithCurvature>> states = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+        {
+            final double x = buffer.getDouble(), y = buffer.getDouble();
+            final double cos = buffer.getDouble(), sin = buffer.getDouble();
+            final double curvature = buffer.getDouble(), dcurvatureDs = buffer.getDouble();
+            final double t = buffer.getDouble(), velocity = buffer.getDouble();
+            final double acceleration = buffer.getDouble();
+            states.add(new TimedState<>(
+                new Pose2dWithCurvature(new Pose2d(x, y, new Rotation2d(cos, sin, false)),
+                                        curvature, dcurvatureDs),
+                t, velocity, acceleration));
+        }
+        return new Trajectory<>(states);
+    }
+
+    /**
+     * Collects trajectories and writes them as a cache file.  Trajectories
+     * may be added from several threads.
+     */
+    public static class Builder
+    {
+        private final Map<String, Long> mHashes = new LinkedHashMap<>();
+        private final Map<String, Trajectory<TimedState<Pose2dWithCurvature>>> mTrajectories =
+            new LinkedHashMap<>();
+
+        public synchronized Builder add(String name, long hash, Trajectory<TimedState<Pose2dWithCurvature>> trajectory)
+        {
+            mHashes.put(name, hash);
+            mTrajectories.put(name, trajectory);
+            return this;
+        }
+
+        /**
+         * Writes the cache to a temporary file beside file, then moves it
+         * into place, so a failed write never leaves a partial cache.
+         */
+        public synchronized void write(File file) throws IOException
+        {
+            final File dir = file.getAbsoluteFile().getParentFile();
+            Files.createDirectories(dir.toPath());
+            final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try
+            {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp))))
+                {
+                    out.writeInt(kMagic);
+                    out.writeInt(kVersion);
+                    out.writeInt(mTrajectories.size());
+                    for (Map.Entry<String, Trajectory<TimedState<Pose2dWithCurvature>>> entry :
+                            mTrajectories.entrySet())
+                    {
+                        final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                        out.writeShort(name.length);
+                        out.write(name);
+                        out.writeLong(mHashes.get(entry.getKey()));
+                        final Trajectory<TimedState<Pose2dWithCurvature>> trajectory = entry.getValue();
+                        out.writeInt(trajectory.length());
+                        for (int i = 0; i < trajectory.length(); i++)
+                        {
+                            final TimedState<Pose2dWithCurvature> state = trajectory.getState(i);
+                            final Pose2dWithCurvature pose = state.state();
+                            out.writeDouble(pose.getTranslation().x());
+                            out.writeDouble(pose.getTranslation().y());
+                            out.writeDouble(pose.getRotation().cos());
+                            out.writeDouble(pose.getRotation().sin());
+                            out.writeDouble(pose.getCurvature());
+                            out.writeDouble(pose.getDCurvatureDs());
+                            out.writeDouble(state.t());
+                            out.writeDouble(state.velocity());
+                            out.writeDouble(state.acceleration());
+                        }
+                    }
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * An input (eg: a timing constraint) that adds its parameters to a
+     * ContentHash.
+     */
+    public interface Hashable
+    {
+        void addTo(ContentHash hash);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the inputs a trajectory is generated from.
+     * Objects (eg: timing constraints) must be Hashable: one that isn't
+     * throws, rather than hash something that might not change with its
+     * parameters.
+     */
+    public static class ContentHash
+    {
+        private static final long kOffsetBasis = 0xcbf29ce484222325L;
+        private static final long kPrime = 0x100000001b3L;
+
+        private long mHash = kOffsetBasis;
+
+        public ContentHash add(long value)
+        {
+            for (int i = 0; i < Long.BYTES; i++)
+            {
+                mHash ^= (value >>> (8 * i)) & 0xff;
+                mHash *= kPrime;
+            }
+            return this;
+        }
+
+        public ContentHash add(double value)
+        {
+            return add(Double.doubleToLongBits(value));
+        }
+
+        public ContentHash add(boolean value)
+        {
+            return add(value ? 1L : 0L);
+        }
+
+        public ContentHash add(String value)
+        {
+            add(value.length());
+            for (int i = 0; i < value.length(); i++)
+            {
+                mHash ^= value.charAt(i);
+                mHash *= kPrime;
+            }
+            return this;
+        }
+
+        public ContentHash add(Pose2d pose)
+        {
+            return add(pose.getTranslation().x()).add(pose.getTranslation().y())
+                .add(pose.getRotation().cos()).add(pose.getRotation().sin());
+        }
+
+        /**
+         * Adds value's class and parameters.
+         */
+        public ContentHash add(Hashable value)
+        {
+            add(value.getClass().getName());
+            value.addTo(this);
+            return this;
+        }
+
+        /**
+         * Adds each of a list of poses or Hashables, and its size.
+         *
+         * @throws IllegalArgumentException if an element is neither
+         */
+        public ContentHash add(List<?> values)
+        {
+            add(values.size());
+            for (Object value : values)
+            {
+                if (value instanceof Pose2d)
+                    add((Pose2d) value);
+                else if (value instanceof Hashable)
+                    add((Hashable) value);
+                else
+                    throw new IllegalArgumentException("can't hash " +
+                        (value == null ? "null" : value.getClass().getName()) + ": not Hashable");
+            }
+            return this;
+        }
+
+        public long get()
+        {
+            return mHash;
+        }
+    }
+}
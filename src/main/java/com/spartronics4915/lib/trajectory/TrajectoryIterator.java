@@ -8,6 +8,10 @@ public class TrajectoryIterator<S extends State<S>>
     protected final TrajectoryView<S> view_;
     protected double progress_ = 0.0;
     protected TrajectorySamplePoint<S> current_sample_;
+    // index_floor and progress of the last preview, so lookahead searches
+    // that preview further and further ahead don't start over each time
+    protected int preview_index_ = -1;
+    protected double preview_progress_ = Double.NEGATIVE_INFINITY;
 
     public TrajectoryIterator(final TrajectoryView<S> view)
     {
@@ -47,7 +51,9 @@ public class TrajectoryIterator<S extends State<S>>
     {
         progress_ = Math.max(view_.first_interpolant(),
                 Math.min(view_.last_interpolant(), progress_ + additional_progress));
-        current_sample_ = view_.sample(progress_);
+        // hints must be at or before the target, so going back has none
+        current_sample_ = view_.sample(progress_,
+                additional_progress >= 0.0 ? current_sample_.index_floor() : -1);
         return current_sample_;
     }
 
@@ -55,7 +61,17 @@ public class TrajectoryIterator<S extends State<S>>
     {
         final double progress = Math.max(view_.first_interpolant(),
                 Math.min(view_.last_interpolant(), progress_ + additional_progress));
-        return view_.sample(progress);
+        int hint = -1;
+        if (additional_progress >= 0.0)
+        {
+            hint = current_sample_.index_floor();
+            if (progress >= preview_progress_)
+                hint = Math.max(hint, preview_index_);
+        }
+        final TrajectorySamplePoint<S> sample = view_.sample(progress, hint);
+        preview_index_ = sample.index_floor();
+        preview_progress_ = progress;
+        return sample;
     }
 
     public Trajectory<S> trajectory()
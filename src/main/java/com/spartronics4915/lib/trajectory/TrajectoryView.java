@@ -7,6 +7,15 @@ public interface TrajectoryView<S extends State<S>>
 
     public TrajectorySamplePoint<S> sample(final double interpolant);
 
+    /**
+     * As sample(interpolant), but views that can search forward from hint,
+     * the index_floor of an earlier sample at or before interpolant, do so.
+     */
+    public default TrajectorySamplePoint<S> sample(final double interpolant, final int hint)
+    {
+        return sample(interpolant);
+    }
+
     public double first_interpolant();
 
     public double last_interpolant();
@@ -1,8 +1,10 @@
 package com.spartronics4915.lib.trajectory.timing;
 
 import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.trajectory.TrajectoryCache;
 
-public class CentripetalAccelerationConstraint implements TimingConstraint<Pose2dWithCurvature>
+public class CentripetalAccelerationConstraint
+        implements TimingConstraint<Pose2dWithCurvature>, TrajectoryCache.Hashable
 {
 
     final double mMaxCentripetalAccel;
@@ -23,4 +25,10 @@ public class CentripetalAccelerationConstraint implements TimingConstraint<Pose2
     {
         return MinMaxAcceleration.kNoLimits;
     }
+
+    @Override
+    public void addTo(TrajectoryCache.ContentHash hash)
+    {
+        hash.add(mMaxCentripetalAccel);
+    }
 }
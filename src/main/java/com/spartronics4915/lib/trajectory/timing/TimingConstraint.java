@@ -15,7 +15,7 @@ public interface TimingConstraint<S extends State<S>>
         protected final double min_acceleration_;
         protected final double max_acceleration_;
 
-        public static MinMaxAcceleration kNoLimits = new MinMaxAcceleration();
+        public static final MinMaxAcceleration kNoLimits = new MinMaxAcceleration();
 
         public MinMaxAcceleration()
         {
@@ -3,6 +3,7 @@ package com.spartronics4915.lib.trajectory.timing;
 import com.spartronics4915.lib.geometry.State;
 import com.spartronics4915.lib.trajectory.DistanceView;
 import com.spartronics4915.lib.trajectory.Trajectory;
+import com.spartronics4915.lib.trajectory.TrajectorySamplePoint;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -22,9 +23,13 @@ public class TimingUtil
     {
         final int num_states = (int) Math.ceil(distance_view.last_interpolant() / step_size + 1);
         List<S> states = new ArrayList<>(num_states);
+        int index = -1;
         for (int i = 0; i < num_states; ++i)
         {
-            states.add(distance_view.sample(Math.min(i * step_size, distance_view.last_interpolant())).state());
+            final TrajectorySamplePoint<S> sample =
+                distance_view.sample(Math.min(i * step_size, distance_view.last_interpolant()), index);
+            index = sample.index_floor();
+            states.add(sample.state());
         }
         return timeParameterizeTrajectory(reverse, states, constraints, start_velocity, end_velocity,
                 max_velocity, max_abs_acceleration);
@@ -2,8 +2,10 @@ package com.spartronics4915.lib.trajectory.timing;
 
 import com.spartronics4915.lib.geometry.ITranslation2d;
 import com.spartronics4915.lib.geometry.Translation2d;
+import com.spartronics4915.lib.trajectory.TrajectoryCache;
 
-public class VelocityLimitRegionConstraint<S extends ITranslation2d<S>> implements TimingConstraint<S>
+public class VelocityLimitRegionConstraint<S extends ITranslation2d<S>>
+        implements TimingConstraint<S>, TrajectoryCache.Hashable
 {
 
     protected final Translation2d min_corner_;
@@ -36,4 +38,11 @@ public class VelocityLimitRegionConstraint<S extends ITranslation2d<S>> implemen
         return MinMaxAcceleration.kNoLimits;
     }
 
+    @Override
+    public void addTo(TrajectoryCache.ContentHash hash)
+    {
+        hash.add(min_corner_.x()).add(min_corner_.y())
+            .add(max_corner_.x()).add(max_corner_.y())
+            .add(velocity_limit_);
+    }
 }
@@ -0,0 +1,126 @@
+package com.spartronics4915.lib.util;
+
+import java.util.Arrays;
+
+/**
+ * A forward-moving reader over a window of a RobotStateMap's pose
+ * history, for looking up the pose at many increasing timestamps (eg:
+ * each point of a lidar scan).
+ * <p>
+ * load() copies the states spanning the window into primitive arrays
+ * in one consistent read; seek() then interpolates between the pair of
+ * states bracketing each timestamp, advancing from the previous pair
+ * rather than searching.  A whole scan thus costs one pass over the
+ * history instead of a tree lookup (and its allocations) per point.
+ * Timestamps outside the window clamp to its first or last state.
+ * <p>
+ * Poses are interpolated linearly in x, y and heading, which is exact
+ * enough between states a few milliseconds apart.  Reused between
+ * loads; not thread-safe.
+ */
+public class PoseHistoryCursor
+{
+    private double[] mTs = new double[16], mXs = new double[16];
+    private double[] mYs = new double[16], mThetas = new double[16];
+    private int mSize = 0;
+    private int mIndex = 0;
+    private double mX, mY, mTheta;
+
+    /**
+     * Loads the states from the last at or before t0 through the first
+     * at or after t1.
+     */
+    public void load(RobotStateMap map, double t0, double t1)
+    {
+        clear();
+        map.copyHistory(t0, t1, this);
+    }
+
+    /**
+     * Discards the loaded states.  Called by RobotStateMap, eg: to
+     * retry a read that raced a write.
+     */
+    void clear()
+    {
+        mSize = 0;
+        mIndex = 0;
+    }
+
+    /**
+     * Appends a state; timestamps must increase.  Called by RobotStateMap.
+     *
+     * @param theta heading in radians
+     */
+    void add(double timestamp, double x, double y, double theta)
+    {
+        if (mSize == mTs.length)
+        {
+            int capacity = 2 * mSize;
+            mTs = Arrays.copyOf(mTs, capacity);
+            mXs = Arrays.copyOf(mXs, capacity);
+            mYs = Arrays.copyOf(mYs, capacity);
+            mThetas = Arrays.copyOf(mThetas, capacity);
+        }
+        if (mSize > 0)
+        {
+            // unwrap, so that interpolation takes the short way round
+            double prev = mThetas[mSize - 1];
+            theta = prev + Math.IEEEremainder(theta - prev, 2 * Math.PI);
+        }
+        mTs[mSize] = timestamp;
+        mXs[mSize] = x;
+        mYs[mSize] = y;
+        mThetas[mSize] = theta;
+        mSize++;
+    }
+
+    /**
+     * @return the number of states loaded; seek() needs at least one.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Interpolates the pose at timestamp, for getX() etc.  Cheapest when
+     * timestamps don't decrease between calls.
+     */
+    public void seek(double timestamp)
+    {
+        if (mIndex > 0 && timestamp < mTs[mIndex])
+            mIndex = 0; // went backwards
+        while (mIndex + 1 < mSize && mTs[mIndex + 1] <= timestamp)
+            mIndex++;
+        final int i = mIndex;
+        if (i + 1 == mSize || timestamp <= mTs[i])
+        {
+            mX = mXs[i];
+            mY = mYs[i];
+            mTheta = mThetas[i];
+            return;
+        }
+        final double pct = (timestamp - mTs[i]) / (mTs[i + 1] - mTs[i]);
+        mX = mXs[i] + pct * (mXs[i + 1] - mXs[i]);
+        mY = mYs[i] + pct * (mYs[i + 1] - mYs[i]);
+        mTheta = mThetas[i] + pct * (mThetas[i + 1] - mThetas[i]);
+    }
+
+    public double getX()
+    {
+        return mX;
+    }
+
+    public double getY()
+    {
+        return mY;
+    }
+
+    /**
+     * @return heading in radians, unwrapped (not limited to +/-pi)
+     */
+    public double getTheta()
+    {
+        return mTheta;
+    }
+}
@@ -1,15 +1,30 @@
 package com.spartronics4915.lib.util;
 
 import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Rotation2d;
 import com.spartronics4915.lib.geometry.Twist2d;
-import com.spartronics4915.lib.util.InterpolatingDouble;
-import com.spartronics4915.lib.util.InterpolatingTreeMap;
 
-import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * The robot's recent history of poses and velocities, by timestamp.
+ * <p>
+ * The last kObservationBufferSize states live in a fixed-capacity ring
+ * of primitive arrays, in time order, so adding an observation doesn't
+ * allocate and a lookup is a binary search plus interpolation.
+ * <p>
+ * Writers (addObservations, reset) take a StampedLock's write lock,
+ * which also serializes them.  Readers don't lock: they take an
+ * optimistic stamp, copy what they need into locals and retry if a
+ * write intervened (a seqlock), falling back to the read lock only if
+ * writes keep getting in the way.  So the looper, LidarProcessor and
+ * vision code never contend with each other, only (briefly) with the
+ * writer.
+ */
 public class RobotStateMap
 {
     private static final int kObservationBufferSize = 100;
+    private static final int kOptimisticReadTries = 4;
 
     static public class State implements Interpolable<State>
     {
@@ -55,7 +70,7 @@ public class RobotStateMap
             if(pct <= 0)
                 return new State(this);
             else
-            if(pct >= 0)
+            if(pct >= 1)
                 return new State(other);
             else
             {
@@ -70,8 +85,115 @@ public class RobotStateMap
         }
     }
 
-    private InterpolatingTreeMap<InterpolatingDouble, State> mStateMap;
-    private double mDistanceDriven;
+    /**
+     * A state as primitives, for the allocation-free queries.  Owned by
+     * its caller and overwritten by each query; not thread-safe.
+     */
+    static public class MutableState
+    {
+        private static final double kEpsilon = 1E-9;
+
+        public double timestamp;
+        public double x, y;
+        public double cos = 1, sin; // heading
+        public double integrationDx, integrationDy, integrationDtheta;
+        public double predictedDx, predictedDy, predictedDtheta;
+
+        /**
+         * @return heading in radians
+         */
+        public double getHeading()
+        {
+            return Math.atan2(sin, cos);
+        }
+
+        public void setPose(Pose2d pose)
+        {
+            x = pose.getTranslation().x();
+            y = pose.getTranslation().y();
+            cos = pose.getRotation().cos();
+            sin = pose.getRotation().sin();
+        }
+
+        public void setIntegrationVelocity(double dx, double dy, double dtheta)
+        {
+            integrationDx = dx;
+            integrationDy = dy;
+            integrationDtheta = dtheta;
+        }
+
+        public void setPredictedVelocity(double dx, double dy, double dtheta)
+        {
+            predictedDx = dx;
+            predictedDy = dy;
+            predictedDtheta = dtheta;
+        }
+
+        /**
+         * Sets this pose to from's moved along the constant curvature
+         * twist (dx, dy, dtheta), in from's frame: as
+         * from.transformBy(Pose2d.exp(twist)).  from may be this.
+         */
+        public void integrate(MutableState from, double dx, double dy, double dtheta)
+        {
+            integrate(from.x, from.y, from.cos, from.sin, dx, dy, dtheta);
+        }
+
+        private void integrate(double x0, double y0, double cos0, double sin0,
+                               double dx, double dy, double dtheta)
+        {
+            final double sinTheta = Math.sin(dtheta), cosTheta = Math.cos(dtheta);
+            double s, c;
+            if (Math.abs(dtheta) < kEpsilon)
+            {
+                // small angle approximation
+                s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+                c = .5 * dtheta;
+            }
+            else
+            {
+                s = sinTheta / dtheta;
+                c = (1.0 - cosTheta) / dtheta;
+            }
+            final double ex = dx * s - dy * c, ey = dx * c + dy * s;
+            final double rc = cos0 * cosTheta - sin0 * sinTheta;
+            final double rs = cos0 * sinTheta + sin0 * cosTheta;
+            final double magnitude = Math.hypot(rc, rs);
+            x = x0 + cos0 * ex - sin0 * ey;
+            y = y0 + sin0 * ex + cos0 * ey;
+            cos = rc / magnitude;
+            sin = rs / magnitude;
+        }
+
+        /**
+         * @return this as a new State
+         */
+        public State toState()
+        {
+            return new State(new Pose2d(x, y, new Rotation2d(cos, sin, false)),
+                             new Twist2d(integrationDx, integrationDy, integrationDtheta),
+                             new Twist2d(predictedDx, predictedDy, predictedDtheta),
+                             timestamp);
+        }
+    }
+
+    private final StampedLock mLock = new StampedLock();
+
+    // the ring: logical entry i (0 = oldest) is at physical (mHead + i) % capacity
+    private final double[] mTimestamps = new double[kObservationBufferSize];
+    private final double[] mXs = new double[kObservationBufferSize];
+    private final double[] mYs = new double[kObservationBufferSize];
+    private final double[] mCoses = new double[kObservationBufferSize];
+    private final double[] mSins = new double[kObservationBufferSize];
+    private final double[] mIVelDxs = new double[kObservationBufferSize];
+    private final double[] mIVelDys = new double[kObservationBufferSize];
+    private final double[] mIVelDthetas = new double[kObservationBufferSize];
+    private final double[] mPVelDxs = new double[kObservationBufferSize];
+    private final double[] mPVelDys = new double[kObservationBufferSize];
+    private final double[] mPVelDthetas = new double[kObservationBufferSize];
+    private int mHead = 0;
+    private int mSize = 0;
+    private volatile double mDistanceDriven;
 
     public RobotStateMap()
     {
@@ -81,65 +203,374 @@ public class RobotStateMap
     /**
      * Resets the field to robot transform (robot's position on the field)
      */
-    public synchronized void reset(double startTime, Pose2d initialPose)
+    public void reset(double startTime, Pose2d initialPose)
     {
-        mStateMap = new InterpolatingTreeMap<>(kObservationBufferSize);
-        mStateMap.put(new InterpolatingDouble(startTime), 
-                      new State(initialPose, startTime));
-        mDistanceDriven = 0.0;
+        long stamp = mLock.writeLock();
+        try
+        {
+            mHead = 0;
+            mSize = 0;
+            insert(startTime, initialPose, Twist2d.identity(), Twist2d.identity());
+            mDistanceDriven = 0.0;
+        }
+        finally
+        {
+            mLock.unlockWrite(stamp);
+        }
     }
 
-    public synchronized void resetDistanceDriven()
+    public void resetDistanceDriven()
     {
-        mDistanceDriven = 0.0;
+        long stamp = mLock.writeLock();
+        try
+        {
+            mDistanceDriven = 0.0;
+        }
+        finally
+        {
+            mLock.unlockWrite(stamp);
+        }
     }
 
-    public synchronized void addObservations(double timestamp, 
+    public void addObservations(double timestamp,
                                             Pose2d pose,
                                             Twist2d velI,
                                             Twist2d velP)
     {
-        InterpolatingDouble ts = new InterpolatingDouble(timestamp);
-        mStateMap.put(ts, new State(pose, velI, velP, timestamp));
-        mDistanceDriven += velI.dx; // Math.hypot(velocity.dx, velocity.dy); 
+        long stamp = mLock.writeLock();
+        try
+        {
+            insert(timestamp, pose, velI, velP);
+            mDistanceDriven += velI.dx; // Math.hypot(velocity.dx, velocity.dy);
+        }
+        finally
+        {
+            mLock.unlockWrite(stamp);
+        }
         // do we care about time here?
         //  no: if dx is measured in distance/loopinterval (loopinterval == 1)
-        //     
-        // do we care about dy here? 
+        //
+        // do we care about dy here?
         //  no: if velocity is in robot coords (no transverse motion expected)
         //  yes: if velocity is in field coords
     }
 
+    /**
+     * As {@link #addObservations(double, Pose2d, Twist2d, Twist2d)}, from
+     * a caller-owned state, without allocating.
+     */
+    public void addObservations(MutableState state)
+    {
+        long stamp = mLock.writeLock();
+        try
+        {
+            insert(state.timestamp, state.x, state.y, state.cos, state.sin,
+                   state.integrationDx, state.integrationDy, state.integrationDtheta,
+                   state.predictedDx, state.predictedDy, state.predictedDtheta);
+            mDistanceDriven += state.integrationDx;
+        }
+        finally
+        {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
     /**
      * Returns the robot's state on the field at a certain time. Linearly
      * interpolates between stored robot state to fill in the gaps.
      */
-    public synchronized State get(double ts)
+    public State get(double ts)
     {
-        return mStateMap.getInterpolated(new InterpolatingDouble(ts));
+        MutableState state = new MutableState();
+        get(ts, state);
+        return state.toState();
+    }
+
+    /**
+     * As {@link #get(double)}, into a caller-owned state, without
+     * allocating.
+     */
+    public void get(double ts, MutableState out)
+    {
+        long stamp = mLock.tryOptimisticRead();
+        for (int tries = 0; tries < kOptimisticReadTries; tries++)
+        {
+            if (stamp != 0)
+            {
+                // a torn read yields garbage, but never an exception:
+                // indices are clamped to the ring
+                getState(ts, out);
+                if (mLock.validate(stamp))
+                    return;
+            }
+            stamp = mLock.tryOptimisticRead();
+        }
+        stamp = mLock.readLock();
+        try
+        {
+            getState(ts, out);
+        }
+        finally
+        {
+            mLock.unlockRead(stamp);
+        }
     }
 
     /**
      * Returns the robot's position on the field at a certain time. Linearly
      * interpolates between stored robot positions to fill in the gaps.
      */
-    public synchronized Pose2d getFieldToVehicle(double timestamp)
+    public Pose2d getFieldToVehicle(double timestamp)
     {
         return this.get(timestamp).pose;
     }
 
-    public synchronized Pose2d getLatestFieldToVehicle()
+    /**
+     * Appends the states from the last at or before t0 through the first
+     * at or after t1 to cursor, as of a single moment.
+     *
+     * @see PoseHistoryCursor#load
+     */
+    void copyHistory(double t0, double t1, PoseHistoryCursor cursor)
     {
-        return mStateMap.lastEntry().getValue().pose;
+        long stamp = mLock.tryOptimisticRead();
+        for (int tries = 0; tries < kOptimisticReadTries; tries++)
+        {
+            if (stamp != 0)
+            {
+                copyRange(t0, t1, cursor);
+                if (mLock.validate(stamp))
+                    return;
+                cursor.clear();
+            }
+            stamp = mLock.tryOptimisticRead();
+        }
+        stamp = mLock.readLock();
+        try
+        {
+            copyRange(t0, t1, cursor);
+        }
+        finally
+        {
+            mLock.unlockRead(stamp);
+        }
+    }
+
+    public Pose2d getLatestFieldToVehicle()
+    {
+        return getLatestState().pose;
     }
 
-    public synchronized State getLatestState()
+    public State getLatestState()
     {
-        return mStateMap.lastEntry().getValue();
+        MutableState state = new MutableState();
+        getLatestState(state);
+        return state.toState();
     }
 
-    public synchronized double getDistanceDriven()
+    /**
+     * As {@link #getLatestState()}, into a caller-owned state, without
+     * allocating.
+     */
+    public void getLatestState(MutableState out)
+    {
+        long stamp = mLock.tryOptimisticRead();
+        for (int tries = 0; tries < kOptimisticReadTries; tries++)
+        {
+            if (stamp != 0)
+            {
+                read(physical(mSize - 1), out);
+                if (mLock.validate(stamp))
+                    return;
+            }
+            stamp = mLock.tryOptimisticRead();
+        }
+        stamp = mLock.readLock();
+        try
+        {
+            read(physical(mSize - 1), out);
+        }
+        finally
+        {
+            mLock.unlockRead(stamp);
+        }
+    }
+
+    public double getDistanceDriven()
     {
         return mDistanceDriven;
     }
+
+    /**
+     * Interpolates the pose as Pose2d.interpolate does (along a constant
+     * curvature arc), and the velocities linearly.
+     */
+    private void getState(double ts, MutableState out)
+    {
+        final int size = Math.max(1, Math.min(mSize, kObservationBufferSize));
+        final int hi = higher(ts);
+        final int i0 = physical(Math.max(0, hi - 1));
+        if (hi == 0 || hi == size || ts == mTimestamps[i0])
+        {
+            read(i0, out); // clamped to the ends, or exact
+            return;
+        }
+        final int i1 = physical(hi);
+        final double pct = (ts - mTimestamps[i0]) / (mTimestamps[i1] - mTimestamps[i0]);
+
+        // log of the pose delta, in i0's frame (cf. Pose2d.log)
+        final double c0 = mCoses[i0], s0 = mSins[i0];
+        final double gx = mXs[i1] - mXs[i0], gy = mYs[i1] - mYs[i0];
+        final double dx = c0 * gx + s0 * gy, dy = -s0 * gx + c0 * gy;
+        final double dcos = c0 * mCoses[i1] + s0 * mSins[i1];
+        final double dsin = c0 * mSins[i1] - s0 * mCoses[i1];
+        final double dtheta = Math.atan2(dsin, dcos);
+        final double halfTheta = .5 * dtheta;
+        final double cosMinusOne = dcos - 1.0;
+        final double halfCos = Math.abs(cosMinusOne) < MutableState.kEpsilon ?
+            1.0 - 1.0 / 12.0 * dtheta * dtheta : -(halfTheta * dsin) / cosMinusOne;
+        final double tx = dx * halfCos + dy * halfTheta, ty = -dx * halfTheta + dy * halfCos;
+        out.integrate(mXs[i0], mYs[i0], c0, s0, pct * tx, pct * ty, pct * dtheta);
+
+        out.timestamp = ts;
+        out.integrationDx = mIVelDxs[i0] + pct * (mIVelDxs[i1] - mIVelDxs[i0]);
+        out.integrationDy = mIVelDys[i0] + pct * (mIVelDys[i1] - mIVelDys[i0]);
+        out.integrationDtheta = mIVelDthetas[i0] + pct * (mIVelDthetas[i1] - mIVelDthetas[i0]);
+        out.predictedDx = mPVelDxs[i0] + pct * (mPVelDxs[i1] - mPVelDxs[i0]);
+        out.predictedDy = mPVelDys[i0] + pct * (mPVelDys[i1] - mPVelDys[i0]);
+        out.predictedDtheta = mPVelDthetas[i0] + pct * (mPVelDthetas[i1] - mPVelDthetas[i0]);
+    }
+
+    private void copyRange(double t0, double t1, PoseHistoryCursor cursor)
+    {
+        final int size = Math.max(1, Math.min(mSize, kObservationBufferSize));
+        // last at or before t0 (else the first) through first at or after t1 (else the last)
+        final int lo = Math.max(0, higher(t0) - 1);
+        int hi = Math.min(size - 1, lower(t1));
+        if (hi < lo) // t1 < t0
+            hi = lo;
+        for (int k = lo; k <= hi; k++)
+        {
+            final int i = physical(k);
+            cursor.add(mTimestamps[i], mXs[i], mYs[i], Math.atan2(mSins[i], mCoses[i]));
+        }
+    }
+
+    /**
+     * @return the logical index of the first entry with a timestamp
+     *  after ts, or the size if none
+     */
+    private int higher(double ts)
+    {
+        int lo = 0, hi = Math.max(0, Math.min(mSize, kObservationBufferSize));
+        while (lo < hi)
+        {
+            final int mid = (lo + hi) >>> 1;
+            if (mTimestamps[physical(mid)] <= ts)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the logical index of the first entry with a timestamp at
+     *  or after ts, or the size if none
+     */
+    private int lower(double ts)
+    {
+        int lo = 0, hi = Math.max(0, Math.min(mSize, kObservationBufferSize));
+        while (lo < hi)
+        {
+            final int mid = (lo + hi) >>> 1;
+            if (mTimestamps[physical(mid)] < ts)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int physical(int logical)
+    {
+        return Math.floorMod(mHead + logical, kObservationBufferSize);
+    }
+
+    private void read(int i, MutableState out)
+    {
+        out.timestamp = mTimestamps[i];
+        out.x = mXs[i];
+        out.y = mYs[i];
+        out.cos = mCoses[i];
+        out.sin = mSins[i];
+        out.integrationDx = mIVelDxs[i];
+        out.integrationDy = mIVelDys[i];
+        out.integrationDtheta = mIVelDthetas[i];
+        out.predictedDx = mPVelDxs[i];
+        out.predictedDy = mPVelDys[i];
+        out.predictedDtheta = mPVelDthetas[i];
+    }
+
+    private void insert(double timestamp, Pose2d pose, Twist2d velI, Twist2d velP)
+    {
+        insert(timestamp, pose.getTranslation().x(), pose.getTranslation().y(),
+               pose.getRotation().cos(), pose.getRotation().sin(),
+               velI.dx, velI.dy, velI.dtheta, velP.dx, velP.dy, velP.dtheta);
+    }
+
+    /**
+     * Adds a state in time order, replacing any at the same timestamp
+     * and evicting the oldest if full.  Observations almost always
+     * arrive in order, so this is usually an append.  Write lock held.
+     */
+    private void insert(double timestamp, double x, double y, double cos, double sin,
+                        double iDx, double iDy, double iDtheta,
+                        double pDx, double pDy, double pDtheta)
+    {
+        int k = higher(timestamp);
+        if (k > 0 && mTimestamps[physical(k - 1)] == timestamp)
+        {
+            k--; // replace
+        }
+        else
+        {
+            if (mSize == kObservationBufferSize)
+            {
+                mHead = physical(1);
+                mSize--;
+                k = Math.max(0, k - 1);
+            }
+            for (int j = mSize; j > k; j--)
+                copy(physical(j - 1), physical(j));
+            mSize++;
+        }
+        final int i = physical(k);
+        mTimestamps[i] = timestamp;
+        mXs[i] = x;
+        mYs[i] = y;
+        mCoses[i] = cos;
+        mSins[i] = sin;
+        mIVelDxs[i] = iDx;
+        mIVelDys[i] = iDy;
+        mIVelDthetas[i] = iDtheta;
+        mPVelDxs[i] = pDx;
+        mPVelDys[i] = pDy;
+        mPVelDthetas[i] = pDtheta;
+    }
+
+    private void copy(int from, int to)
+    {
+        mTimestamps[to] = mTimestamps[from];
+        mXs[to] = mXs[from];
+        mYs[to] = mYs[from];
+        mCoses[to] = mCoses[from];
+        mSins[to] = mSins[from];
+        mIVelDxs[to] = mIVelDxs[from];
+        mIVelDys[to] = mIVelDys[from];
+        mIVelDthetas[to] = mIVelDthetas[from];
+        mPVelDxs[to] = mPVelDxs[from];
+        mPVelDys[to] = mPVelDys[from];
+        mPVelDthetas[to] = mPVelDthetas[from];
+    }
 }
@@ -7,10 +7,16 @@ import com.spartronics4915.lib.util.SegmentBuilder;
 import com.spartronics4915.lib.geometry.Pose2d;
 import com.spartronics4915.lib.geometry.Rotation2d;
 import com.spartronics4915.lib.geometry.Twist2d;
+import com.spartronics4915.lib.LibConstants;
 import com.spartronics4915.lib.lidar.LidarProcessor;
+import com.spartronics4915.lib.lidar.LidarReplay;
+import com.spartronics4915.lib.lidar.icp.DistanceFieldReferenceModel;
 import com.spartronics4915.lib.lidar.icp.Point;
 import com.spartronics4915.lib.lidar.icp.SegmentReferenceModel;
 
+import java.io.File;
+import java.io.IOException;
+
 public class LidarMain
 {
     public static final RobotStateMap sRobotStateMap = new RobotStateMap();
@@ -31,15 +37,24 @@ public class LidarMain
         verticalBy(-43).
         getSegments()
     );
+    public static final DistanceFieldReferenceModel sDistanceField = 
+        DistanceFieldReferenceModel.loadOrBuild(new File(LibConstants.kLidarDistanceFieldCache),
+            sReferenceModel, LibConstants.kLidarDistanceFieldResolution,
+            LibConstants.kLidarDistanceFieldMargin);
 
     public static void main(String[] args)
     {
+        if (args.length > 0 && args[0].equals("--replay"))
+        {
+            replay(args);
+            return;
+        }
         Looper mLooper;
         LidarProcessor mLidarProcessor;
         Logger.setVerbosity("DEBUG");
 
         mLooper = new Looper();
-        mLidarProcessor = new LidarProcessor(LidarProcessor.RunMode.kRunAsTest, sReferenceModel,
+        mLidarProcessor = new LidarProcessor(LidarProcessor.RunMode.kRunAsTest, sDistanceField,
                 sRobotStateMap, sRobotStateMap, new Pose2d(), () -> System.currentTimeMillis() / 1000d);
         mLooper.register(mLidarProcessor);
         boolean started = mLidarProcessor.isConnected();
@@ -75,4 +90,38 @@ public class LidarMain
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Usage: LidarMain --replay recording.dat [--realtime]
+     * <p>
+     * Feeds a recording made with LidarProcessor's sDebugPoints through
+     * the scan pipeline (unthrottled by default) and reports throughput
+     * and the final pose.
+     */
+    private static void replay(String[] args)
+    {
+        Logger.setVerbosity("NOTICE");
+        if (args.length < 2)
+        {
+            Logger.error("usage: LidarMain --replay recording.dat [--realtime]");
+            System.exit(1);
+        }
+        LidarReplay.Speed speed = args.length > 2 && args[2].equals("--realtime") ?
+                                LidarReplay.Speed.kRealTime : LidarReplay.Speed.kUnthrottled;
+        try
+        {
+            LidarReplay replay = new LidarReplay(new File(args[1]));
+            LidarProcessor processor = new LidarProcessor(LidarProcessor.RunMode.kRunInRobot,
+                    sDistanceField, sRobotStateMap, sRobotStateMap, new Pose2d(), replay::getTime);
+            replay.run(processor, speed);
+            Logger.notice("Final pose (in from origin): " + sRobotStateMap.getLatestFieldToVehicle());
+            Logger.notice("Average latency: " + processor.getAverageLatency());
+        }
+        catch (IOException e)
+        {
+            Logger.exception(e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
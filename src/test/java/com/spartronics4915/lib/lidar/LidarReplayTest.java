@@ -0,0 +1,240 @@
+package com.spartronics4915.lib.lidar;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.geometry.Twist2d;
+import com.spartronics4915.lib.lidar.icp.Point;
+import com.spartronics4915.lib.lidar.icp.ScanFixtures;
+import com.spartronics4915.lib.lidar.icp.Segment;
+import com.spartronics4915.lib.util.RobotStateMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LidarReplayTest
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        File file = File.createTempFile("lidarReplayTest", ".dat");
+        file.deleteOnExit();
+        LidarRecorder recorder = new LidarRecorder(file, 7); // several chunks
+        for (int i = 0; i < 50; i++)
+            recorder.record(100 + i * .001, i * 7.5, 1000 + i, i % 10 == 0);
+        recorder.close();
+        assertEquals(LidarRecorder.kHeaderSize + 50 * LidarRecorder.kRecordSize, file.length());
+
+        LidarReplay replay = new LidarReplay(file);
+        assertEquals(50, replay.size());
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals(100 + i * .001, replay.getTimestamp(i));
+            assertEquals(i * 7.5, replay.getAngle(i));
+            assertEquals(1000.0 + i, replay.getDistance(i));
+            assertEquals(i % 10 == 0, replay.isNewScan(i));
+        }
+    }
+
+    /**
+     * Records the robot driving an arc through a room, nscans scans of
+     * scanSecs each, and returns its final {x, y, heading}.  If jerky,
+     * it alternates between creeping and lurching.  If odometry isn't
+     * null, the true pose at the start of each scan is added to it.
+     */
+    private static double[] recordArc(File file, int nscans, double step, double turn,
+                                      boolean jerky, RobotStateMap odometry) throws IOException
+    {
+        final double scanSecs = .125;
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(5);
+        LidarRecorder recorder = new LidarRecorder(file);
+        double ox = 0, oy = 0, heading = 0;
+        for (int k = 0; k < nscans; k++)
+        {
+            if (k > 0)
+            {
+                double scale = !jerky ? 1 : k % 2 == 0 ? .25 : 1.75;
+                ox += scale * step * Math.cos(heading);
+                oy += scale * step * Math.sin(heading);
+                heading += scale * turn;
+            }
+            if (odometry != null)
+            {
+                odometry.addObservations(1 + k * scanSecs, new Pose2d(ox, oy, Rotation2d.fromRadians(heading)),
+                                         new Twist2d(step, 0, turn), new Twist2d(step, 0, turn));
+            }
+            ArrayList<Point> pts = ScanFixtures.makeScan(scene, 360, ox, oy, rand);
+            for (int i = 0; i < pts.size(); i++)
+            {
+                Point p = pts.get(i);
+                double angle = Math.toDegrees(Math.atan2(p.y - oy, p.x - ox) - heading);
+                double mm = Math.hypot(p.x - ox, p.y - oy) / LidarPoint.MM_TO_IN;
+                recorder.record(1 + (k + i / (double) pts.size()) * scanSecs, angle, mm, i == 0);
+            }
+        }
+        recorder.record(1 + nscans * scanSecs, 0, 0, true); // completes the last scan
+        recorder.close();
+        return new double[] { ox, oy, heading };
+    }
+
+    @Test
+    public void testReplayIsDeterministic() throws IOException
+    {
+        // the robot drives a gentle arc through a room
+        final int nscans = 30;
+        File file = File.createTempFile("lidarReplayTest", ".dat");
+        file.deleteOnExit();
+        double[] actual = recordArc(file, nscans, 2, Math.toRadians(1), false, null);
+
+        Pose2d[] results = new Pose2d[2];
+        for (int run = 0; run < results.length; run++)
+        {
+            LidarReplay replay = new LidarReplay(file);
+            RobotStateMap stateMap = new RobotStateMap();
+            LidarProcessor processor = new LidarProcessor(LidarProcessor.RunMode.kRunInRobot,
+                            null, stateMap, stateMap, new Pose2d(), replay::getTime);
+            processor.setLineFeatures(true); // without odometry, plain ICP drifts past 2in
+            assertFalse(processor.isOdometrySeeded()); // no independent odometry
+            replay.run(processor, LidarReplay.Speed.kUnthrottled);
+            assertEquals(nscans, replay.getScansFed());
+            assertEquals(nscans, processor.getScansProcessed());
+            assertEquals(0, processor.getDroppedScans());
+            results[run] = stateMap.getLatestFieldToVehicle();
+        }
+        System.out.println("replayed pose: " + results[0] + " actual: " + actual[0] + ", " +
+                           actual[1] + ", " + Math.toDegrees(actual[2]));
+        assertEquals(results[0].getTranslation().x(), results[1].getTranslation().x(), 1e-9);
+        assertEquals(results[0].getTranslation().y(), results[1].getTranslation().y(), 1e-9);
+        assertEquals(actual[0], results[0].getTranslation().x(), 2);
+        assertEquals(actual[1], results[0].getTranslation().y(), 2);
+    }
+
+    @Test
+    public void testOdometrySeed() throws IOException
+    {
+        // jerky driving, so that the constant velocity guess is poor
+        final int nscans = 30;
+        File file = File.createTempFile("lidarReplayTest", ".dat");
+        file.deleteOnExit();
+        RobotStateMap odometry = new RobotStateMap();
+        odometry.reset(1, new Pose2d());
+        double[] actual = recordArc(file, nscans, 8, Math.toRadians(8), true, odometry);
+
+        double[] iterations = new double[2];
+        for (int seeded = 0; seeded < 2; seeded++)
+        {
+            LidarReplay replay = new LidarReplay(file);
+            RobotStateMap stateMap = new RobotStateMap();
+            LidarProcessor processor = new LidarProcessor(LidarProcessor.RunMode.kRunInRobot,
+                            null, odometry, stateMap, new Pose2d(), replay::getTime);
+            processor.setPointToLine(true); // the unseeded baseline needs these on jerky steps
+            processor.setCorrelativeSeed(true);
+            processor.setLineFeatures(true);
+            processor.setOdometrySeed(seeded == 1);
+            processor.setDeskew(false); // the robot stands still during each scan
+            assertEquals(seeded == 1, processor.isOdometrySeeded());
+            replay.run(processor, LidarReplay.Speed.kUnthrottled);
+            Pose2d pose = stateMap.getLatestFieldToVehicle();
+            iterations[seeded] = processor.getICPStats().getAverageIterations();
+            System.out.format("odometry seed %b: %.1f ICP iterations/scan, residual %.3fin, " +
+                              "pose error %.3fin\n", seeded == 1, iterations[seeded],
+                              processor.getICPStats().getAverageResidual(),
+                              Math.hypot(pose.getTranslation().x() - actual[0],
+                                         pose.getTranslation().y() - actual[1]));
+            assertEquals(actual[0], pose.getTranslation().x(), 2);
+            assertEquals(actual[1], pose.getTranslation().y(), 2);
+            assertTrue(processor.getICPStats().getAverageResidual() < 1);
+            assertEquals(0, processor.getICPStats().getRejected());
+        }
+        assertTrue(iterations[1] < iterations[0]);
+    }
+    /**
+     * Records the robot driving a constant arc at speed (in/s) and
+     * turnRate (rad/s), scanning as it goes, so that each scan is smeared
+     * by the motion.  Returns its final {x, y, heading}, and adds its
+     * true pose every 20ms to odometry (which holds 100 states).
+     */
+    private static double[] recordSweep(File file, int nscans, double speed, double turnRate,
+                                        RobotStateMap odometry) throws IOException
+    {
+        final double scanSecs = .125, start = 1;
+        final int nrays = 360;
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(9);
+        double[] pose = new double[3];
+        for (double t = start; t < start + (nscans + 1) * scanSecs; t += .02)
+        {
+            sweepPose(t - start, speed, turnRate, pose);
+            odometry.addObservations(t, new Pose2d(pose[0], pose[1], Rotation2d.fromRadians(pose[2])),
+                                     new Twist2d(speed, 0, turnRate), new Twist2d(speed, 0, turnRate));
+        }
+        LidarRecorder recorder = new LidarRecorder(file);
+        for (int k = 0; k < nscans; k++)
+        {
+            for (int i = 0; i < nrays; i++)
+            {
+                double t = start + (k + i / (double) nrays) * scanSecs;
+                sweepPose(t - start, speed, turnRate, pose);
+                double angle = 2 * Math.PI * i / nrays;
+                double range = ScanFixtures.castRay(scene, pose[0], pose[1], pose[2] + angle);
+                if (range == Double.MAX_VALUE)
+                    continue;
+                range += .25 * rand.nextGaussian();
+                recorder.record(t, Math.toDegrees(angle), range / LidarPoint.MM_TO_IN, i == 0);
+            }
+        }
+        recorder.record(start + nscans * scanSecs, 0, 0, true); // completes the last scan
+        recorder.close();
+        sweepPose((nscans - 1) * scanSecs, speed, turnRate, pose); // the last scan's start
+        return pose;
+    }
+
+    private static void sweepPose(double t, double speed, double turnRate, double[] pose)
+    {
+        double heading = turnRate * t;
+        pose[0] = speed / turnRate * Math.sin(heading);
+        pose[1] = speed / turnRate * (1 - Math.cos(heading));
+        pose[2] = heading;
+    }
+
+    @Test
+    public void testDeskew() throws IOException
+    {
+        // a quick turn: 11 degrees and 6in during each scan
+        final int nscans = 12;
+        File file = File.createTempFile("lidarReplayTest", ".dat");
+        file.deleteOnExit();
+        RobotStateMap odometry = new RobotStateMap();
+        odometry.reset(1, new Pose2d());
+        double[] actual = recordSweep(file, nscans, 48, Math.toRadians(90), odometry);
+
+        double[] errors = new double[2];
+        for (int deskew = 0; deskew < 2; deskew++)
+        {
+            LidarReplay replay = new LidarReplay(file);
+            RobotStateMap stateMap = new RobotStateMap();
+            stateMap.reset(1, new Pose2d());
+            LidarProcessor processor = new LidarProcessor(LidarProcessor.RunMode.kRunInRobot,
+                            null, odometry, stateMap, new Pose2d(), replay::getTime);
+            processor.setOdometrySeed(true); // 90°/s is too fast to track unseeded
+            processor.setLineFeatures(true);  // the undistorted walls match well by line
+            processor.setDeskew(deskew == 1);
+            assertEquals(deskew == 1, processor.isDeskewing());
+            replay.run(processor, LidarReplay.Speed.kUnthrottled);
+            Pose2d pose = stateMap.getLatestFieldToVehicle();
+            errors[deskew] = Math.hypot(pose.getTranslation().x() - actual[0],
+                                        pose.getTranslation().y() - actual[1]);
+            System.out.format("deskew %b: pose error %.3fin %.3f°, ICP residual %.3fin\n",
+                              deskew == 1, errors[deskew],
+                              pose.getRotation().getDegrees() - Math.toDegrees(actual[2]),
+                              processor.getICPStats().getAverageResidual());
+        }
+        assertTrue(errors[1] < 1, "deskewed error " + errors[1]);
+        assertTrue(errors[1] < errors[0]);
+    }
+}
@@ -0,0 +1,29 @@
+package com.spartronics4915.lib.lidar;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LidarServerTest
+{
+    @Test
+    public void testParseNumbers()
+    {
+        LidarServer server = new LidarServer(null, () -> 0, LidarServer.InputFormat.kText);
+        String[] doubles = {
+            "0", "1", "-1", "359.984375", "0.05", "1234.5", "-0.000125",
+            "6.02e23", "1.5E-7", "12345678901234567890.5", "+3.25",
+        };
+        for (String d : doubles)
+        {
+            byte[] b = (d + ",").getBytes(StandardCharsets.US_ASCII);
+            double v = server.parseDouble(b, 0, b.length);
+            assertEquals(Double.parseDouble(d), v, Math.ulp(Double.parseDouble(d)) * 2, d);
+        }
+        byte[] b = "1549923117346,".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(1549923117346L, server.parseLong(b, 0, b.length));
+        b = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(Double.isNaN(server.parseDouble(b, 0, b.length)));
+    }
+}
@@ -0,0 +1,216 @@
+package com.spartronics4915.lib.lidar;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanPublisherTest
+{
+    /**
+     * Stands in for the visualization server, collecting binary frames.
+     */
+    private static class FrameServer extends WebSocketServer
+    {
+        final List<ByteBuffer> mFrames = new ArrayList<>();
+
+        FrameServer()
+        {
+            super(new InetSocketAddress("localhost", 0));
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message)
+        {
+            ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+            copy.put(message).flip();
+            synchronized (mFrames)
+            {
+                mFrames.add(copy);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message)
+        {
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake)
+        {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote)
+        {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex)
+        {
+        }
+
+        @Override
+        public void onStart()
+        {
+        }
+    }
+
+    private static LidarScan makeScan(int n, double t)
+    {
+        LidarScan scan = new LidarScan(n);
+        for (int i = 0; i < n; i++)
+        {
+            double a = 2 * Math.PI * i / n;
+            scan.addPoint(150 * Math.cos(a), 80 * Math.sin(a) - 20, t, Math.toDegrees(a), 0);
+        }
+        return scan;
+    }
+
+    /**
+     * Decodes a frame into xs, ys, returning the point count.
+     */
+    private static int decode(ByteBuffer frame, double[] xs, double[] ys)
+    {
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(ScanPublisher.kFrameMagic, frame.get());
+        int encoding = frame.get();
+        int n = frame.getShort() & 0xffff;
+        frame.getDouble();
+        int x = 0, y = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (encoding == ScanPublisher.Encoding.kFloat32.ordinal())
+            {
+                xs[i] = frame.getFloat();
+                ys[i] = frame.getFloat();
+            }
+            else
+            {
+                x += frame.getShort();
+                y += frame.getShort();
+                xs[i] = x / 25.4;
+                ys[i] = y / 25.4;
+            }
+        }
+        assertFalse(frame.hasRemaining());
+        return n;
+    }
+
+    @Test
+    public void testEncodings()
+    {
+        LidarScan scan = makeScan(360, 12.5);
+        double[] xs = new double[360], ys = new double[360];
+        ByteBuffer frame = ScanPublisher.encode(ByteBuffer.allocate(0), scan.getTimestamp(),
+                                scan.getXs(), scan.getYs(), scan.size(), ScanPublisher.Encoding.kFloat32);
+        assertEquals(ScanPublisher.kHeaderSize + 360 * 8, frame.remaining());
+        assertEquals(360, decode(frame, xs, ys));
+        for (int i = 0; i < 360; i++)
+            assertEquals(scan.getX(i), xs[i], 1e-4);
+
+        frame = ScanPublisher.encode(frame, scan.getTimestamp(), scan.getXs(), scan.getYs(),
+                                scan.size(), ScanPublisher.Encoding.kInt16Delta);
+        assertEquals(ScanPublisher.kHeaderSize + 360 * 4, frame.remaining());
+        int json = scan.toJsonString().length();
+        System.out.println("frame bytes: json " + json + ", int16 delta " + frame.remaining());
+        assertEquals(360, decode(frame, xs, ys));
+        for (int i = 0; i < 360; i++)
+        {
+            assertEquals(scan.getX(i), xs[i], .5 / 25.4 + 1e-9);
+            assertEquals(scan.getY(i), ys[i], .5 / 25.4 + 1e-9);
+        }
+    }
+
+    @Test
+    public void testPublishToServer() throws Exception
+    {
+        FrameServer server = new FrameServer();
+        server.start();
+        Thread.sleep(200); // until bound
+        WSClient client = new WSClient(new URI("ws://localhost:" + server.getPort()));
+        assertTrue(client.connectBlocking());
+        ScanPublisher publisher = new ScanPublisher(client, 20, 3, ScanPublisher.Encoding.kInt16Delta);
+        publisher.start();
+
+        // offer scans much faster than the frame rate
+        LidarScan scan = null;
+        long start = System.nanoTime();
+        int offered = 0;
+        while (System.nanoTime() - start < 500000000L)
+        {
+            scan = makeScan(400, offered++);
+            publisher.publish(scan);
+            Thread.sleep(2);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(200);
+        publisher.stop();
+        client.closeBlocking();
+        server.stop();
+
+        int frames;
+        ByteBuffer last;
+        synchronized (server.mFrames)
+        {
+            frames = server.mFrames.size();
+            last = server.mFrames.get(frames - 1);
+        }
+        System.out.println("ScanPublisher: offered " + offered + " scans, sent " +
+                           publisher.getFramesSent() + " frames, received " + frames +
+                           ", dropped " + publisher.getFramesDropped());
+        assertEquals(publisher.getFramesSent(), frames);
+        assertTrue(frames >= 2);
+        assertTrue(frames <= 20 * secs + 1, "rate limit exceeded: " + frames);
+
+        double[] xs = new double[400], ys = new double[400];
+        assertEquals(134, decode(last, xs, ys)); // every third of 400
+        for (int i = 0; i < 134; i++)
+            assertEquals(scan.getX(3 * i), xs[i], .5 / 25.4 + 1e-9);
+    }
+
+    @Test
+    public void testDropsWhenSinkIsSlow()
+    {
+        final int[] sent = new int[1];
+        ScanPublisher.Sink slow = new ScanPublisher.Sink()
+        {
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            public boolean hasBufferedData()
+            {
+                return sent[0] > 0; // never drains after the first frame
+            }
+
+            public void send(ByteBuffer frame)
+            {
+                sent[0]++;
+            }
+        };
+        ScanPublisher publisher = new ScanPublisher(slow, 0, 1, ScanPublisher.Encoding.kFloat32);
+        publisher.start();
+        LidarScan scan = makeScan(100, 1);
+        assertTrue(publisher.publish(scan));
+        while (publisher.getFramesSent() == 0)
+            Thread.yield();
+        for (int i = 0; i < 200; i++)
+        {
+            publisher.publish(scan);
+            Thread.yield();
+        }
+        publisher.stop();
+        assertEquals(1, publisher.getFramesSent());
+        assertTrue(publisher.getFramesDropped() > 0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.spartronics4915.lib.lidar;
+
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanRingTest
+{
+    @Test
+    public void testDropsOldest()
+    {
+        ScanRing ring = new ScanRing(2);
+        LidarScan a = new LidarScan(1), b = new LidarScan(1), c = new LidarScan(1);
+        assertNull(ring.poll());
+        assertNull(ring.offer(a));
+        assertNull(ring.offer(b));
+        assertEquals(2, ring.size());
+        assertSame(a, ring.offer(c));
+        assertSame(b, ring.poll());
+        assertSame(c, ring.poll());
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException
+    {
+        final int nscans = 200000;
+        final ScanRing ring = new ScanRing(3);
+        final LidarScan[] scans = new LidarScan[nscans];
+        for (int i = 0; i < nscans; i++)
+        {
+            scans[i] = new LidarScan(1);
+            scans[i].addPoint(i, 0, i + 1, 0, 0); // timestamp identifies the scan
+        }
+        final HashSet<Double> dropped = new HashSet<>();
+        Thread producer = new Thread(() -> {
+            for (LidarScan s : scans)
+            {
+                LidarScan d = ring.offer(s);
+                if (d != null)
+                    dropped.add(d.getTimestamp());
+            }
+        });
+        producer.start();
+
+        double last = 0;
+        int consumed = 0;
+        while (producer.isAlive() || ring.size() > 0)
+        {
+            LidarScan s = ring.poll();
+            if (s == null)
+                continue;
+            // scans arrive in order, exactly once
+            assertTrue(s.getTimestamp() > last);
+            last = s.getTimestamp();
+            consumed++;
+        }
+        producer.join();
+        assertEquals(nscans, consumed + dropped.size());
+    }
+}
@@ -0,0 +1,65 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CorrelativeMatcherTest
+{
+    @Test
+    public void testNoReference()
+    {
+        CorrelativeMatcher matcher = new CorrelativeMatcher();
+        Transform guess = new Transform(.1, 2, 3);
+        assertSame(guess, matcher.match(new double[] { 1 }, new double[] { 1 }, 1, guess));
+    }
+
+    @Test
+    public void testSeedsFastTurn()
+    {
+        // a quick turn between scans: well outside ICP's basin from the identity
+        final double ox = 9, oy = -6, heading = Math.toRadians(18);
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(7);
+        double[] xsA = new double[720], ysA = new double[720];
+        double[] xsB = new double[720], ysB = new double[720];
+        int nA = ScanFixtures.scanScene(scene, 0, 0, 0, rand, xsA, ysA);
+        int nB = ScanFixtures.scanScene(scene, ox, oy, heading, rand, xsB, ysB);
+        KDTreeReferenceModel model = new KDTreeReferenceModel();
+        model.setPoints(xsA, ysA, nA);
+
+        CorrelativeMatcher matcher = new CorrelativeMatcher();
+        matcher.setReference(xsA, ysA, nA);
+        for (int i = 0; i < 20; i++)
+            matcher.match(xsB, ysB, nB, new Transform()); // warm up
+        long t0 = System.nanoTime();
+        Transform seed = matcher.match(xsB, ysB, nB, new Transform());
+        double matchMs = (System.nanoTime() - t0) / 1e6;
+        Transform seedPose = seed.inverse();
+        assertEquals(ox, seedPose.tx, 2.5);
+        assertEquals(oy, seedPose.ty, 2.5);
+        assertEquals(heading, seedPose.theta, Math.toRadians(1.5));
+        assertTrue(matcher.getLastScore() > .5, "score " + matcher.getLastScore());
+
+        String[] names = { "identity", "correlative" };
+        Transform[] guesses = { new Transform(), seed };
+        long[] iterations = new long[2];
+        double[] errors = new double[2];
+        for (int g = 0; g < guesses.length; g++)
+        {
+            ICP icp = new ICP(0/*no timeout during testing*/);
+            icp.maxIterations = 200;
+            icp.pointToLine = true;
+            Transform pose = icp.doICP(xsB, ysB, nB, guesses[g], model).inverse();
+            iterations[g] = icp.getLastResult().getIterations();
+            errors[g] = Math.hypot(pose.tx - ox, pose.ty - oy);
+            System.out.format("ICP from %s guess: %d iterations, error %.3fin %.2f°\n", names[g],
+                              iterations[g], errors[g], Math.toDegrees(pose.theta - heading));
+        }
+        System.out.format("correlative match: %.2fms, %d fine candidates, score %.2f\n",
+                          matchMs, matcher.getLastCandidates(), matcher.getLastScore());
+        assertTrue(errors[1] < .5, "seeded error " + errors[1]);
+        assertTrue(iterations[1] < iterations[0]);
+    }
+}
@@ -0,0 +1,84 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import com.spartronics4915.lib.util.SegmentBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistanceFieldReferenceModelTest
+{
+    public static final double kResolution = 1.0;
+
+    private static SegmentReferenceModel makeField()
+    {
+        return new SegmentReferenceModel(
+            new SegmentBuilder(new Point(53, 0)).
+            verticalBy(30).
+            horizontalBy(18).
+            verticalBy(45).
+            horizontalBy(-26).
+            verticalBy(94).
+            horizontalBy(-61.5).
+            verticalBy(-49.5).
+            horizontalBy(13.5).
+            verticalBy(-39).
+            getSegments());
+    }
+
+    @Test
+    public void testMatchesSegments()
+    {
+        SegmentReferenceModel segments = makeField();
+        DistanceFieldReferenceModel field = new DistanceFieldReferenceModel(segments, kResolution, 12);
+        Random rand = new Random(4915);
+        for (int i = 0; i < 5000; i++)
+        {
+            // includes points outside the grid, which use the fallback
+            Point p = new Point(rand.nextDouble() * 120 - 40, rand.nextDouble() * 220 - 30);
+            double expected = p.getDistance(segments.getClosestPoint(p));
+            double actual = p.getDistance(field.getClosestPoint(p));
+            // the grid resolves the closest segment at the cell center
+            assertTrue(actual - expected <= kResolution, p + " " + expected + " " + actual);
+            assertEquals(actual, field.getDistance(p.x, p.y), 1e-9);
+        }
+    }
+
+    @Test
+    public void testCache() throws IOException
+    {
+        File cache = File.createTempFile("lidarfield", ".dat");
+        cache.delete();
+        try
+        {
+            SegmentReferenceModel segments = makeField();
+            DistanceFieldReferenceModel built =
+                DistanceFieldReferenceModel.loadOrBuild(cache, segments, kResolution, 12);
+            assertTrue(cache.exists());
+            long modified = cache.lastModified();
+            DistanceFieldReferenceModel loaded =
+                DistanceFieldReferenceModel.loadOrBuild(cache, segments, kResolution, 12);
+            assertEquals(modified, cache.lastModified());
+            assertEquals(built.getWidth(), loaded.getWidth());
+            assertEquals(built.getHeight(), loaded.getHeight());
+            Random rand = new Random(254);
+            for (int i = 0; i < 1000; i++)
+            {
+                double x = rand.nextDouble() * 80 - 10, y = rand.nextDouble() * 180;
+                assertEquals(built.getDistance(x, y), loaded.getDistance(x, y), 1e-9);
+            }
+
+            // a different resolution must not reuse the stale cache
+            DistanceFieldReferenceModel coarse =
+                DistanceFieldReferenceModel.loadOrBuild(cache, segments, 2 * kResolution, 12);
+            assertTrue(coarse.getWidth() < built.getWidth());
+        }
+        finally
+        {
+            cache.delete();
+        }
+    }
+}
@@ -6,6 +6,9 @@ import com.spartronics4915.lib.util.RobotStateMap;
 import com.spartronics4915.lib.geometry.Pose2d;
 import com.spartronics4915.lib.geometry.Twist2d;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -81,4 +84,248 @@ public class ICPTest
         //assertEquals(0, tx1.ty, kTestEpsilon);
         //assertEquals(mapRot, tx1.theta, kTestEpsilon);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPrimitiveMatchesIterable()
+    {
+        ICP icp = new ICP(0);
+        icp.maxIterations = 50;
+        ArrayList<Point> ref = new ArrayList<>();
+        ArrayList<Point> moved = new ArrayList<>();
+        Transform motion = new Transform(Math.toRadians(4), 3, -2);
+        for (int ang = 0; ang < 360; ang += 2)
+        {
+            double rad = Math.toRadians(ang);
+            Point p = new Point(100 * Math.cos(rad), 300 * Math.sin(rad));
+            ref.add(p);
+            moved.add(motion.apply(p));
+        }
+        double[] xs = new double[moved.size()];
+        double[] ys = new double[moved.size()];
+        for (int i = 0; i < moved.size(); i++)
+        {
+            xs[i] = moved.get(i).x;
+            ys[i] = moved.get(i).y;
+        }
+        IReferenceModel[] models = {
+            new PointCloudReferenceModel(ref),
+            new KDTreeReferenceModel(ref),
+        };
+        for (IReferenceModel model : models)
+        {
+            Transform expected = icp.doICP(moved, null, model);
+            // twice, to exercise the reused buffers
+            for (int i = 0; i < 2; i++)
+            {
+                Transform actual = icp.doICP(xs, ys, xs.length, null, model);
+                assertEquals(expected.tx, actual.tx, 1e-12);
+                assertEquals(expected.ty, actual.ty, 1e-12);
+                assertEquals(expected.theta, actual.theta, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial()
+    {
+        ArrayList<Point> ref = ScanFixtures.makeRoomScan(800, 0, 0, new Random(1));
+        ArrayList<Point> scan = ScanFixtures.makeRoomScan(800, 4, -3, new Random(2));
+        double[] xs = new double[scan.size()];
+        double[] ys = new double[scan.size()];
+        for (int i = 0; i < scan.size(); i++)
+        {
+            xs[i] = scan.get(i).x;
+            ys[i] = scan.get(i).y;
+        }
+        KDTreeReferenceModel model = new KDTreeReferenceModel(ref);
+
+        ICP serial = new ICP(0);
+        serial.maxIterations = 40;
+        ICP parallel = new ICP(0);
+        parallel.maxIterations = 40;
+        parallel.parallelism = 4;
+        parallel.minChunkSize = 32;
+
+        final int reps = 20;
+        Transform expected = null, actual = null;
+        long serialNs = 0, parallelNs = 0;
+        for (int i = 0; i < reps; i++)
+        {
+            long t0 = System.nanoTime();
+            expected = serial.doICP(xs, ys, xs.length, null, model);
+            long t1 = System.nanoTime();
+            actual = parallel.doICP(xs, ys, xs.length, null, model);
+            long t2 = System.nanoTime();
+            serialNs += t1 - t0;
+            parallelNs += t2 - t1;
+        }
+        // partial sums are reduced in a different order, so allow for rounding
+        assertEquals(expected.tx, actual.tx, 1e-9);
+        assertEquals(expected.ty, actual.ty, 1e-9);
+        assertEquals(expected.theta, actual.theta, 1e-9);
+        System.out.println("ICP serial: " + serialNs / 1e6 + " ms, " +
+                           "parallel(" + parallel.parallelism + "): " + parallelNs / 1e6 + " ms, " +
+                           "speedup: " + (double) serialNs / parallelNs +
+                           " on " + Runtime.getRuntime().availableProcessors() + " cpus");
+    }
+
+    /**
+     * A corridor (where point-to-point ICP slides slowly along the
+     * walls) with a couple of door recesses.
+     */
+    private static Segment[] makeCorridor()
+    {
+        return new Segment[] {
+            new Segment(new Point(-300, -50), new Point(300, -50)),
+            new Segment(new Point(-300, 50), new Point(-80, 50)),
+            new Segment(new Point(-80, 50), new Point(-80, 70)),
+            new Segment(new Point(-80, 70), new Point(-40, 70)),
+            new Segment(new Point(-40, 70), new Point(-40, 50)),
+            new Segment(new Point(-40, 50), new Point(120, 50)),
+            new Segment(new Point(120, 50), new Point(120, 65)),
+            new Segment(new Point(120, 65), new Point(150, 65)),
+            new Segment(new Point(150, 65), new Point(150, 50)),
+            new Segment(new Point(150, 50), new Point(300, 50)),
+            new Segment(new Point(-300, -50), new Point(-300, 50)),
+            new Segment(new Point(300, -50), new Point(300, 50)),
+        };
+    }
+
+    @Test
+    public void testPointToLine()
+    {
+        final double ox = 10, oy = 3, heading = Math.toRadians(4);
+        Segment[] scene = makeCorridor();
+        Random rand = new Random(11);
+        double[] xsA = new double[720], ysA = new double[720];
+        double[] xsB = new double[720], ysB = new double[720];
+        int nA = ScanFixtures.scanScene(scene, 0, 0, 0, rand, xsA, ysA);
+        int nB = ScanFixtures.scanScene(scene, ox, oy, heading, rand, xsB, ysB);
+        KDTreeReferenceModel scanModel = new KDTreeReferenceModel();
+        scanModel.setPoints(xsA, ysA, nA);
+        // the field model, positioned so that its origin is the sensor's
+        SegmentReferenceModel fieldModel = new SegmentReferenceModel(makeCorridor());
+
+        String[] names = { "scan-to-scan", "scan-to-model" };
+        IReferenceModel[] models = { scanModel, fieldModel };
+        for (int m = 0; m < models.length; m++)
+        {
+            long[] iterations = new long[2];
+            double[] errors = new double[2];
+            double[] ms = new double[2];
+            for (int pl = 0; pl < 2; pl++)
+            {
+                ICP icp = new ICP(0/*no timeout during testing*/);
+                icp.maxIterations = 500;
+                icp.pointToLine = pl == 1;
+                icp.doICP(xsB, ysB, nB, null, models[m]); // warm up
+                long t0 = System.nanoTime();
+                Transform pose = icp.doICP(xsB, ysB, nB, null, models[m]).inverse();
+                ms[pl] = (System.nanoTime() - t0) / 1e6;
+                iterations[pl] = icp.getLastResult().getIterations();
+                errors[pl] = Math.hypot(pose.tx - ox, pose.ty - oy);
+                if (pl == 1)
+                {
+                    assertTrue(icp.getLastResult().isConverged());
+                    assertEquals(heading, pose.theta, Math.toRadians(.25));
+                }
+            }
+            System.out.format("ICP %s: point-to-point %d iterations %.2fms error %.3fin, " +
+                              "point-to-line %d iterations %.2fms error %.3fin\n", names[m],
+                              iterations[0], ms[0], errors[0], iterations[1], ms[1], errors[1]);
+            // point-to-point stalls partway along the corridor, with steps
+            // small enough to pass the convergence test
+            assertTrue(errors[1] < errors[0] / 4, "point-to-line error " + errors[1]);
+            if (models[m] == fieldModel)
+                assertTrue(errors[1] < .1, "point-to-line error " + errors[1]);
+        }
+    }
+
+    @Test
+    public void testRecoversFromEmptyScan()
+    {
+        Random rand = new Random(1);
+        ICP icp = new ICP(50);
+        RelativeICPProcessor relICP = new RelativeICPProcessor(icp, null, false);
+        double[] xs = new double[400], ys = new double[400];
+        relICP.doRelativeICP(xs, ys, 0); // becomes the reference
+
+        // nothing to match against: the guess comes back
+        double[] few = { 10, 20, 30 };
+        Transform guess = new Transform(0, 1, 2);
+        assertEquals(guess.tx, relICP.doRelativeICP(few, few, 3, guess).tx, kTestEpsilon);
+        assertEquals(ICPResult.Status.kNoMatch, relICP.getLastResult().getStatus());
+        relICP.doRelativeICP(xs, ys, 0);
+        assertEquals(ICPResult.Status.kNoMatch, relICP.getLastResult().getStatus());
+
+        // and the next real scans match again
+        ArrayList<Point> scan = ScanFixtures.makeRoomScan(400, 0, 0, rand);
+        for (int i = 0; i < scan.size(); i++)
+        {
+            xs[i] = scan.get(i).x;
+            ys[i] = scan.get(i).y;
+        }
+        relICP.doRelativeICP(xs, ys, scan.size());
+        Transform same = relICP.doRelativeICP(xs, ys, scan.size());
+        assertTrue(relICP.getLastResult().isAcceptable());
+        assertEquals(0, same.tx, kTestEpsilon);
+        assertEquals(0, same.ty, kTestEpsilon);
+    }
+
+    @Test
+    public void testResult()
+    {
+        final double ox = 10, oy = 3, heading = Math.toRadians(4);
+        Random rand = new Random(17);
+        double[] xs = new double[720], ys = new double[720];
+        int n = ScanFixtures.scanScene(makeCorridor(), ox, oy, heading, rand, xs, ys);
+        SegmentReferenceModel corridor = new SegmentReferenceModel(makeCorridor());
+        ICP icp = new ICP(0/*no timeout during testing*/);
+        icp.maxIterations = 100;
+        icp.pointToLine = true;
+        ICPStats stats = new ICPStats();
+
+        ICPResult result = icp.match(xs, ys, n, null, corridor);
+        System.out.println("ICP good fit: " + result);
+        assertSame(result, icp.getLastResult());
+        assertEquals(ICPResult.Status.kConverged, result.getStatus());
+        assertTrue(result.isAcceptable());
+        assertTrue(result.getElapsedNs() > 0);
+        assertEquals(ox, result.getTransform().inverse().tx, .1);
+        stats.record(result, result.isAcceptable());
+
+        // a scan of some other place: a few points fit closely, so only
+        // the inlier ratio gives it away
+        int m = ScanFixtures.scanScene(ScanFixtures.makeScene(), 0, 0, 0, rand, xs, ys);
+        result = icp.match(xs, ys, m, null, corridor);
+        System.out.println("ICP wrong scene: " + result);
+        assertFalse(result.isAcceptable());
+        stats.record(result, result.isAcceptable());
+
+        // nothing to match: the guess comes back, rather than an exception
+        Transform guess = new Transform(.1, 2, 3);
+        result = icp.match(xs, ys, 0, guess, corridor);
+        assertEquals(ICPResult.Status.kNoMatch, result.getStatus());
+        assertEquals(guess.tx, result.getTransform().tx);
+        assertEquals(guess.theta, result.getTransform().theta);
+        assertFalse(result.isAcceptable());
+        stats.record(result, result.isAcceptable());
+
+        // out of iterations: the best so far
+        icp.maxIterations = 1;
+        n = ScanFixtures.scanScene(makeCorridor(), ox, oy, heading, rand, xs, ys);
+        result = icp.match(xs, ys, n, null, corridor);
+        assertEquals(ICPResult.Status.kTimedOut, result.getStatus());
+        assertEquals(1, result.getIterations());
+        assertFalse(result.isAcceptable());
+        stats.record(result, result.isAcceptable());
+
+        System.out.println("ICP stats: " + stats);
+        assertEquals(4, stats.getMatches());
+        assertEquals(2, stats.getConverged());
+        assertEquals(1, stats.getTimedOut());
+        assertEquals(1, stats.getNoMatch());
+        assertEquals(3, stats.getRejected());
+        assertTrue(stats.getElapsedPercentileMs(1) >= stats.getElapsedPercentileMs(.5));
+    }
+}
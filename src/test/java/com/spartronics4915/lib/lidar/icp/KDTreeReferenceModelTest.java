@@ -0,0 +1,85 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KDTreeReferenceModelTest
+{
+    public static final double kTestEpsilon = 1e-9;
+
+    @Test
+    public void testMatchesBruteForce()
+    {
+        Random rand = new Random(4915);
+        ArrayList<Point> scan = ScanFixtures.makeRoomScan(400, 0, 0, rand);
+        PointCloudReferenceModel brute = new PointCloudReferenceModel(scan);
+        KDTreeReferenceModel tree = new KDTreeReferenceModel(scan);
+        assertEquals(scan.size(), tree.size());
+        for (int i = 0; i < 2000; i++)
+        {
+            Point q = new Point(rand.nextDouble() * 400 - 200, rand.nextDouble() * 400 - 200);
+            Point b = brute.getClosestPoint(q);
+            Point t = tree.getClosestPoint(q);
+            assertEquals(q.getDistance(b), q.getDistance(t), kTestEpsilon);
+        }
+
+        Transform xform = new Transform(Math.toRadians(12), 3, -7);
+        brute.transformBy(xform);
+        tree.transformBy(xform);
+        for (int i = 0; i < 500; i++)
+        {
+            Point q = new Point(rand.nextDouble() * 400 - 200, rand.nextDouble() * 400 - 200);
+            assertEquals(q.getDistance(brute.getClosestPoint(q)),
+                         q.getDistance(tree.getClosestPoint(q)), kTestEpsilon);
+        }
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        KDTreeReferenceModel tree = new KDTreeReferenceModel(new ArrayList<Point>());
+        assertEquals(0, tree.size());
+        assertNull(tree.getClosestPoint(new Point(1, 2)));
+        double[] out = new double[4];
+        tree.getClosestPoint(1, 2, out);
+        assertTrue(Double.isNaN(out[0]) && Double.isNaN(out[1]));
+        tree.getClosestPointAndNormal(1, 2, out);
+        for (double v : out)
+            assertTrue(Double.isNaN(v));
+    }
+
+    @Test
+    public void benchmarkICP()
+    {
+        final int nscans = 20;
+        Random rand = new Random(254);
+        ArrayList<ArrayList<Point>> scans = new ArrayList<>();
+        for (int i = 0; i < nscans; i++)
+            scans.add(ScanFixtures.makeRoomScan(400, i * 1.5, i * .5, rand));
+
+        ICP icp = new ICP(0);
+        icp.maxIterations = 30;
+        long bruteNs = 0, treeNs = 0;
+        for (int i = 1; i < nscans; i++)
+        {
+            long t0 = System.nanoTime();
+            Transform tb = icp.doICP(scans.get(i), null,
+                                     new PointCloudReferenceModel(scans.get(i - 1)));
+            long t1 = System.nanoTime();
+            Transform tt = icp.doICP(scans.get(i), null,
+                                     new KDTreeReferenceModel(scans.get(i - 1)));
+            long t2 = System.nanoTime();
+            bruteNs += t1 - t0;
+            treeNs += t2 - t1; // includes tree construction
+            assertEquals(tb.tx, tt.tx, 1e-6);
+            assertEquals(tb.ty, tt.ty, 1e-6);
+            assertEquals(tb.theta, tt.theta, 1e-6);
+        }
+        System.out.println("ICP brute-force: " + bruteNs / 1e6 + " ms, " +
+                           "k-d tree: " + treeNs / 1e6 + " ms, " +
+                           "speedup: " + (double) bruteNs / treeNs);
+    }
+}
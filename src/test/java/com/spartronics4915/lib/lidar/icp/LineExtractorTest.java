@@ -0,0 +1,106 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LineExtractorTest
+{
+    private static double distanceToScene(Segment[] scene, double x, double y)
+    {
+        double best = Double.MAX_VALUE;
+        for (Segment s : scene)
+            best = Math.min(best, s.getDistance(new Point(x, y)));
+        return best;
+    }
+
+    @Test
+    public void testExtract()
+    {
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(18);
+        double[] xs = new double[720], ys = new double[720];
+        int n = ScanFixtures.scanScene(scene, 0, 0, 0, rand, xs, ys);
+        LineExtractor lines = new LineExtractor();
+        int count = lines.extract(xs, ys, n);
+        int points = 0;
+        for (int k = 0; k < count; k++)
+        {
+            // every segment lies along a wall
+            assertTrue(distanceToScene(scene, lines.getX0(k), lines.getY0(k)) < 1, "segment " + k);
+            assertTrue(distanceToScene(scene, lines.getX1(k), lines.getY1(k)) < 1, "segment " + k);
+            points += lines.getPointCount(k);
+        }
+        System.out.format("lines: %d points -> %d segments of %d points\n", n, count, points);
+        // the six room walls, split by the pillars' shadows, and the pillar faces
+        assertTrue(count >= 6 && count < 30, "count " + count);
+        assertTrue(points > n * 3 / 4, "points on lines " + points);
+        assertEquals(count, lines.getSegments().size());
+
+        // nothing to extract from a blob
+        for (int i = 0; i < 100; i++)
+        {
+            xs[i] = 20 * Math.cos(i);
+            ys[i] = 20 * Math.sin(i);
+        }
+        assertEquals(0, lines.extract(xs, ys, 100));
+        assertEquals(0, lines.extract(xs, ys, 0));
+    }
+
+    @Test
+    public void testMatch()
+    {
+        final double ox = 7, oy = -4, heading = Math.toRadians(5);
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(19);
+        double[] xsA = new double[720], ysA = new double[720];
+        double[] xsB = new double[720], ysB = new double[720];
+        int nA = ScanFixtures.scanScene(scene, 0, 0, 0, rand, xsA, ysA);
+        int nB = ScanFixtures.scanScene(scene, ox, oy, heading, rand, xsB, ysB);
+
+        LineExtractor lines = new LineExtractor();
+        SegmentMatcher matcher = new SegmentMatcher();
+        assertFalse(matcher.hasReference());
+        lines.extract(xsA, ysA, nA);
+        matcher.setReference(lines);
+        long t0 = System.nanoTime();
+        lines.extract(xsB, ysB, nB);
+        ICPResult result = matcher.match(lines, null);
+        double lineMs = (System.nanoTime() - t0) / 1e6;
+        Transform pose = result.getTransform().inverse();
+        System.out.println("line match: " + result);
+        assertTrue(result.isAcceptable());
+        assertEquals(ox, pose.tx, .5);
+        assertEquals(oy, pose.ty, .5);
+        assertEquals(heading, pose.theta, Math.toRadians(.25));
+        double lineError = Math.hypot(pose.tx - ox, pose.ty - oy);
+
+        ICP icp = new ICP(0/*no timeout during testing*/);
+        icp.maxIterations = 100;
+        icp.pointToLine = true;
+        KDTreeReferenceModel model = new KDTreeReferenceModel();
+        model.setPoints(xsA, ysA, nA);
+        t0 = System.nanoTime();
+        ICPResult pointResult = icp.match(xsB, ysB, nB, null, model);
+        double pointMs = (System.nanoTime() - t0) / 1e6;
+        pose = pointResult.getTransform().inverse();
+        System.out.format("line match %.2fms (%d segments) error %.3fin, " +
+                          "point ICP %.2fms (%d points) error %.3fin\n", lineMs, lines.size(),
+                          lineError, pointMs, nB, Math.hypot(pose.tx - ox, pose.ty - oy));
+
+        // a bare corridor only constrains motion across it
+        Segment[] corridor = {
+            new Segment(new Point(-2000, -50), new Point(2000, -50)),
+            new Segment(new Point(-2000, 50), new Point(2000, 50)),
+        };
+        nA = ScanFixtures.scanScene(corridor, 0, 0, 0, rand, xsA, ysA);
+        nB = ScanFixtures.scanScene(corridor, 10, 0, 0, rand, xsB, ysB);
+        lines.extract(xsA, ysA, nA);
+        matcher.setReference(lines);
+        lines.extract(xsB, ysB, nB);
+        result = matcher.match(lines, null);
+        assertEquals(ICPResult.Status.kNoMatch, result.getStatus());
+        assertFalse(result.isAcceptable());
+    }
+}
@@ -0,0 +1,120 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic scenes and the scans a lidar would make of them, shared by
+ * the lidar tests.
+ */
+public class ScanFixtures
+{
+    /**
+     * An irregular hexagonal room with three pillars, so that no
+     * direction is unconstrained.
+     */
+    public static Segment[] makeScene()
+    {
+        Point[] room = {
+            new Point(-150, -120), new Point(160, -140), new Point(200, 40),
+            new Point(90, 170), new Point(-110, 150), new Point(-180, 20),
+        };
+        Point[] pillars = { new Point(50, -60), new Point(-60, 70), new Point(120, 90) };
+        ArrayList<Segment> scene = new ArrayList<>();
+        for (int i = 0; i < room.length; i++)
+            scene.add(new Segment(room[i], room[(i + 1) % room.length]));
+        for (Point c : pillars)
+        {
+            Point[] box = {
+                new Point(c.x - 6, c.y - 6), new Point(c.x + 6, c.y - 6),
+                new Point(c.x + 6, c.y + 6), new Point(c.x - 6, c.y + 6),
+            };
+            for (int i = 0; i < box.length; i++)
+                scene.add(new Segment(box[i], box[(i + 1) % box.length]));
+        }
+        return scene.toArray(new Segment[0]);
+    }
+
+    /**
+     * Synthesizes a scan of a rectangular room (with a pillar) as seen
+     * from (ox, oy), with gaussian range noise.
+     */
+    public static ArrayList<Point> makeRoomScan(int npts, double ox, double oy, Random rand)
+    {
+        Segment[] walls = Segment.makeInRectangle(new Point(-120, -200), new Point(180, 150));
+        Segment[] pillar = Segment.makeInRectangle(new Point(40, 40), new Point(60, 60));
+        Segment[] scene = new Segment[walls.length + pillar.length];
+        System.arraycopy(walls, 0, scene, 0, walls.length);
+        System.arraycopy(pillar, 0, scene, walls.length, pillar.length);
+        return makeScan(scene, npts, ox, oy, rand);
+    }
+
+    /**
+     * Synthesizes a scan of the given segments as seen from (ox, oy),
+     * in field coordinates, with gaussian range noise.
+     */
+    public static ArrayList<Point> makeScan(Segment[] scene, int npts, double ox, double oy, Random rand)
+    {
+        ArrayList<Point> pts = new ArrayList<>();
+        for (int i = 0; i < npts; i++)
+        {
+            double a = 2 * Math.PI * i / npts;
+            double best = castRay(scene, ox, oy, a);
+            if (best == Double.MAX_VALUE)
+                continue;
+            best += .25 * rand.nextGaussian();
+            pts.add(new Point(ox + Math.cos(a) * best, oy + Math.sin(a) * best));
+        }
+        return pts;
+    }
+
+    /**
+     * @return the range from (ox, oy) along angle (radians) to the
+     *  nearest segment, or Double.MAX_VALUE if none is hit
+     */
+    public static double castRay(Segment[] scene, double ox, double oy, double angle)
+    {
+        double vx = Math.cos(angle), vy = Math.sin(angle);
+        double best = Double.MAX_VALUE;
+        for (Segment s : scene)
+        {
+            double r = rayHit(ox, oy, vx, vy, s);
+            if (r < best)
+                best = r;
+        }
+        return best;
+    }
+
+    private static double rayHit(double ox, double oy, double vx, double vy, Segment s)
+    {
+        double ex = s.pMax.x - s.pMin.x, ey = s.pMax.y - s.pMin.y;
+        double denom = vx * ey - vy * ex;
+        if (Math.abs(denom) < 1e-12)
+            return Double.MAX_VALUE;
+        double wx = s.pMin.x - ox, wy = s.pMin.y - oy;
+        double r = (wx * ey - wy * ex) / denom;
+        double u = (wx * vy - wy * vx) / denom;
+        if (r <= 0 || u < 0 || u > 1)
+            return Double.MAX_VALUE;
+        return r;
+    }
+
+    /**
+     * Scans the scene from (ox, oy, heading), in sensor coordinates.
+     */
+    public static int scanScene(Segment[] scene, double ox, double oy, double heading,
+                                Random rand, double[] xs, double[] ys)
+    {
+        ArrayList<Point> world = makeScan(scene, xs.length, ox, oy, rand);
+        double c = Math.cos(-heading), s = Math.sin(-heading);
+        int n = 0;
+        for (Point p : world)
+        {
+            double x = p.x - ox, y = p.y - oy;
+            xs[n] = x * c - y * s;
+            ys[n] = x * s + y * c;
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,110 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubmapICPProcessorTest
+{
+    @Test
+    public void testSubmapDrift()
+    {
+        final int nscans = 40;
+        final double step = 2; // inches per scan
+        final double turn = Math.toRadians(1); // per scan
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(3);
+        ICP icp = new ICP(0/*no timeout during testing*/);
+        icp.maxIterations = 200;
+        RelativeICPProcessor relICP = new RelativeICPProcessor(icp);
+        SubmapICPProcessor subICP = new SubmapICPProcessor(icp);
+        Transform relTotal = new Transform(), subTotal = new Transform();
+        double[] xs = new double[1000], ys = new double[1000];
+        double ox = 0, oy = 0, heading = 0;
+        long relNs = 0, subNs = 0;
+        for (int k = 0; k < nscans; k++)
+        {
+            if (k > 0)
+            {
+                ox += step * Math.cos(heading);
+                oy += step * Math.sin(heading);
+                heading += turn;
+            }
+
+            // the room, as seen from the robot at (ox, oy, heading)
+            int n = ScanFixtures.scanScene(scene, ox, oy, heading, rand, xs, ys);
+            long t0 = System.nanoTime();
+            relTotal = relICP.doRelativeICP(xs, ys, n).apply(relTotal);
+            long t1 = System.nanoTime();
+            subTotal = subICP.doRelativeICP(xs, ys, n).apply(subTotal);
+            long t2 = System.nanoTime();
+            relNs += t1 - t0;
+            subNs += t2 - t1;
+        }
+
+        // the accumulated transform maps the first scan's frame to the
+        // last, so its inverse is the robot's pose.
+        Transform relPose = relTotal.inverse(), subPose = subTotal.inverse();
+        double relErr = Math.hypot(relPose.tx - ox, relPose.ty - oy);
+        double subErr = Math.hypot(subPose.tx - ox, subPose.ty - oy);
+        System.out.format("submap drift: scan-to-scan %.3fin %.3fdeg (%.1fms), " +
+                          "submap %.3fin %.3fdeg (%.1fms), %d keyframes, %d map points\n",
+                          relErr, Math.toDegrees(Math.abs(relPose.theta - heading)), relNs / 1e6,
+                          subErr, Math.toDegrees(Math.abs(subPose.theta - heading)), subNs / 1e6,
+                          subICP.getNumKeyframesAdded(), subICP.getSubmapSize());
+        assertEquals(heading, subPose.theta, Math.toRadians(1));
+        assertTrue(subErr < 2, "submap drift " + subErr);
+        assertTrue(subICP.getNumKeyframesAdded() > 1);
+        assertTrue(subICP.getNumKeyframesAdded() < nscans / 2);
+    }
+
+    @Test
+    public void testRecoversFromKidnap()
+    {
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(9);
+        ICP icp = new ICP(0/*no timeout during testing*/);
+        icp.maxIterations = 200;
+        SubmapICPProcessor subICP = new SubmapICPProcessor(icp, 5, 2.0, null, 3);
+        double[] xs = new double[1000], ys = new double[1000];
+        double ox = 0, oy = 0, heading = 0;
+        for (int k = 0; k < 10; k++, ox += 2)
+            subICP.doRelativeICP(xs, ys, ScanFixtures.scanScene(scene, ox, oy, heading, rand, xs, ys));
+        assertEquals(0, subICP.getNumReanchors());
+
+        // carried across the room and turned around: nothing matches
+        ox = 40;
+        oy = 30;
+        heading = Math.toRadians(120);
+        int rejected = 0;
+        for (int k = 0; k < 3; k++)
+        {
+            subICP.doRelativeICP(xs, ys, ScanFixtures.scanScene(scene, ox, oy, heading, rand, xs, ys));
+            if (!subICP.getLastResult().isAcceptable())
+                rejected++;
+        }
+        assertTrue(rejected > 0);
+        assertEquals(1, subICP.getNumReanchors());
+
+        // then tracks again, relative to where the submap restarted
+        final double ox0 = ox, oy0 = oy, heading0 = heading;
+        Transform total = new Transform();
+        for (int k = 0; k < 15; k++)
+        {
+            ox += 2 * Math.cos(heading);
+            oy += 2 * Math.sin(heading);
+            heading += Math.toRadians(1);
+            total = subICP.doRelativeICP(xs, ys, ScanFixtures.scanScene(scene, ox, oy, heading, rand, xs, ys))
+                          .apply(total);
+            assertTrue(subICP.getLastResult().isAcceptable(), "scan " + k + " after re-anchoring");
+        }
+        Transform pose = total.inverse();
+        double c = Math.cos(-heading0), s = Math.sin(-heading0);
+        double ex = (ox - ox0) * c - (oy - oy0) * s, ey = (ox - ox0) * s + (oy - oy0) * c;
+        assertEquals(heading - heading0, pose.theta, Math.toRadians(1));
+        assertEquals(ex, pose.tx, 1.0);
+        assertEquals(ey, pose.ty, 1.0);
+        assertEquals(1, subICP.getNumReanchors());
+    }
+}
@@ -0,0 +1,123 @@
+package com.spartronics4915.lib.lidar.icp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VoxelFilterTest
+{
+    private static int randomPoints(Random rand, int n, double extent, double[] xs, double[] ys)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            xs[i] = (rand.nextDouble() - .5) * extent;
+            ys[i] = (rand.nextDouble() - .5) * extent;
+        }
+        return n;
+    }
+
+    private static String cellOf(double x, double y, double size)
+    {
+        return Math.floor(x / size) + "," + Math.floor(y / size);
+    }
+
+    @Test
+    public void testMatchesBruteForce()
+    {
+        Random rand = new Random(16);
+        final double size = 3;
+        VoxelFilter first = new VoxelFilter(size, VoxelFilter.Mode.kFirst);
+        VoxelFilter centroid = new VoxelFilter(size, VoxelFilter.Mode.kCentroid);
+        double[] xs = new double[2000], ys = new double[2000];
+        double[] outXs = new double[2000], outYs = new double[2000];
+        // repeatedly, so that stale cells from the last call would show up
+        for (int trial = 0; trial < 5; trial++)
+        {
+            int n = randomPoints(rand, 500 + 300 * trial, 60 + 20 * trial, xs, ys);
+            HashMap<String, Integer> cells = new HashMap<>();
+            ArrayList<double[]> sums = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+            {
+                Integer k = cells.get(cellOf(xs[i], ys[i], size));
+                if (k == null)
+                {
+                    cells.put(cellOf(xs[i], ys[i], size), sums.size());
+                    sums.add(new double[] { xs[i], ys[i], 1, i });
+                }
+                else
+                {
+                    double[] sum = sums.get(k);
+                    sum[0] += xs[i];
+                    sum[1] += ys[i];
+                    sum[2]++;
+                }
+            }
+
+            int count = first.filter(xs, ys, n, outXs, outYs);
+            assertEquals(sums.size(), count);
+            for (int k = 0; k < count; k++)
+            {
+                int i = (int) sums.get(k)[3];
+                assertEquals(i, first.getSourceIndex(k));
+                assertEquals(xs[i], outXs[k]);
+                assertEquals(ys[i], outYs[k]);
+            }
+
+            count = centroid.filter(xs, ys, n, outXs, outYs);
+            assertEquals(sums.size(), count);
+            for (int k = 0; k < count; k++)
+            {
+                double[] sum = sums.get(k);
+                assertEquals((int) sum[3], centroid.getSourceIndex(k));
+                assertEquals(sum[0] / sum[2], outXs[k], 1e-9);
+                assertEquals(sum[1] / sum[2], outYs[k], 1e-9);
+            }
+
+            // in place
+            count = first.filter(xs, ys, n, xs, ys);
+            assertEquals(sums.size(), count);
+        }
+    }
+
+    @Test
+    public void testBudget()
+    {
+        final int budget = 300;
+        Segment[] scene = ScanFixtures.makeScene();
+        Random rand = new Random(4);
+        VoxelFilter filter = new VoxelFilter(1, VoxelFilter.Mode.kFirst);
+        double[] outXs = new double[4000], outYs = new double[4000];
+
+        // dense scans need larger cells
+        ArrayList<Point> dense = ScanFixtures.makeScan(scene, 4000, 0, 0, rand);
+        double[] xs = new double[dense.size()], ys = new double[dense.size()];
+        for (int i = 0; i < xs.length; i++)
+        {
+            xs[i] = dense.get(i).x;
+            ys[i] = dense.get(i).y;
+        }
+        int count = filter.filterToBudget(xs, ys, xs.length, budget, outXs, outYs);
+        System.out.format("voxel budget: %d points -> %d in %.2fin cells\n", xs.length, count,
+                          filter.getCellSize());
+        assertTrue(count <= budget && count > budget / 2, "count " + count);
+        assertTrue(filter.getCellSize() > 1);
+
+        // the size carries over, then relaxes once the scans thin out
+        double adapted = filter.getCellSize();
+        assertTrue(filter.filterToBudget(xs, ys, xs.length, budget, outXs, outYs) <= budget);
+        assertEquals(adapted, filter.getCellSize(), 1e-9);
+        double[] sparseXs = new double[50], sparseYs = new double[50];
+        for (int i = 0; i < 50; i++)
+        {
+            sparseXs[i] = xs[i * xs.length / 50];
+            sparseYs[i] = ys[i * xs.length / 50];
+        }
+        for (int i = 0; i < 5; i++)
+            count = filter.filterToBudget(sparseXs, sparseYs, 50, budget, outXs, outYs);
+        assertEquals(1, filter.getCellSize(), 1e-9);
+        assertEquals(50, count);
+    }
+}
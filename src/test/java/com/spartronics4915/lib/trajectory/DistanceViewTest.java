@@ -37,4 +37,33 @@ public class DistanceViewTest
         assertEquals(waypoints.get(3).interpolate(waypoints.get(4), 0.5), distance_view.sample(72.0).state());
     }
 
+    @Test
+    public void testHintedSearch()
+    {
+        // a repeated waypoint makes a zero-length segment
+        List<Translation2d> waypoints = Arrays.asList(
+                new Translation2d(0.0, 0.0),
+                new Translation2d(24.0, 0.0),
+                new Translation2d(24.0, 0.0),
+                new Translation2d(36.0, 0.0),
+                new Translation2d(36.0, 24.0),
+                new Translation2d(60.0, 24.0));
+        Trajectory<Translation2d> trajectory = new Trajectory<>(waypoints);
+        final DistanceView<Translation2d> distance_view = new DistanceView<>(trajectory);
+
+        // any hint, good or bad, gives the same sample as none
+        for (double distance = -1.0; distance <= 85.0; distance += 0.5)
+        {
+            TrajectorySamplePoint<Translation2d> expected = distance_view.sample(distance);
+            for (int hint = -1; hint <= waypoints.size(); hint++)
+            {
+                TrajectorySamplePoint<Translation2d> actual = distance_view.sample(distance, hint);
+                assertEquals(expected.state(), actual.state());
+                assertEquals(expected.index_floor(), actual.index_floor());
+                assertEquals(expected.index_ceil(), actual.index_ceil());
+            }
+        }
+        assertEquals(waypoints.get(2), distance_view.sample(24.0, 0).state());
+        assertEquals(3, distance_view.sample(30.0, 1).index_ceil());
+    }
 }
@@ -0,0 +1,90 @@
+package com.spartronics4915.lib.trajectory;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.trajectory.timing.CentripetalAccelerationConstraint;
+import com.spartronics4915.lib.trajectory.timing.TimedState;
+import com.spartronics4915.lib.trajectory.timing.TimingConstraint;
+import com.spartronics4915.lib.trajectory.timing.TimingUtil;
+import com.spartronics4915.lib.util.Util;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackedTrajectoryTest
+{
+
+    public static final double kTestEpsilon = Util.kEpsilon;
+
+    private static Trajectory<TimedState<Pose2dWithCurvature>> generate(boolean reversed)
+    {
+        List<Pose2d> waypoints = Arrays.asList(
+                new Pose2d(0, 0, Rotation2d.identity()),
+                new Pose2d(60, 30, Rotation2d.fromDegrees(45)),
+                new Pose2d(120, 40, Rotation2d.fromDegrees(-10)));
+        Trajectory<Pose2dWithCurvature> path = TrajectoryUtil.trajectoryFromSplineWaypoints(waypoints, 2.0,
+                0.25, Math.toRadians(5.0));
+        List<TimingConstraint<Pose2dWithCurvature>> constraints = Arrays.asList(
+                new CentripetalAccelerationConstraint(30.0));
+        return TimingUtil.timeParameterizeTrajectory(reversed, new DistanceView<>(path), 2.0, constraints,
+                0.0, 0.0, 120.0, 30.0);
+    }
+
+    private static void assertStateEquals(TimedState<Pose2dWithCurvature> expected,
+            TimedState<Pose2dWithCurvature> actual)
+    {
+        assertEquals(expected.state(), actual.state());
+        assertEquals(expected.state().getCurvature(), actual.state().getCurvature(), kTestEpsilon);
+        assertEquals(expected.state().getDCurvatureDs(), actual.state().getDCurvatureDs(), kTestEpsilon);
+        assertEquals(expected.t(), actual.t(), kTestEpsilon);
+        assertEquals(expected.velocity(), actual.velocity(), kTestEpsilon);
+        assertEquals(expected.acceleration(), actual.acceleration(), kTestEpsilon);
+    }
+
+    @Test
+    public void testSampleMatchesTimedView()
+    {
+        for (boolean reversed : new boolean[] { false, true })
+        {
+            Trajectory<TimedState<Pose2dWithCurvature>> trajectory = generate(reversed);
+            TimedView<Pose2dWithCurvature> timed = new TimedView<>(trajectory);
+            PackedTrajectory packed = new PackedTrajectory(trajectory);
+            TrajectoryView<TimedState<Pose2dWithCurvature>> view = packed.getTimedView();
+            assertEquals(reversed, packed.isReversed());
+            assertEquals(trajectory.length(), packed.length());
+            assertEquals(timed.first_interpolant(), view.first_interpolant(), kTestEpsilon);
+            assertEquals(timed.last_interpolant(), view.last_interpolant(), kTestEpsilon);
+
+            PackedTrajectory.MutableState state = new PackedTrajectory.MutableState();
+            int index = -1;
+            for (double t = -0.5; t < timed.last_interpolant() + 0.5; t += 0.01)
+            {
+                TrajectorySamplePoint<TimedState<Pose2dWithCurvature>> expected = timed.sample(t);
+                index = packed.sample(t, index, state);
+                assertEquals(expected.index_floor(), index);
+                assertStateEquals(expected.state(), state.toTimedState());
+
+                TrajectorySamplePoint<TimedState<Pose2dWithCurvature>> actual = view.sample(t);
+                assertEquals(expected.index_floor(), actual.index_floor());
+                assertEquals(expected.index_ceil(), actual.index_ceil());
+                assertStateEquals(expected.state(), actual.state());
+            }
+        }
+    }
+
+    @Test
+    public void testToTrajectory()
+    {
+        Trajectory<TimedState<Pose2dWithCurvature>> trajectory = generate(false);
+        Trajectory<TimedState<Pose2dWithCurvature>> unpacked = new PackedTrajectory(trajectory).toTrajectory();
+        assertEquals(trajectory.length(), unpacked.length());
+        for (int i = 0; i < trajectory.length(); i++)
+        {
+            assertStateEquals(trajectory.getState(i), unpacked.getState(i));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.spartronics4915.lib.trajectory;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Pose2dWithCurvature;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.geometry.Translation2d;
+import com.spartronics4915.lib.trajectory.timing.CentripetalAccelerationConstraint;
+import com.spartronics4915.lib.trajectory.timing.TimedState;
+import com.spartronics4915.lib.trajectory.timing.TimingConstraint;
+import com.spartronics4915.lib.trajectory.timing.TimingUtil;
+import com.spartronics4915.lib.trajectory.timing.VelocityLimitRegionConstraint;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrajectoryCacheTest
+{
+
+    private static Trajectory<TimedState<Pose2dWithCurvature>> generate(List<Pose2d> waypoints,
+            List<TimingConstraint<Pose2dWithCurvature>> constraints)
+    {
+        Trajectory<Pose2dWithCurvature> path = TrajectoryUtil.trajectoryFromSplineWaypoints(waypoints, 2.0,
+                0.25, Math.toRadians(5.0));
+        return TimingUtil.timeParameterizeTrajectory(false, new DistanceView<>(path), 2.0, constraints,
+                0.0, 0.0, 120.0, 30.0);
+    }
+
+    private static long hash(List<Pose2d> waypoints, List<TimingConstraint<Pose2dWithCurvature>> constraints)
+    {
+        return new TrajectoryCache.ContentHash().add(false).add(waypoints).add(constraints)
+                .add(120.0).add(30.0).get();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        List<Pose2d> waypoints = Arrays.asList(
+                new Pose2d(0, 0, Rotation2d.identity()),
+                new Pose2d(60, 30, Rotation2d.fromDegrees(45)),
+                new Pose2d(120, 40, Rotation2d.fromDegrees(-10)));
+        List<TimingConstraint<Pose2dWithCurvature>> constraints = Arrays.asList(
+                new CentripetalAccelerationConstraint(30.0),
+                new VelocityLimitRegionConstraint<>(new Translation2d(0, -10), new Translation2d(20, 10), 15));
+        Trajectory<TimedState<Pose2dWithCurvature>> trajectory = generate(waypoints, constraints);
+        final long hash = hash(waypoints, constraints);
+
+        File file = Files.createTempDirectory("trajectories").resolve("test.bin").toFile();
+        try
+        {
+            new TrajectoryCache.Builder().add("curve", hash, trajectory).write(file);
+            TrajectoryCache cache = TrajectoryCache.open(file);
+            assertEquals(1, cache.size());
+
+            Trajectory<TimedState<Pose2dWithCurvature>> loaded = cache.get("curve", hash);
+            assertNotNull(loaded);
+            assertEquals(trajectory.length(), loaded.length());
+            for (int i = 0; i < trajectory.length(); i++)
+            {
+                TimedState<Pose2dWithCurvature> expected = trajectory.getState(i), actual = loaded.getState(i);
+                assertEquals(expected.state(), actual.state());
+                assertEquals(expected.state().getCurvature(), actual.state().getCurvature());
+                assertEquals(expected.state().getDCurvatureDs(), actual.state().getDCurvatureDs());
+                assertEquals(expected.t(), actual.t());
+                assertEquals(expected.velocity(), actual.velocity());
+                assertEquals(expected.acceleration(), actual.acceleration());
+            }
+
+            // stale or missing entries aren't returned
+            List<Pose2d> moved = Arrays.asList(waypoints.get(0), new Pose2d(60, 31, Rotation2d.fromDegrees(45)),
+                    waypoints.get(2));
+            assertNotEquals(hash, hash(moved, constraints));
+            assertNull(cache.get("curve", hash(moved, constraints)));
+            List<TimingConstraint<Pose2dWithCurvature>> slower = Arrays.asList(
+                    new CentripetalAccelerationConstraint(25.0), constraints.get(1));
+            assertNull(cache.get("curve", hash(waypoints, slower)));
+            assertNull(cache.get("straight", hash));
+
+            // a constraint that can't describe its parameters isn't hashed
+            List<TimingConstraint<Pose2dWithCurvature>> opaque = Arrays.asList(
+                    new TimingConstraint<Pose2dWithCurvature>()
+                    {
+                        @Override
+                        public double getMaxVelocity(Pose2dWithCurvature state)
+                        {
+                            return 30.0;
+                        }
+
+                        @Override
+                        public MinMaxAcceleration getMinMaxAcceleration(Pose2dWithCurvature state,
+                                double velocity)
+                        {
+                            return MinMaxAcceleration.kNoLimits;
+                        }
+                    });
+            assertThrows(IllegalArgumentException.class, () -> hash(waypoints, opaque));
+
+            // an unreadable file is an empty cache
+            Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+            assertEquals(0, TrajectoryCache.open(file).size());
+            assertEquals(0, TrajectoryCache.open(new File(file.getParentFile(), "missing.bin")).size());
+        }
+        finally
+        {
+            file.delete();
+            file.getParentFile().delete();
+        }
+    }
+}
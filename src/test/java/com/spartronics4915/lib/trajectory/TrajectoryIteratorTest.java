@@ -61,4 +61,52 @@ public class TrajectoryIteratorTest
         assertFalse(iterator.isDone());
     }
 
+    @Test
+    public void testHints()
+    {
+        // fails any search hinted past its target
+        Trajectory<Translation2d> traj = new Trajectory<>(kWaypoints);
+        TrajectoryView<Translation2d> view = traj.getIndexView();
+        TrajectoryIterator<Translation2d> iterator = new TrajectoryIterator<>(new TrajectoryView<Translation2d>()
+        {
+            @Override
+            public TrajectorySamplePoint<Translation2d> sample(double interpolant)
+            {
+                return view.sample(interpolant);
+            }
+
+            @Override
+            public TrajectorySamplePoint<Translation2d> sample(double interpolant, int hint)
+            {
+                assertTrue(hint <= (int) Math.floor(interpolant), "hint " + hint + " for " + interpolant);
+                return view.sample(interpolant);
+            }
+
+            @Override
+            public double first_interpolant()
+            {
+                return view.first_interpolant();
+            }
+
+            @Override
+            public double last_interpolant()
+            {
+                return view.last_interpolant();
+            }
+
+            @Override
+            public Trajectory<Translation2d> trajectory()
+            {
+                return traj;
+            }
+        });
+
+        // a long lookahead, then a shorter one, then back
+        assertEquals(kWaypoints.get(2).interpolate(kWaypoints.get(3), 0.5), iterator.preview(2.5).state());
+        assertEquals(kWaypoints.get(0).interpolate(kWaypoints.get(1), 0.5), iterator.preview(0.5).state());
+        assertEquals(kWaypoints.get(2), iterator.advance(2.0).state());
+        assertEquals(kWaypoints.get(1).interpolate(kWaypoints.get(2), 0.5), iterator.preview(-0.5).state());
+        assertEquals(kWaypoints.get(0).interpolate(kWaypoints.get(1), 0.5), iterator.advance(-1.5).state());
+    }
+
 }
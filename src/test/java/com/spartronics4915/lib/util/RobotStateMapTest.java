@@ -0,0 +1,219 @@
+package com.spartronics4915.lib.util;
+
+import com.spartronics4915.lib.geometry.Pose2d;
+import com.spartronics4915.lib.geometry.Rotation2d;
+import com.spartronics4915.lib.geometry.Twist2d;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class RobotStateMapTest
+{
+    private static void add(RobotStateMap map, double t)
+    {
+        map.addObservations(t, new Pose2d(t, 2 * t, Rotation2d.fromDegrees(t)),
+                            new Twist2d(1, 0, 0), new Twist2d(t, 0, 0));
+    }
+
+    @Test
+    public void testInterpolation()
+    {
+        RobotStateMap map = new RobotStateMap();
+        map.reset(1, new Pose2d(1, 2, Rotation2d.fromDegrees(1)));
+        for (int t = 2; t <= 10; t++)
+            add(map, t);
+        assertEquals(10, map.getLatestState().timestamp);
+        assertEquals(10, map.getLatestFieldToVehicle().getTranslation().x(), 1e-9);
+        assertEquals(9, map.getDistanceDriven(), 1e-9);
+
+        // exact, between and beyond the ends
+        assertEquals(4, map.getFieldToVehicle(4).getTranslation().x(), 1e-9);
+        RobotStateMap.State state = map.get(4.5);
+        assertEquals(4.5, state.timestamp, 1e-9);
+        assertEquals(4.5, state.pose.getRotation().getDegrees(), 1e-9);
+        assertEquals(4.5, state.predictedVelocity.dx, 1e-9);
+        assertEquals(4.5, state.pose.getTranslation().x(), .01);
+        assertEquals(1, map.get(0).timestamp);
+        assertEquals(10, map.get(11).timestamp);
+
+        // out of order, and replacing
+        map.addObservations(4.25, new Pose2d(-1, 0, new Rotation2d()),
+                            Twist2d.identity(), Twist2d.identity());
+        assertEquals(-1, map.getFieldToVehicle(4.25).getTranslation().x(), 1e-9);
+        add(map, 4.25);
+        assertEquals(4.25, map.getFieldToVehicle(4.25).getTranslation().x(), 1e-9);
+        assertEquals(10, map.getLatestState().timestamp);
+
+        map.resetDistanceDriven();
+        assertEquals(0, map.getDistanceDriven());
+    }
+
+    @Test
+    public void testEviction()
+    {
+        RobotStateMap map = new RobotStateMap();
+        for (int t = 1; t <= 250; t++)
+            add(map, t);
+        // only the last 100 remain
+        assertEquals(151, map.get(0).timestamp);
+        assertEquals(250, map.getLatestState().timestamp);
+        assertEquals(200, map.getFieldToVehicle(200).getTranslation().x(), 1e-9);
+
+        PoseHistoryCursor cursor = new PoseHistoryCursor();
+        cursor.load(map, 160.5, 170.5);
+        assertEquals(12, cursor.size()); // 160 through 171
+        cursor.seek(165.5);
+        assertEquals(165.5, cursor.getX(), 1e-9);
+        assertEquals(Math.toRadians(165.5), cursor.getTheta(), 1e-9);
+        cursor.load(map, 0, 1);
+        assertEquals(1, cursor.size());
+        cursor.load(map, 300, 400);
+        assertEquals(1, cursor.size());
+
+        map.reset(1000, new Pose2d());
+        assertEquals(1000, map.get(0).timestamp);
+        assertEquals(1000, map.getLatestState().timestamp);
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException
+    {
+        // each state's fields are all derived from its timestamp, so a
+        // torn read would show up as a mismatch
+        final RobotStateMap map = new RobotStateMap();
+        final int writes = 200000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            for (int t = 1; t <= writes; t++)
+                map.addObservations(t, new Pose2d(t, 2 * t, new Rotation2d()),
+                                    new Twist2d(t, 0, 0), new Twist2d(3 * t, 0, 0));
+        });
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++)
+        {
+            readers[r] = new Thread(() -> {
+                PoseHistoryCursor cursor = new PoseHistoryCursor();
+                double last = 0;
+                while (last < writes && failure.get() == null)
+                {
+                    RobotStateMap.State latest = map.getLatestState();
+                    last = latest.timestamp;
+                    RobotStateMap.State state = map.get(last - 10.5);
+                    double t = state.timestamp;
+                    if (latest.pose.getTranslation().y() != 2 * last ||
+                        latest.predictedVelocity.dx != 3 * last ||
+                        Math.abs(state.pose.getTranslation().x() - t) > 1e-6 ||
+                        Math.abs(state.integrationVelocity.dx - t) > 1e-6)
+                    {
+                        failure.set("inconsistent state at " + last);
+                    }
+                    cursor.load(map, last - 20, last - 10);
+                    for (int i = 1; i < cursor.size(); i++)
+                    {
+                        // loaded states are contiguous
+                        cursor.seek(last - 20 + i);
+                        if (Math.abs(cursor.getY() - 2 * cursor.getX()) > 1e-6)
+                            failure.set("inconsistent history at " + last);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers)
+            reader.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+        assertEquals(writes, map.getLatestState().timestamp);
+    }
+
+    @Test
+    public void testMutableState()
+    {
+        RobotStateMap map = new RobotStateMap();
+        Pose2d p0 = new Pose2d(3, -2, Rotation2d.fromDegrees(170));
+        Pose2d p1 = p0.transformBy(Pose2d.exp(new Twist2d(10, 0, Math.toRadians(40))));
+        map.reset(1, p0);
+        map.addObservations(2, p1, new Twist2d(2, 0, .5), new Twist2d(4, 1, 0));
+
+        // the same as Pose2d's interpolation
+        RobotStateMap.MutableState state = new RobotStateMap.MutableState();
+        map.get(1.25, state);
+        Pose2d expected = p0.interpolate(p1, .25);
+        assertEquals(1.25, state.timestamp);
+        assertEquals(expected.getTranslation().x(), state.x, 1e-9);
+        assertEquals(expected.getTranslation().y(), state.y, 1e-9);
+        assertEquals(expected.getRotation().getRadians(), state.getHeading(), 1e-9);
+        assertEquals(.5, state.integrationDx, 1e-9);
+        assertEquals(.25, state.predictedDy, 1e-9);
+        assertTrue(map.get(1.25).pose.epsilonEquals(expected, 1e-9));
+
+        map.getLatestState(state);
+        assertEquals(2, state.timestamp);
+        assertTrue(state.toState().pose.epsilonEquals(p1, 1e-9));
+
+        // integrating matches Pose2d's
+        RobotStateMap.MutableState next = new RobotStateMap.MutableState();
+        Twist2d twist = new Twist2d(3, .5, -.3);
+        next.integrate(state, twist.dx, twist.dy, twist.dtheta);
+        next.timestamp = 3;
+        next.setIntegrationVelocity(twist.dx, twist.dy, twist.dtheta);
+        map.addObservations(next);
+        assertTrue(map.getLatestFieldToVehicle().epsilonEquals(p1.transformBy(Pose2d.exp(twist)), 1e-9));
+        assertEquals(2 + 3, map.getDistanceDriven(), 1e-9);
+    }
+
+    @Test
+    public void testStateMapAllocationFree()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long id = Thread.currentThread().getId();
+
+        // RobotStateEstimator's calls on the map each tick: read the latest
+        // state, integrate the wheel motion, add the result, and look back
+        // a few ticks.  Only these calls are measured, not a whole
+        // estimator tick: its kinematics and Drive reads aren't run here,
+        // and Drive's readPeriodicInputs makes Rotation2ds per gyro read.
+        RobotStateMap map = new RobotStateMap();
+        RobotStateMap.MutableState last = new RobotStateMap.MutableState();
+        RobotStateMap.MutableState next = new RobotStateMap.MutableState();
+        RobotStateMap.MutableState past = new RobotStateMap.MutableState();
+        double t = 0;
+        for (int pass = 0; pass < 6; pass++) // warm up, then measure every pass
+        {
+            // what reading the counter itself costs, so that only the
+            // ticks are measured
+            long before = threads.getThreadAllocatedBytes(id);
+            final long baseline = threads.getThreadAllocatedBytes(id) - before;
+            before = threads.getThreadAllocatedBytes(id);
+            for (int tick = 0; tick < 20000; tick++)
+            {
+                t += .01;
+                map.getLatestState(last);
+                next.integrate(last, .5, 0, .01);
+                next.timestamp = t;
+                next.setIntegrationVelocity(.5, 0, .01);
+                next.setPredictedVelocity(50, 0, 1);
+                map.addObservations(next);
+                map.get(t - .055, past);
+            }
+            final long bytes = threads.getThreadAllocatedBytes(id) - before - baseline;
+            // the JVM itself (eg: deoptimizing) allocates a few hundred
+            // bytes on this thread now and then, where even one object
+            // per tick would be 20000 * 16 bytes
+            if (pass > 1)
+                assertTrue(bytes < 1024, bytes + " bytes allocated over 20000 ticks in pass " + pass);
+        }
+        assertEquals(t, last.timestamp + .01, 1e-6);
+        assertEquals(t - .055, past.timestamp, 1e-9);
+    }
+}